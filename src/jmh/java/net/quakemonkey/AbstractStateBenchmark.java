@@ -0,0 +1,76 @@
+package net.quakemonkey;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.esotericsoftware.kryo.Kryo;
+
+import net.quakemonkey.messages.DiffMessage;
+
+/**
+ * The base of the benchmarks that work on two consecutive game states.
+ * <p>
+ * Run them with the gc profiler ({@code -prof gc}, the default of the
+ * {@code jmh} gradle task) to see the allocation rate next to the throughput.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public abstract class AbstractStateBenchmark {
+	/**
+	 * The approximate size of a serialized state in bytes.
+	 */
+	@Param({ "1024", "4096", "16384", "65536" })
+	protected int stateSize;
+	/**
+	 * The fraction of values that changes between two states.
+	 */
+	@Param({ "0", "0.1", "0.5", "1" })
+	protected float changeRatio;
+
+	protected Kryo kryo;
+	protected BenchmarkState first;
+	protected BenchmarkState second;
+
+	@Setup
+	public void setupStates() {
+		Random random = new Random(42);
+
+		kryo = new Kryo();
+		BenchmarkState.registerClasses(kryo);
+
+		first = BenchmarkState.create(stateSize, random);
+		second = BenchmarkState.change(first, changeRatio, random);
+
+		setup();
+	}
+
+	protected abstract void setup();
+
+	/**
+	 * @return the delta message between both states, as generated by the
+	 *         server.
+	 */
+	protected DiffMessage generateDelta(BenchmarkState from,
+			BenchmarkState to) {
+		DiffConnectionHandler<BenchmarkState> handler = new DiffConnectionHandler<>(
+				kryo, (short) 4, true);
+		handler.registerAck(handler.generateSnapshot(from).getId());
+
+		return (DiffMessage) handler.generateSnapshot(to).getPayloadMessage();
+	}
+}
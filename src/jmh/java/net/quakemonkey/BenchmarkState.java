@@ -0,0 +1,91 @@
+package net.quakemonkey;
+
+import java.util.Random;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * A game state of a configurable size, used by the benchmarks.
+ */
+public class BenchmarkState {
+	private float[] values;
+
+	public BenchmarkState() {
+		// default public constructor
+	}
+
+	public BenchmarkState(float[] values) {
+		this.values = values;
+	}
+
+	public float[] getValues() {
+		return values;
+	}
+
+	/**
+	 * Creates a state that is serialized to roughly {@code size} bytes.
+	 */
+	public static BenchmarkState create(int size, Random random) {
+		float[] values = new float[Math.max(1, (size - 8) / 4)];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = random.nextFloat();
+		}
+		return new BenchmarkState(values);
+	}
+
+	/**
+	 * Creates a copy of {@code state} in which the given fraction of values
+	 * is changed.
+	 */
+	public static BenchmarkState change(BenchmarkState state,
+			float changeRatio, Random random) {
+		float[] values = state.values.clone();
+		for (int i = 0; i < values.length; i++) {
+			if (random.nextFloat() < changeRatio)
+				values[i] += 1f;
+		}
+		return new BenchmarkState(values);
+	}
+
+	/**
+	 * Registers the classes needed by the benchmarks.
+	 */
+	public static void registerClasses(Kryo kryo) {
+		DiffClassRegistration.registerClasses(kryo);
+		kryo.register(BenchmarkState.class, new BenchmarkStateSerializer());
+	}
+
+	public static class BenchmarkStateSerializer extends Serializer<BenchmarkState>
+			implements InPlaceDeserializer<BenchmarkState> {
+		@Override
+		public BenchmarkState read(Kryo kryo, Input input,
+				Class<? extends BenchmarkState> cls) {
+			int n = input.readVarInt(true);
+			return new BenchmarkState(input.readFloats(n));
+		}
+
+		@Override
+		public BenchmarkState create() {
+			return new BenchmarkState(new float[0]);
+		}
+
+		@Override
+		public void readInto(Kryo kryo, Input input, BenchmarkState message) {
+			int n = input.readVarInt(true);
+			if (message.values.length != n)
+				message.values = new float[n];
+			for (int i = 0; i < n; i++) {
+				message.values[i] = input.readFloat();
+			}
+		}
+
+		@Override
+		public void write(Kryo kryo, Output output, BenchmarkState object) {
+			output.writeVarInt(object.values.length, true);
+			output.writeFloats(object.values, 0, object.values.length);
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package net.quakemonkey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+import net.quakemonkey.messages.PayloadMessage;
+
+/**
+ * Measures the server side generation of snapshots. The client acknowledges
+ * every snapshot, so each one is diffed against its predecessor.
+ */
+public class DeltaBenchmark extends AbstractStateBenchmark {
+	private DiffConnectionHandler<BenchmarkState> handler;
+	private boolean even;
+
+	@Override
+	protected void setup() {
+		handler = new DiffConnectionHandler<>(kryo, (short) 32);
+	}
+
+	@Benchmark
+	public Object generateSnapshot(WireBytes wireBytes) {
+		even = !even;
+
+		BenchmarkState state = even ? first : second;
+		PayloadMessage msg = handler.generateSnapshot(state);
+		handler.registerAck(msg.getId());
+
+		return wireBytes.countAndFree(kryo, state, msg);
+	}
+}
@@ -0,0 +1,154 @@
+package net.quakemonkey;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import net.quakemonkey.messages.PayloadMessage;
+
+/**
+ * Compares the delta codecs on states with variable-length fields: some
+ * entities get a new name or a score that needs another byte, which shifts
+ * all following bytes. The sizes of the deltas are counted by
+ * {@link WireBytes}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DeltaCodecBenchmark {
+	@Param({ "BLOCKS", "XOR_BLOCKS", "ROLLING_HASH", "SMALLEST" })
+	public DeltaCodec codec;
+	@Param({ "64", "512" })
+	public int entityCount;
+	/**
+	 * The fraction of entities whose name or score changes.
+	 */
+	@Param({ "0.01", "0.1" })
+	public float changeRatio;
+
+	private Kryo kryo;
+	private EntityState first;
+	private EntityState second;
+	private DiffConnectionHandler<EntityState> handler;
+	private boolean even;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+
+		kryo = new Kryo();
+		DiffClassRegistration.registerClasses(kryo);
+		kryo.register(EntityState.class, new EntityStateSerializer());
+
+		first = EntityState.create(entityCount, random);
+		second = EntityState.change(first, changeRatio, random);
+
+		handler = new DiffConnectionHandler<>(kryo, (short) 32);
+		handler.setDeltaCodec(codec);
+	}
+
+	@Benchmark
+	public Object generateSnapshot(WireBytes wireBytes) {
+		even = !even;
+
+		EntityState state = even ? first : second;
+		PayloadMessage msg = handler.generateSnapshot(state);
+		handler.registerAck(msg.getId());
+
+		return wireBytes.countAndFree(kryo, state, msg);
+	}
+
+	/**
+	 * A list of entities with a name, a score and a position each.
+	 */
+	public static class EntityState {
+		private String[] names;
+		private int[] scores;
+		private float[] positions;
+
+		static EntityState create(int count, Random random) {
+			EntityState state = new EntityState();
+			state.names = new String[count];
+			state.scores = new int[count];
+			state.positions = new float[count * 3];
+
+			for (int i = 0; i < count; i++) {
+				state.names[i] = "player" + i;
+				state.scores[i] = random.nextInt(100);
+			}
+			for (int i = 0; i < state.positions.length; i++) {
+				state.positions[i] = random.nextFloat();
+			}
+			return state;
+		}
+
+		static EntityState change(EntityState state, float changeRatio,
+				Random random) {
+			EntityState changed = new EntityState();
+			changed.names = state.names.clone();
+			changed.scores = state.scores.clone();
+			changed.positions = state.positions;
+
+			for (int i = 0; i < changed.names.length; i++) {
+				if (random.nextFloat() < changeRatio) {
+					if (random.nextBoolean())
+						changed.names[i] += "_";
+					else
+						changed.scores[i] += 100;
+				}
+			}
+			return changed;
+		}
+	}
+
+	public static class EntityStateSerializer
+			extends Serializer<EntityState> {
+		@Override
+		public void write(Kryo kryo, Output output, EntityState state) {
+			output.writeVarInt(state.names.length, true);
+			for (int i = 0; i < state.names.length; i++) {
+				output.writeString(state.names[i]);
+				output.writeVarInt(state.scores[i], true);
+				output.writeFloats(state.positions, i * 3, 3);
+			}
+		}
+
+		@Override
+		public EntityState read(Kryo kryo, Input input,
+				Class<? extends EntityState> type) {
+			EntityState state = new EntityState();
+			int count = input.readVarInt(true);
+			state.names = new String[count];
+			state.scores = new int[count];
+			state.positions = new float[count * 3];
+
+			for (int i = 0; i < count; i++) {
+				state.names[i] = input.readString();
+				state.scores[i] = input.readVarInt(true);
+				for (int j = 0; j < 3; j++) {
+					state.positions[i * 3 + j] = input.readFloat();
+				}
+			}
+			return state;
+		}
+	}
+}
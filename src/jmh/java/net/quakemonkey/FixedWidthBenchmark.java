@@ -0,0 +1,138 @@
+package net.quakemonkey;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.esotericsoftware.kryo.Kryo;
+
+import net.quakemonkey.messages.PayloadMessage;
+import net.quakemonkey.utils.FixedWidthSerializers;
+
+/**
+ * Compares the block deltas of states serialized by Kryo's default
+ * serializers with the ones of the
+ * {@linkplain FixedWidthRegistration fixed-width mode}. The states are
+ * serialized by field serializers; the scores of some players grow, so their
+ * varints need more bytes. The sizes of the deltas are counted by
+ * {@link WireBytes}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FixedWidthBenchmark {
+	private static final int MAX_PLAYERS = 256;
+
+	@Param({ "false", "true" })
+	public boolean fixedWidth;
+	@Param({ "32", "256" })
+	public int playerCount;
+	/**
+	 * The fraction of players whose score changes.
+	 */
+	@Param({ "0.1" })
+	public float changeRatio;
+
+	private Kryo kryo;
+	private World first;
+	private World second;
+	private DiffConnectionHandler<World> handler;
+	private boolean even;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+
+		kryo = new Kryo();
+		if (fixedWidth)
+			FixedWidthRegistration.registerSerializers(kryo, 16);
+		DiffClassRegistration.registerClasses(kryo);
+		if (fixedWidth) {
+			kryo.register(ArrayList.class,
+					new FixedWidthSerializers.CollectionSerializer<>(
+							Player.class, MAX_PLAYERS, 40));
+		} else {
+			kryo.register(ArrayList.class);
+		}
+		kryo.register(Player.class);
+		kryo.register(World.class);
+
+		first = World.create(playerCount, random);
+		second = World.change(first, changeRatio, random);
+
+		handler = new DiffConnectionHandler<>(kryo, (short) 32);
+	}
+
+	@Benchmark
+	public Object generateSnapshot(WireBytes wireBytes) {
+		even = !even;
+
+		World state = even ? first : second;
+		PayloadMessage msg = handler.generateSnapshot(state);
+		handler.registerAck(msg.getId());
+
+		return wireBytes.countAndFree(kryo, state, msg);
+	}
+
+	public static class World {
+		private int tick;
+		private ArrayList<Player> players = new ArrayList<>();
+
+		static World create(int playerCount, Random random) {
+			World world = new World();
+
+			for (int i = 0; i < playerCount; i++) {
+				Player player = new Player();
+				player.name = "player" + i;
+				player.score = random.nextInt(100);
+				player.x = random.nextFloat();
+				player.y = random.nextFloat();
+				player.z = random.nextFloat();
+				world.players.add(player);
+			}
+			return world;
+		}
+
+		static World change(World world, float changeRatio, Random random) {
+			World changed = new World();
+			changed.tick = world.tick + 1;
+
+			for (Player player : world.players) {
+				Player copy = new Player();
+				copy.name = player.name;
+				copy.score = player.score;
+				copy.x = player.x;
+				copy.y = player.y;
+				copy.z = player.z;
+
+				if (random.nextFloat() < changeRatio)
+					copy.score += 100;
+				changed.players.add(copy);
+			}
+			return changed;
+		}
+	}
+
+	public static class Player {
+		private String name;
+		private int score;
+		private float x;
+		private float y;
+		private float z;
+	}
+}
@@ -0,0 +1,68 @@
+package net.quakemonkey;
+
+import java.nio.ByteBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+import com.esotericsoftware.kryonet.Client;
+
+import net.quakemonkey.messages.DiffMessage;
+import net.quakemonkey.messages.PayloadMessage;
+import net.quakemonkey.utils.Utils;
+
+/**
+ * Measures the client side processing of delta messages. The client receives
+ * deltas that alternate between two states, each one based on its
+ * predecessor. The received states are either decoded into new objects or
+ * into reused instances.
+ */
+public class MergeBenchmark extends AbstractStateBenchmark {
+	private Client client;
+	private ClientDiffHandler<BenchmarkState> handler;
+	private ByteBuffer firstBuffer;
+	private ByteBuffer mergedBuffer;
+	private DiffMessage firstToSecond;
+	private DiffMessage secondToFirst;
+	private PayloadMessage payload;
+	private short id;
+
+	@Param({ "false", "true" })
+	public boolean inPlace;
+
+	@Override
+	protected void setup() {
+		firstToSecond = generateDelta(first, second);
+		secondToFirst = generateDelta(second, first);
+
+		client = new FakeClient();
+		BenchmarkState.registerClasses(client.getKryo());
+		handler = new ClientDiffHandler<>(client, BenchmarkState.class,
+				(short) 32);
+		if (inPlace)
+			handler.setInPlaceDeserializer(
+					new BenchmarkState.BenchmarkStateSerializer());
+		id = 0;
+		handler.processPackage(client, new PayloadMessage().set(id, first));
+
+		firstBuffer = Utils.messageToBuffer(first, kryo);
+		payload = new PayloadMessage();
+	}
+
+	@Benchmark
+	public int mergeMessage() {
+		mergedBuffer = handler.mergeMessage(firstBuffer, firstToSecond,
+				mergedBuffer);
+
+		return mergedBuffer.limit();
+	}
+
+	@Benchmark
+	public void processPackage() {
+		DiffMessage diff = id % 2 == 0 ? firstToSecond : secondToFirst;
+		diff.set(id, diff.getFlags(), diff.getData());
+		id++;
+
+		handler.processPackage(client, payload.set(id, diff));
+	}
+}
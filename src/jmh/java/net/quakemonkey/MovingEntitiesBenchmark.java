@@ -0,0 +1,138 @@
+package net.quakemonkey;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import net.quakemonkey.messages.PayloadMessage;
+
+/**
+ * Compares the block codecs on moving entities: every tick, each entity moves
+ * a bit and its tick counter is incremented. The sizes of the deltas are
+ * counted by {@link WireBytes}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MovingEntitiesBenchmark {
+	@Param({ "BLOCKS", "XOR_BLOCKS" })
+	public DeltaCodec codec;
+	@Param({ "64", "512" })
+	public int entityCount;
+	/**
+	 * The fraction of entities that move.
+	 */
+	@Param({ "0.1", "1" })
+	public float movingRatio;
+
+	private Kryo kryo;
+	private Entities first;
+	private Entities second;
+	private DiffConnectionHandler<Entities> handler;
+	private boolean even;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+
+		kryo = new Kryo();
+		DiffClassRegistration.registerClasses(kryo);
+		kryo.register(Entities.class, new EntitiesSerializer());
+
+		first = Entities.create(entityCount, random);
+		second = Entities.move(first, movingRatio, random);
+
+		handler = new DiffConnectionHandler<>(kryo, (short) 32);
+		handler.setDeltaCodec(codec);
+	}
+
+	@Benchmark
+	public Object generateSnapshot(WireBytes wireBytes) {
+		even = !even;
+
+		Entities state = even ? first : second;
+		PayloadMessage msg = handler.generateSnapshot(state);
+		handler.registerAck(msg.getId());
+
+		return wireBytes.countAndFree(kryo, state, msg);
+	}
+
+	/**
+	 * The positions and tick counters of a list of entities.
+	 */
+	public static class Entities {
+		private float[] positions;
+		private int[] ticks;
+
+		static Entities create(int count, Random random) {
+			Entities entities = new Entities();
+			entities.positions = new float[count * 3];
+			entities.ticks = new int[count];
+
+			for (int i = 0; i < entities.positions.length; i++) {
+				entities.positions[i] = random.nextFloat() * 1000;
+			}
+			for (int i = 0; i < count; i++) {
+				entities.ticks[i] = random.nextInt(100000);
+			}
+			return entities;
+		}
+
+		static Entities move(Entities entities, float movingRatio,
+				Random random) {
+			Entities moved = new Entities();
+			moved.positions = entities.positions.clone();
+			moved.ticks = entities.ticks.clone();
+
+			for (int i = 0; i < moved.ticks.length; i++) {
+				if (random.nextFloat() < movingRatio) {
+					for (int j = i * 3; j < i * 3 + 3; j++) {
+						moved.positions[j] += random.nextFloat() * 0.1f;
+					}
+					moved.ticks[i]++;
+				}
+			}
+			return moved;
+		}
+	}
+
+	public static class EntitiesSerializer extends Serializer<Entities> {
+		@Override
+		public void write(Kryo kryo, Output output, Entities entities) {
+			output.writeInt(entities.ticks.length);
+			output.writeFloats(entities.positions, 0,
+					entities.positions.length);
+			output.writeInts(entities.ticks, 0, entities.ticks.length);
+		}
+
+		@Override
+		public Entities read(Kryo kryo, Input input,
+				Class<? extends Entities> type) {
+			Entities entities = new Entities();
+			int count = input.readInt();
+			entities.positions = input.readFloats(count * 3);
+			entities.ticks = input.readInts(count);
+
+			return entities;
+		}
+	}
+}
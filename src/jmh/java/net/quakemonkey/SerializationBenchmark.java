@@ -0,0 +1,28 @@
+package net.quakemonkey;
+
+import java.nio.ByteBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+import net.quakemonkey.utils.Utils;
+import net.quakemonkey.utils.pool.BufferPool;
+
+/**
+ * Measures the serialization of a game state into a pooled buffer.
+ */
+public class SerializationBenchmark extends AbstractStateBenchmark {
+
+	@Override
+	protected void setup() {
+		// nothing to do
+	}
+
+	@Benchmark
+	public int messageToBuffer() {
+		ByteBuffer buffer = Utils.messageToBuffer(first, kryo);
+		int size = buffer.remaining();
+		BufferPool.DEFAULT.freeByteBuffer(buffer);
+
+		return size;
+	}
+}
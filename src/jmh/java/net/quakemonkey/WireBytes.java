@@ -0,0 +1,94 @@
+package net.quakemonkey;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Output;
+
+import net.quakemonkey.messages.DiffMessage;
+import net.quakemonkey.messages.DiffMessageSerializer;
+import net.quakemonkey.messages.PayloadMessage;
+import net.quakemonkey.utils.pool.BufferPool;
+
+/**
+ * Counts the bytes of the snapshots generated by a benchmark. JMH reports the
+ * counters as rates next to the throughput, so dividing a counter by the
+ * throughput gives the average size of a snapshot:
+ * <ul>
+ * <li>{@code payloadBytes}: the sent payload, i.e. the delta or the full
+ * message if it is smaller
+ * <li>{@code fullBytes}: the full message
+ * </ul>
+ * Neither includes the class ids and the header of the {@link PayloadMessage}.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class WireBytes {
+	public long payloadBytes;
+	public long fullBytes;
+
+	/**
+	 * The serialized sizes of the states, by identity.
+	 */
+	private final Map<Object, Integer> fullSizes = new IdentityHashMap<>();
+	private final Output output = new Output(1024, -1);
+
+	@Setup(Level.Iteration)
+	public void reset() {
+		payloadBytes = 0;
+		fullBytes = 0;
+	}
+
+	/**
+	 * Counts the payload of a generated snapshot and gives the message and
+	 * the arrays of its delta back to their pools.
+	 *
+	 * @param kryo
+	 *            The Kryo instance the state is serialized with
+	 * @param state
+	 *            The state the snapshot was generated from
+	 * @param msg
+	 *            The generated snapshot
+	 * @return The payload of the message.
+	 */
+	Object countAndFree(Kryo kryo, Object state, PayloadMessage msg) {
+		int fullSize = getFullSize(kryo, state);
+		fullBytes += fullSize;
+
+		Object payload = msg.getPayloadMessage();
+		if (payload instanceof DiffMessage) {
+			DiffMessage diffMessage = (DiffMessage) payload;
+			payloadBytes += 2
+					+ DiffMessageSerializer.getFlagsAndDataLength(diffMessage);
+
+			BufferPool.DEFAULT.freeByteArray(diffMessage.getFlags());
+			BufferPool.DEFAULT.freeIntArray(diffMessage.getData());
+			BufferPool.DEFAULT.freeByteArray(diffMessage.getInstructions());
+			DiffMessage.POOL.free(diffMessage);
+		} else {
+			payloadBytes += fullSize;
+		}
+		PayloadMessage.POOL.free(msg);
+
+		return payload;
+	}
+
+	private int getFullSize(Kryo kryo, Object state) {
+		Integer size = fullSizes.get(state);
+		if (size == null) {
+			output.reset();
+			kryo.writeObject(output, state);
+			size = output.position();
+			fullSizes.put(state, size);
+		}
+
+		return size;
+	}
+}
@@ -0,0 +1,44 @@
+package net.quakemonkey.messages;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import net.quakemonkey.AbstractStateBenchmark;
+
+/**
+ * Measures the serialization and deserialization of delta messages.
+ */
+public class DiffMessageSerializerBenchmark extends AbstractStateBenchmark {
+	private final DiffMessageSerializer serializer = new DiffMessageSerializer();
+	private DiffMessage diff;
+	private Output output;
+	private Input input;
+
+	@Override
+	protected void setup() {
+		diff = generateDelta(first, second);
+
+		output = new Output(stateSize * 2);
+		serializer.write(kryo, output, diff);
+		input = new Input(output.toBytes());
+	}
+
+	@Benchmark
+	public int write() {
+		output.reset();
+		serializer.write(kryo, output, diff);
+
+		return output.position();
+	}
+
+	@Benchmark
+	public DiffMessage read() {
+		input.setPosition(0);
+		DiffMessage read = serializer.read(kryo, input, DiffMessage.class);
+		DiffMessage.POOL.free(read);
+
+		return read;
+	}
+}
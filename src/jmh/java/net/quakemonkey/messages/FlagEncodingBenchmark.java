@@ -0,0 +1,131 @@
+package net.quakemonkey.messages;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * Measures the encoding of the flags of delta messages for different change
+ * densities. The number of bytes on the wire, next to the size of the plain
+ * bitmap, is counted by {@link Sizes}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FlagEncodingBenchmark {
+	/**
+	 * The size of the state in bytes.
+	 */
+	@Param({ "32768" })
+	public int stateSize;
+	/**
+	 * The fraction of blocks that changes.
+	 */
+	@Param({ "0.0001", "0.001", "0.01", "0.1", "0.5" })
+	public float changeRatio;
+	/**
+	 * Whether the changed blocks come in runs of 16, e.g. whole entities,
+	 * instead of being scattered.
+	 */
+	@Param({ "false", "true" })
+	public boolean clustered;
+
+	private final DiffMessageSerializer serializer = new DiffMessageSerializer();
+	private DiffMessage diff;
+	private Output output;
+	private Input input;
+	private int bitmapSize;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		int numBlocks = stateSize / 4;
+		int runLength = clustered ? 16 : 1;
+		byte[] flags = new byte[(numBlocks + 7) / 8];
+		int changedBlocks = 0;
+
+		for (int block = 0; block < numBlocks; block += runLength) {
+			if (random.nextFloat() < changeRatio) {
+				for (int i = block; i < Math.min(numBlocks,
+						block + runLength); i++) {
+					flags[i >>> 3] |= 1 << (i & 7);
+					changedBlocks++;
+				}
+			}
+		}
+
+		int[] data = new int[changedBlocks];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = random.nextInt();
+		}
+		diff = new DiffMessage().set((short) 5, flags, data);
+
+		output = new Output(stateSize * 2);
+		serializer.write(null, output, diff);
+		input = new Input(output.toBytes());
+
+		bitmapSize = 3 + Output.varIntLength(flags.length, true)
+				+ flags.length + data.length * 4;
+	}
+
+	@Benchmark
+	public int write(Sizes sizes) {
+		output.reset();
+		serializer.write(null, output, diff);
+
+		sizes.wireBytes += output.position();
+		sizes.bitmapBytes += bitmapSize;
+
+		return output.position();
+	}
+
+	@Benchmark
+	public DiffMessage read() {
+		input.setPosition(0);
+		DiffMessage read = serializer.read(null, input, DiffMessage.class);
+		DiffMessage.POOL.free(read);
+
+		return read;
+	}
+
+	/**
+	 * The sizes of the written deltas. JMH reports them as rates next to the
+	 * throughput, so dividing them by the throughput gives the size of one
+	 * delta:
+	 * <ul>
+	 * <li>{@code wireBytes}: with the chosen flag encoding
+	 * <li>{@code bitmapBytes}: with the flags as a plain bitmap
+	 * </ul>
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Sizes {
+		public long wireBytes;
+		public long bitmapBytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			wireBytes = 0;
+			bitmapBytes = 0;
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package net.quakemonkey.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the word-wide block comparison used to generate deltas with the
+ * block by block comparison it replaced.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BlockComparisonBenchmark {
+	@Param({ "8192", "16384", "32768" })
+	private int stateSize;
+	/**
+	 * The fraction of bytes that changed.
+	 */
+	@Param({ "0", "0.01", "0.1", "0.5" })
+	private float changeRatio;
+
+	private ByteBuffer buffer;
+	private ByteBuffer previousBuffer;
+	private byte[] flags;
+	private IntBuffer diffInts;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		byte[] previous = new byte[stateSize];
+		random.nextBytes(previous);
+		byte[] current = Arrays.copyOf(previous, stateSize);
+		for (int i = 0; i < stateSize; i++) {
+			if (random.nextFloat() < changeRatio)
+				current[i]++;
+		}
+
+		buffer = ByteBuffer.wrap(current);
+		previousBuffer = ByteBuffer.wrap(previous);
+		flags = new byte[(stateSize / 4 + 7) / 8];
+		diffInts = IntBuffer.allocate(stateSize / 4);
+	}
+
+	@Benchmark
+	public int wordWide() {
+		Arrays.fill(flags, (byte) 0);
+		diffInts.clear();
+
+		return BlockComparison.compare(buffer, previousBuffer, stateSize,
+				flags, diffInts);
+	}
+
+	@Benchmark
+	public int sequential() {
+		Arrays.fill(flags, (byte) 0);
+		diffInts.clear();
+
+		return BlockComparison.compareSequentially(buffer, previousBuffer,
+				stateSize, flags, diffInts);
+	}
+}
@@ -0,0 +1,97 @@
+package net.quakemonkey.utils.pool;
+
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the pool under contention of eight threads, each of which obtains
+ * and frees the arrays and buffers needed for one delta. The synchronized
+ * tree map based pool that was used before serves as a baseline.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class BufferPoolBenchmark {
+	private static final int BUFFER_SIZE = Short.MAX_VALUE;
+	private static final int FLAGS_SIZE = 125;
+	private static final int DATA_SIZE = 300;
+
+	private final BufferPool pool = new BufferPool();
+	private final DuplicatedKeysTreeMap<Integer, byte[]> treeByteArrayPool = new DuplicatedKeysTreeMap<>(
+			true, Comparator.comparingInt(array -> array.length));
+	private final DuplicatedKeysTreeMap<Integer, int[]> treeIntArrayPool = new DuplicatedKeysTreeMap<>(
+			true, Comparator.comparingInt(array -> array.length));
+	private final DuplicatedKeysTreeMap<Integer, ByteBuffer> treeBufferPool = new DuplicatedKeysTreeMap<>(
+			false);
+
+	@Benchmark
+	public void sizeClasses(Blackhole blackhole) {
+		ByteBuffer buffer = pool.obtainByteBuffer(BUFFER_SIZE);
+		byte[] flags = pool.obtainByteArray(FLAGS_SIZE, true);
+		int[] data = pool.obtainIntArray(DATA_SIZE);
+
+		blackhole.consume(buffer);
+		blackhole.consume(flags);
+		blackhole.consume(data);
+
+		pool.freeIntArray(data);
+		pool.freeByteArray(flags);
+		pool.freeByteBuffer(buffer);
+	}
+
+	@Benchmark
+	public void synchronizedTreeMap(Blackhole blackhole) {
+		ByteBuffer buffer;
+		synchronized (treeBufferPool) {
+			buffer = treeBufferPool.pollCeiling(BUFFER_SIZE);
+		}
+		if (buffer == null)
+			buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+		byte[] flags;
+		synchronized (treeByteArrayPool) {
+			flags = treeByteArrayPool.poll(FLAGS_SIZE);
+		}
+		if (flags == null)
+			flags = new byte[FLAGS_SIZE];
+
+		int[] data;
+		synchronized (treeIntArrayPool) {
+			data = treeIntArrayPool.pollCeiling(DATA_SIZE);
+		}
+		if (data == null)
+			data = new int[DATA_SIZE];
+
+		blackhole.consume(buffer);
+		blackhole.consume(flags);
+		blackhole.consume(data);
+
+		synchronized (treeIntArrayPool) {
+			treeIntArrayPool.put(data.length, data);
+		}
+		synchronized (treeByteArrayPool) {
+			treeByteArrayPool.put(flags.length, flags);
+		}
+		synchronized (treeBufferPool) {
+			buffer.clear();
+			treeBufferPool.put(buffer.capacity(), buffer);
+		}
+	}
+}
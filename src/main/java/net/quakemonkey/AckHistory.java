@@ -0,0 +1,86 @@
+package net.quakemonkey;
+
+/**
+ * Packs the acknowledgment history of a client into a <code>long</code>: the
+ * id of the newest received message and a bitmask of the
+ * {@value #HISTORY_LENGTH} messages before it. Bit {@code i} of the mask is
+ * set if message {@code id - 1 - i} was received as well. Packing both into
+ * one value lets the server update them with a single atomic operation.
+ *
+ * @see net.quakemonkey.messages.AckMessage
+ */
+final class AckHistory {
+	/**
+	 * The number of messages before the newest one that are covered by the
+	 * bitmask.
+	 */
+	static final int HISTORY_LENGTH = 32;
+
+	private AckHistory() {
+		// not used
+	}
+
+	/**
+	 * @param id
+	 *            The id of the newest received message
+	 * @param receivedBits
+	 *            The bitmask of the received messages before it
+	 * @return The packed history.
+	 */
+	static long of(short id, int receivedBits) {
+		return ((long) receivedBits << 16) | (id & 0xFFFF);
+	}
+
+	/**
+	 * @return The id of the newest received message.
+	 */
+	static short getId(long history) {
+		return (short) history;
+	}
+
+	/**
+	 * @return The bitmask of the received messages before the
+	 *         {@linkplain #getId(long) newest one}.
+	 */
+	static int getReceivedBits(long history) {
+		return (int) (history >>> 16);
+	}
+
+	/**
+	 * Merges an acknowledgment into the history. The acknowledgments may
+	 * arrive in any order; messages that are too old for the bitmask of the
+	 * merged history are forgotten.
+	 *
+	 * @param history
+	 *            The packed history
+	 * @param id
+	 *            The id of the acknowledged message
+	 * @param receivedBits
+	 *            The bitmask of the messages received before it
+	 * @return The merged history.
+	 */
+	static long merge(long history, short id, int receivedBits) {
+		short currentId = getId(history);
+		int currentBits = getReceivedBits(history);
+		int diff = (short) (id - currentId);
+
+		if (diff > 0) {
+			return of(id, receivedBits | shift(currentBits, diff));
+		}
+		return of(currentId, currentBits | shift(receivedBits, -diff));
+	}
+
+	/**
+	 * @return The bitmask of a newer message that includes the given message
+	 *         and its bitmask, if the newer message is {@code diff} messages
+	 *         ahead.
+	 */
+	private static int shift(int receivedBits, int diff) {
+		if (diff == 0)
+			return receivedBits;
+		if (diff > HISTORY_LENGTH)
+			return 0;
+
+		return (int) (((long) receivedBits << 1 | 1) << (diff - 1));
+	}
+}
@@ -1,11 +1,17 @@
 package net.quakemonkey;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.Registration;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryonet.Client;
 import com.esotericsoftware.kryonet.Connection;
@@ -14,9 +20,17 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 
 import net.quakemonkey.messages.AckMessage;
+import net.quakemonkey.messages.CompressedMessage;
 import net.quakemonkey.messages.DiffMessage;
+import net.quakemonkey.messages.DiffMessageSerializer;
+import net.quakemonkey.messages.FragmentMessage;
 import net.quakemonkey.messages.PayloadMessage;
+import net.quakemonkey.messages.RegionAckMessage;
+import net.quakemonkey.messages.RegionBatchMessage;
+import net.quakemonkey.messages.RegionMessage;
+import net.quakemonkey.messages.ResyncMessage;
 import net.quakemonkey.utils.BiConsumerMultiplexer;
+import net.quakemonkey.utils.RollingHashDelta;
 import net.quakemonkey.utils.Utils;
 import net.quakemonkey.utils.pool.BufferPool;
 
@@ -24,11 +38,15 @@ import net.quakemonkey.utils.pool.BufferPool;
  * Handles the client-side job of receiving either messages of type {@code T} or
  * delta messages. If a delta message is received, it is merged with a cached
  * old message. When the message is processed, an acknowledgment is sent to the
- * server.
+ * server; it also covers the messages received before, so acknowledgments can
+ * be {@linkplain #setAckInterval(int, long) coalesced}.
  * <p>
  * Client can register message listeners for type {@code T} by calling
  * {@link #addListener()}. It is very important that the client does not listen
- * to message type {@code T} via other listeners.
+ * to message type {@code T} via other listeners. The received
+ * {@link PayloadMessage}s and {@link DiffMessage}s are given back to their
+ * pools after they were processed, so they must not be used by other listeners
+ * either.
  * <p>
  * Important: make sure that you call
  * {@link DiffClassRegistration#registerClasses()} before starting the client.
@@ -41,16 +59,127 @@ import net.quakemonkey.utils.pool.BufferPool;
 public class ClientDiffHandler<T> {
 	protected static final Logger LOG = Logger
 			.getLogger(ClientDiffHandler.class.getName());
+	/**
+	 * The number of fragmented messages that are reassembled at the same
+	 * time.
+	 */
+	private static final int PARTIAL_MESSAGE_CAPACITY = 4;
+	/**
+	 * The maximum length of a fragmented message in bytes.
+	 */
+	private static final int MAX_FRAGMENTED_MESSAGE_LENGTH = 16 * 1024 * 1024;
+	/**
+	 * Marks a slot of the snapshot list that holds no message sent in
+	 * regions.
+	 */
+	private static final int NO_REGION_ID = Integer.MIN_VALUE;
+	/**
+	 * Marks a slot of the snapshot list that holds no complete message.
+	 */
+	private static final int NO_SNAPSHOT_ID = Integer.MIN_VALUE;
 	private final Kryo kryoSerializer;
 	private final Class<T> cls;
 	private final ByteBuffer[] snapshots;
+	/**
+	 * The id of the message each slot of the snapshot list holds or
+	 * {@link #NO_SNAPSHOT_ID}. Deltas based on other messages are dropped.
+	 */
+	private final int[] snapshotIds;
 	private final BiConsumerMultiplexer<Connection, T> listeners;
+	/**
+	 * Reused to decode the received messages.
+	 */
+	private final Input input = new Input();
+	private InPlaceDeserializer<T> inPlaceDeserializer;
+	/**
+	 * The instances the messages are decoded into, if in-place decoding is
+	 * enabled. They are used alternately.
+	 */
+	private T[] decodedMessages;
+	private int decodedIndex;
+	/**
+	 * Decompresses the compressed payloads.
+	 */
+	private final Inflater inflater = new Inflater();
+	/**
+	 * @see #setCompressionDictionary(byte[])
+	 */
+	private byte[] compressionDictionary;
+	private final FragmentAssembler fragmentAssembler = new FragmentAssembler(
+			PARTIAL_MESSAGE_CAPACITY, MAX_FRAGMENTED_MESSAGE_LENGTH);
+	/**
+	 * The id of the message sent in regions per slot of the snapshot list or
+	 * {@link #NO_REGION_ID}.
+	 */
+	private final int[] regionIds;
+	/**
+	 * The regions of each slot that were received.
+	 */
+	private final boolean[][] receivedRegions;
+	private final int[] missingRegions;
 	/**
 	 * Position in cyclic array.
 	 * 
 	 * @see Utils#getIndexForPos(int, short)
 	 */
 	private short curPos;
+	/**
+	 * Whether a resync was requested and no message could be decoded since.
+	 * The deltas that are already on their way fail as well, so only one
+	 * request is sent.
+	 * 
+	 * @see #requestResync(Connection, short, short)
+	 */
+	private boolean resyncRequested;
+	/**
+	 * The {@linkplain AckHistory packed} id of the newest received message
+	 * and the bitmask of the messages received before it. Is only valid once
+	 * a message was received. The acknowledgment state is guarded by
+	 * {@link #ackLock}, as it may be polled by the application's thread.
+	 */
+	private long ackHistory;
+	private final Object ackLock = new Object();
+	private boolean anyReceived;
+	/**
+	 * The number of received messages that were not acknowledged yet.
+	 */
+	private int pendingAcks;
+	/**
+	 * The {@link System#nanoTime()} the last acknowledgment of messages or
+	 * regions was sent at.
+	 */
+	private long lastAckTime;
+	/**
+	 * @see #setAckInterval(int, long)
+	 */
+	private int ackPacketInterval = 1;
+	private long ackTimeInterval;
+	/**
+	 * @see #setPiggybackAcks(boolean)
+	 */
+	private boolean piggybackAcks;
+	/**
+	 * The id of the message whose regions are acknowledged next or
+	 * {@link #NO_REGION_ID}. The received regions of one message are
+	 * collected and acknowledged together.
+	 */
+	private int pendingRegionId = NO_REGION_ID;
+	private int pendingRegionCount;
+	/**
+	 * The bitmask of the received regions of {@link #pendingRegionId}.
+	 * 
+	 * @see RegionAckMessage#getReceivedRegions()
+	 */
+	private byte[] pendingRegions = new byte[0];
+	/**
+	 * Whether all regions of {@link #pendingRegionId} were received.
+	 */
+	private boolean pendingRegionComplete;
+	/**
+	 * The number of messages sent in regions whose acknowledgment is due,
+	 * because they were completed or superseded, but was not sent yet.
+	 */
+	private int pendingRegionAcks;
 
 	public ClientDiffHandler(Client client, Class<T> cls,
 			short snapshotHistoryCount) {
@@ -65,17 +194,68 @@ public class ClientDiffHandler<T> {
 
 		listeners = new BiConsumerMultiplexer<>();
 		snapshots = new ByteBuffer[snapshotHistoryCount];
+		snapshotIds = new int[snapshotHistoryCount];
+		Arrays.fill(snapshotIds, NO_SNAPSHOT_ID);
+		regionIds = new int[snapshotHistoryCount];
+		Arrays.fill(regionIds, NO_REGION_ID);
+		receivedRegions = new boolean[snapshotHistoryCount][];
+		missingRegions = new int[snapshotHistoryCount];
 
 		client.addListener(new Listener() { // don't use a TypeListener for
 											// performance reasons
 			@Override
 			public void received(Connection connection, Object object) {
-				if (object instanceof PayloadMessage)
+				if (object instanceof PayloadMessage) {
 					processPackage(connection, (PayloadMessage) object);
+					free((PayloadMessage) object);
+				} else if (object instanceof FragmentMessage) {
+					processFragment(connection, (FragmentMessage) object);
+				} else if (object instanceof RegionMessage) {
+					processRegion(connection, (RegionMessage) object);
+					free((RegionMessage) object);
+				} else if (object instanceof RegionBatchMessage) {
+					RegionBatchMessage batch = (RegionBatchMessage) object;
+
+					for (RegionMessage region : batch.getRegions()) {
+						processRegion(connection, region);
+						free(region);
+					}
+					RegionBatchMessage.POOL.free(batch);
+				}
 			}
 		});
 	}
 
+	/**
+	 * Gives a received message and its arrays back to the pools.
+	 */
+	private void free(PayloadMessage msg) {
+		if (msg.getPayloadMessage() instanceof CompressedMessage) {
+			CompressedMessage compressed = (CompressedMessage) msg
+					.getPayloadMessage();
+
+			BufferPool.DEFAULT.freeByteArray(compressed.getBytes());
+			CompressedMessage.POOL.free(compressed);
+		} else if (msg.getPayloadMessage() instanceof DiffMessage) {
+			free((DiffMessage) msg.getPayloadMessage());
+		}
+		PayloadMessage.POOL.free(msg);
+	}
+
+	private static void free(RegionMessage msg) {
+		if (msg.getDelta() != null)
+			free(msg.getDelta());
+		BufferPool.DEFAULT.freeByteArray(msg.getBytes());
+		RegionMessage.POOL.free(msg);
+	}
+
+	private static void free(DiffMessage diffMessage) {
+		BufferPool.DEFAULT.freeByteArray(diffMessage.getFlags());
+		BufferPool.DEFAULT.freeIntArray(diffMessage.getData());
+		BufferPool.DEFAULT.freeByteArray(diffMessage.getInstructions());
+		DiffMessage.POOL.free(diffMessage);
+	}
+
 	public void addListener(BiConsumer<Connection, T> listener) {
 		listeners.addBiConsumer(listener);
 	}
@@ -84,41 +264,322 @@ public class ClientDiffHandler<T> {
 		listeners.removeBiConsumer(listener);
 	}
 
+	/**
+	 * Enables decoding the received messages into reused instances instead of
+	 * creating a new object for every message. Two instances are used
+	 * alternately, so a message passed to the listeners stays valid until the
+	 * next-but-one message arrives. Listeners that need a message for longer
+	 * have to copy it. Received messages have to be exactly of type
+	 * {@code T}; others cause a {@link KryoException}.
+	 * 
+	 * @param inPlaceDeserializer
+	 *            The deserializer or <code>null</code> to create a new object
+	 *            for every message, which is the default.
+	 */
+	@SuppressWarnings("unchecked")
+	public void setInPlaceDeserializer(
+			InPlaceDeserializer<T> inPlaceDeserializer) {
+		this.inPlaceDeserializer = inPlaceDeserializer;
+
+		if (inPlaceDeserializer == null) {
+			decodedMessages = null;
+		} else {
+			decodedMessages = (T[]) new Object[] {
+					inPlaceDeserializer.create(),
+					inPlaceDeserializer.create() };
+		}
+	}
+
+	/**
+	 * Sets the preset dictionary of the compressed payloads. It has to be the
+	 * same as the {@linkplain ServerDiffHandler#setCompressionDictionary(byte[])
+	 * server's}.
+	 * 
+	 * @param dictionary
+	 *            The dictionary or <code>null</code>, which is the default.
+	 *            Must not be changed afterwards.
+	 */
+	public void setCompressionDictionary(byte[] dictionary) {
+		this.compressionDictionary = dictionary;
+	}
+
+	/**
+	 * Sets how often acknowledgments are sent. As every acknowledgment
+	 * contains the history of the received messages, it is enough to send one
+	 * for multiple messages; the server then just bases its deltas on older
+	 * messages in the meantime. The same applies to the
+	 * {@link RegionAckMessage}s of messages sent in regions, which count as
+	 * received once all of their regions arrived.
+	 * 
+	 * @param packets
+	 *            An acknowledgment is sent once this many messages were
+	 *            received since the last one. Is 1 by default, i.e. every
+	 *            message is acknowledged.
+	 * @param millis
+	 *            An acknowledgment is also sent for a message received this
+	 *            many milliseconds after the last one, regardless of the
+	 *            number of messages. Can be 0 to only count the messages,
+	 *            which is the default.
+	 * @see #sendPendingAck(Connection)
+	 */
+	public void setAckInterval(int packets, long millis) {
+		Preconditions.checkArgument(packets > 0);
+		Preconditions.checkArgument(millis >= 0);
+
+		this.ackPacketInterval = packets;
+		this.ackTimeInterval = TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	/**
+	 * Sends the acknowledgments of the received messages and regions right
+	 * away, if any of them was not acknowledged yet. Can be used to flush the
+	 * acknowledgments if they are {@linkplain #setAckInterval(int, long)
+	 * coalesced} and no more messages arrive.
+	 * 
+	 * @param con
+	 *            The connection to the server
+	 */
+	public void sendPendingAck(Connection con) {
+		AckMessage ack = pollPendingAck();
+		if (ack != null) {
+			con.sendUDP(ack);
+			AckMessage.POOL.free(ack);
+		}
+
+		sendRegionAck(con, pollPendingRegionAck());
+	}
+
+	/**
+	 * Disables sending {@link AckMessage}s and {@link RegionAckMessage}s. The
+	 * application instead {@linkplain #pollPendingAck() polls} the
+	 * acknowledgments and embeds them in the messages it sends to the server
+	 * anyway, e.g. the input commands, which saves a datagram per
+	 * acknowledgment. The server has to
+	 * {@linkplain ServerDiffHandler#registerAck(Connection, short, int)
+	 * register} them. If the server
+	 * {@linkplain ServerDiffHandler#setRegionSize(int) splits messages into
+	 * regions}, the acknowledgments of the regions have to be
+	 * {@linkplain #pollPendingRegionAck() polled} and
+	 * {@linkplain ServerDiffHandler#registerRegionAck(Connection, RegionAckMessage)
+	 * registered} as well.
+	 * 
+	 * @param piggybackAcks
+	 *            Whether the acknowledgments are sent by the application. Is
+	 *            <code>false</code> by default.
+	 */
+	public void setPiggybackAcks(boolean piggybackAcks) {
+		this.piggybackAcks = piggybackAcks;
+	}
+
+	/**
+	 * Returns the acknowledgment of the received messages, if any of them was
+	 * not acknowledged yet, and counts it as sent. It is meant to be
+	 * {@linkplain #setPiggybackAcks(boolean) embedded} in an application
+	 * message. Can be called from any thread.
+	 * 
+	 * @return An acknowledgment obtained from the pool, which can be given
+	 *         back once it was sent, or <code>null</code>.
+	 */
+	public AckMessage pollPendingAck() {
+		long history;
+
+		synchronized (ackLock) {
+			if (pendingAcks == 0)
+				return null;
+
+			history = ackHistory;
+			pendingAcks = 0;
+			lastAckTime = System.nanoTime();
+		}
+
+		return AckMessage.POOL.obtain().set(AckHistory.getId(history),
+				AckHistory.getReceivedBits(history));
+	}
+
+	/**
+	 * Returns the acknowledgment of the regions of the newest message sent in
+	 * regions, if it was not acknowledged yet, and counts it as sent. It is
+	 * the counterpart of {@link #pollPendingAck()} for
+	 * {@linkplain ServerDiffHandler#setRegionSize(int) regions}. Can be
+	 * called from any thread.
+	 * 
+	 * @return An acknowledgment obtained from the pool, or
+	 *         <code>null</code>. Its bitmask is obtained from the
+	 *         {@linkplain BufferPool buffer pool}; both can be given back once
+	 *         it was sent.
+	 */
+	public RegionAckMessage pollPendingRegionAck() {
+		synchronized (ackLock) {
+			return pollRegionAck();
+		}
+	}
+
+	/**
+	 * Adds a received message to the history and sends an acknowledgment, if
+	 * it is due.
+	 */
+	private void acknowledge(Connection con, short id) {
+		boolean due;
+
+		synchronized (ackLock) {
+			ackHistory = anyReceived ? AckHistory.merge(ackHistory, id, 0)
+					: AckHistory.of(id, 0);
+			anyReceived = true;
+			pendingAcks++;
+
+			due = isAckDue(pendingAcks);
+		}
+
+		if (due)
+			sendPendingAck(con);
+	}
+
+	/**
+	 * @return Whether an acknowledgment has to be sent, if {@code pending}
+	 *         received messages were not acknowledged yet. Has to be called
+	 *         while holding {@link #ackLock}.
+	 */
+	private boolean isAckDue(int pending) {
+		return !piggybackAcks && (pending >= ackPacketInterval
+				|| (ackTimeInterval > 0 && System.nanoTime()
+						- lastAckTime >= ackTimeInterval));
+	}
+
 	/**
 	 * Applies the delta message to the old message to generate a new message of
-	 * type {@code T}.
+	 * type {@code T}. The new message is written to {@code target}, as long as
+	 * it is big enough; otherwise {@code target} is freed and a new buffer is
+	 * obtained from the pool.
 	 * 
 	 * @param oldMessage
 	 *            The old message
 	 * @param diffMessage
 	 *            The delta message
-	 * @return A new message of type <code>T</code> as a ByteBuffer.
+	 * @param target
+	 *            The buffer the message is written to. Can be
+	 *            <code>null</code> or the same buffer as {@code oldMessage};
+	 *            deltas of copy and insert instructions are never applied in
+	 *            place, though.
+	 * @return The buffer containing the new message of type <code>T</code>.
 	 */
-	private ByteBuffer mergeMessage(ByteBuffer oldMessage,
-			DiffMessage diffMessage) {
+	@VisibleForTesting
+	ByteBuffer mergeMessage(ByteBuffer oldMessage, DiffMessage diffMessage,
+			ByteBuffer target) {
+		if (diffMessage.getInstructions() != null)
+			return applyInstructions(oldMessage, diffMessage, target);
+
 		byte[] diffFlags = diffMessage.getFlags();
 		int[] diffData = diffMessage.getData();
-		int dataIndex = 0;
-
-		// Copy old message
-		ByteBuffer newBuffer = BufferPool.DEFAULT.obtainByteBuffer(
-				Math.max(oldMessage.remaining(), 8 * diffFlags.length * 4));
-		newBuffer.put(oldMessage);
-		newBuffer.position(0);
-
-		for (int i = 0; i < 8 * diffFlags.length; i++) {
-			if ((diffFlags[i / 8] & (1 << (i % 8))) != 0) {
-				newBuffer.putInt(i * 4, diffData[dataIndex]);
-				dataIndex++;
+		int blockSize = diffMessage.getBlockSize();
+		int oldSize = oldMessage.limit();
+		int newSize = Math.max(oldSize, 8 * diffFlags.length * blockSize);
+		ByteBuffer newBuffer = target;
+
+		if (newBuffer == null || newBuffer.capacity() < newSize) {
+			newBuffer = BufferPool.DEFAULT.obtainByteBuffer(newSize);
+		}
+
+		// Copy old message; the old message can be the base of further diffs,
+		// so its position stays untouched
+		if (newBuffer != oldMessage) {
+			System.arraycopy(oldMessage.array(), 0, newBuffer.array(), 0,
+					oldSize);
+		}
+		// The server treats the bytes after the end of a message as zeros
+		Arrays.fill(newBuffer.array(), oldSize, newSize, (byte) 0);
+		if (target != null && target != newBuffer) {
+			BufferPool.DEFAULT.freeByteBuffer(target);
+		}
+		newBuffer.clear();
+
+		// The new buffer holds the old message, which XORed data refers to
+		boolean xorData = diffMessage.isXorData();
+		if (blockSize == DiffMessage.DEFAULT_BLOCK_SIZE) {
+			int dataIndex = 0;
+			for (int i = 0; i < diffFlags.length; i++) {
+				int flags = diffFlags[i] & 0xFF;
+				while (flags != 0) {
+					int block = i * 8 + Integer.numberOfTrailingZeros(flags);
+					int value = diffData[dataIndex];
+					if (xorData)
+						value ^= newBuffer.getInt(block * 4);
+					newBuffer.putInt(block * 4, value);
+					dataIndex++;
+					flags &= flags - 1;
+				}
 			}
+		} else {
+			putBlocks(newBuffer.array(), diffFlags, diffData, blockSize,
+					xorData);
 		}
+		newBuffer.limit(newSize);
+
+		return newBuffer;
+	}
+
+	/**
+	 * Writes the changed blocks of any size to the array. The content of the
+	 * blocks is unpacked from the ints byte by byte.
+	 * 
+	 * @param xorData
+	 *            Whether the content is XORed with the one in the array
+	 */
+	private static void putBlocks(byte[] array, byte[] diffFlags,
+			int[] diffData, int blockSize, boolean xorData) {
+		int byteIndex = 0;
+		for (int i = 0; i < diffFlags.length; i++) {
+			int flags = diffFlags[i] & 0xFF;
+			while (flags != 0) {
+				int block = i * 8 + Integer.numberOfTrailingZeros(flags);
+				int offset = block * blockSize;
+
+				for (int j = 0; j < blockSize; j++, byteIndex++) {
+					int shift = 24 - ((byteIndex & 3) << 3);
+					int data = diffData[byteIndex >>> 2] >>> shift;
+					array[offset + j] = (byte) (xorData
+							? array[offset + j] ^ data
+							: data);
+				}
+				flags &= flags - 1;
+			}
+		}
+	}
+
+	/**
+	 * Applies the copy and insert instructions of a delta message to the old
+	 * message. The instructions copy from the old message, so it is never used
+	 * as the target.
+	 * 
+	 * @see #mergeMessage(ByteBuffer, DiffMessage, ByteBuffer)
+	 */
+	private ByteBuffer applyInstructions(ByteBuffer oldMessage,
+			DiffMessage diffMessage, ByteBuffer target) {
+		input.setBuffer(diffMessage.getInstructions(), 0,
+				diffMessage.getInstructionsLength());
+		int newSize = RollingHashDelta.readSize(input);
+		ByteBuffer newBuffer = target;
+
+		if (newBuffer == null || newBuffer == oldMessage
+				|| newBuffer.capacity() < newSize) {
+			newBuffer = BufferPool.DEFAULT.obtainByteBuffer(newSize);
+		}
+
+		RollingHashDelta.apply(input, oldMessage.array(), oldMessage.limit(),
+				newBuffer.array(), newSize);
+		if (target != null && target != newBuffer) {
+			BufferPool.DEFAULT.freeByteBuffer(target);
+		}
+		newBuffer.clear();
+		newBuffer.limit(newSize);
 
 		return newBuffer;
 	}
 
 	/**
 	 * Processes the arrival of either a message of type {@code T} or a delta
-	 * message. Sends an acknowledgment to the server.
+	 * message. {@linkplain #setAckInterval(int, long) Sends an
+	 * acknowledgment} to the server. A delta based on a message that is not
+	 * held is dropped and a {@link ResyncMessage} is sent instead.
 	 */
 	@SuppressWarnings("unchecked")
 	@VisibleForTesting
@@ -138,16 +599,22 @@ public class ClientDiffHandler<T> {
 
 		/* Message is up to date */
 		int index = Utils.getIndexForPos(snapshots.length, msg.getId());
+		Object payload = msg.getPayloadMessage();
+		// The slot is overwritten
+		snapshotIds[index] = NO_SNAPSHOT_ID;
 
-		if (cls.isInstance(msg.getPayloadMessage())) {
-			/* > Received a full message */
-			BufferPool.DEFAULT.freeByteBuffer(snapshots[index]);
+		if (payload instanceof CompressedMessage) {
+			/* > Received a compressed message */
+			payload = decompress((CompressedMessage) payload, index);
+		}
 
-			snapshots[index] = Utils.messageToBuffer(
-					(T) msg.getPayloadMessage(), kryoSerializer);
-		} else if (msg.getPayloadMessage() instanceof DiffMessage) {
+		if (cls.isInstance(payload)) {
+			/* > Received a full message */
+			snapshots[index] = Utils.messageToBuffer(payload,
+					snapshots[index], kryoSerializer);
+		} else if (payload instanceof DiffMessage) {
 			/* > Received a diff message */
-			DiffMessage diffMessage = (DiffMessage) msg.getPayloadMessage();
+			DiffMessage diffMessage = (DiffMessage) payload;
 
 			if (LOG.isLoggable(Level.FINE)) {
 				LOG.log(Level.FINE,
@@ -157,20 +624,431 @@ public class ClientDiffHandler<T> {
 
 			int oldIndex = Utils.getIndexForPos(snapshots.length,
 					diffMessage.getMessageId());
-			ByteBuffer mergedMessage = mergeMessage(snapshots[oldIndex],
-					diffMessage);
+			boolean baselineHeld = snapshotIds[oldIndex] == diffMessage
+					.getMessageId();
+			if (baselineHeld) {
+				snapshots[index] = mergeMessage(snapshots[oldIndex],
+						diffMessage, snapshots[index]);
+			}
+
+			short baselineId = diffMessage.getMessageId();
+
+			// A decompressed delta is not part of the received message
+			if (diffMessage != msg.getPayloadMessage())
+				free(diffMessage);
 
-			BufferPool.DEFAULT.freeByteBuffer(snapshots[index]);
-			snapshots[index] = mergedMessage;
+			if (!baselineHeld) {
+				requestResync(con, msg.getId(), baselineId);
+				return;
+			}
 		}
+		snapshotIds[index] = msg.getId();
+		resyncRequested = false;
 
 		/* Send an ACK back */
-		con.sendUDP(AckMessage.POOL.obtain().set(msg.getId()));
+		acknowledge(con, msg.getId());
 
 		/* Broadcast received changes to listeners */
 		curPos = msg.getId();
 
-		Input input = new Input(snapshots[index].array());
-		listeners.dispatch(con, (T) kryoSerializer.readClassAndObject(input));
+		input.setBuffer(snapshots[index].array(), 0, snapshots[index].limit());
+		listeners.dispatch(con, decode());
+	}
+
+	/**
+	 * Requests a full message from the server, because a delta based on a
+	 * message that is not held was received. Only one request is sent until
+	 * a message can be decoded again; the server answers it with a full
+	 * message, or at the latest once the acknowledged messages are too old.
+	 */
+	private void requestResync(Connection con, short id, short baselineId) {
+		if (resyncRequested) {
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.log(Level.FINE, "Discarding message " + id
+						+ "; its baseline " + baselineId
+						+ " is not available. A resync is already requested");
+			}
+			return;
+		}
+		resyncRequested = true;
+
+		if (LOG.isLoggable(Level.INFO)) {
+			LOG.log(Level.INFO, "Discarding message " + id
+					+ "; its baseline " + baselineId
+					+ " is not available. Requesting a resync");
+		}
+
+		ResyncMessage resync = ResyncMessage.POOL.obtain().set(id,
+				baselineId);
+		con.sendUDP(resync);
+		ResyncMessage.POOL.free(resync);
+	}
+
+	/**
+	 * Processes the arrival of a fragment of a payload message. Once all
+	 * fragments of the message were received, it is
+	 * {@linkplain #processPackage(Connection, PayloadMessage) processed}. The
+	 * fragment is given back to the pool.
+	 */
+	@VisibleForTesting
+	void processFragment(Connection con, FragmentMessage fragment) {
+		short messageId = fragment.getMessageId();
+		int length = fragment.getTotalLength();
+		byte[] bytes;
+		try {
+			bytes = fragmentAssembler.add(fragment, curPos);
+		} finally {
+			BufferPool.DEFAULT.freeByteArray(fragment.getBytes());
+			FragmentMessage.POOL.free(fragment);
+		}
+		if (bytes == null)
+			return;
+
+		PayloadMessage msg;
+		try {
+			input.setBuffer(bytes, 0, length);
+			msg = PayloadMessage.POOL.obtain().set(messageId,
+					kryoSerializer.readClassAndObject(input));
+		} finally {
+			BufferPool.DEFAULT.freeByteArray(bytes);
+		}
+
+		processPackage(con, msg);
+		free(msg);
+	}
+
+	/**
+	 * Processes the arrival of a region of a message. The region is decoded
+	 * into the snapshot list and acknowledged; once all regions of the message
+	 * were received, the message is passed to the listeners.
+	 * <p>
+	 * A region whose baseline is not available, because that region of the
+	 * baseline was never received, is dropped and a
+	 * {@linkplain #requestResync(Connection, short, short) resync} is
+	 * requested. The server then sends the next message as full regions.
+	 */
+	@VisibleForTesting
+	void processRegion(Connection con, RegionMessage msg) {
+		short id = msg.getId();
+		int index = Utils.getIndexForPos(snapshots.length, id);
+
+		if (regionIds[index] != id) {
+			if (regionIds[index] != NO_REGION_ID
+					&& (short) (id - regionIds[index]) < 0) {
+				LOG.log(Level.FINE,
+						"Discarding a region of a message that is too old");
+				return;
+			}
+			startRegions(index, id, msg);
+		}
+
+		ByteBuffer buffer = snapshots[index];
+		int region = msg.getRegion();
+		if (buffer.limit() != msg.getSize()
+				|| region >= receivedRegions[index].length) {
+			LOG.log(Level.WARNING,
+					"Discarding a region that does not match its message");
+			return;
+		}
+		if (receivedRegions[index][region])
+			return;
+
+		int offset = region * msg.getRegionSize();
+		if (msg.getDelta() == null) {
+			System.arraycopy(msg.getBytes(), msg.getOffset(), buffer.array(),
+					offset, msg.getLength());
+		} else if (!mergeRegion(msg, buffer.array(), offset)) {
+			requestResync(con, id, msg.getDelta().getMessageId());
+			return;
+		}
+		receivedRegions[index][region] = true;
+		missingRegions[index]--;
+		if (missingRegions[index] == 0) {
+			snapshotIds[index] = id;
+			resyncRequested = false;
+		}
+
+		/* Send an ACK back, once per message */
+		acknowledgeRegion(con, id, region, receivedRegions[index],
+				missingRegions[index] == 0);
+
+		if (missingRegions[index] > 0 || (short) (id - curPos) < 0)
+			return;
+
+		/* Broadcast received changes to listeners */
+		curPos = id;
+
+		input.setBuffer(buffer.array(), 0, buffer.limit());
+		listeners.dispatch(con, decode());
+	}
+
+	/**
+	 * Adds a received region to the pending acknowledgment of its message.
+	 * The message counts as received for the
+	 * {@linkplain #setAckInterval(int, long) acknowledgment interval} once all
+	 * of its regions were received or a region of another message arrives;
+	 * the acknowledgment is then sent, if it is due. An acknowledgment that is
+	 * not due is replaced by the one of the next message.
+	 */
+	private void acknowledgeRegion(Connection con, short id, int region,
+			boolean[] received, boolean complete) {
+		RegionAckMessage stale = null;
+		RegionAckMessage ack = null;
+
+		synchronized (ackLock) {
+			if (pendingRegionId != id) {
+				if (pendingRegionId != NO_REGION_ID) {
+					if (!pendingRegionComplete)
+						pendingRegionAcks++;
+					if (isAckDue(pendingRegionAcks))
+						stale = pollRegionAck();
+				}
+				startRegionAck(id, received);
+			}
+			pendingRegions[region >>> 3] |= 1 << (region & 7);
+
+			if (complete) {
+				pendingRegionComplete = true;
+				pendingRegionAcks++;
+
+				if (isAckDue(pendingRegionAcks))
+					ack = pollRegionAck();
+			}
+		}
+
+		sendRegionAck(con, stale);
+		sendRegionAck(con, ack);
+	}
+
+	/**
+	 * Starts the pending acknowledgment of the regions of a message with all
+	 * regions that were received so far. Has to be called while holding
+	 * {@link #ackLock}.
+	 */
+	private void startRegionAck(short id, boolean[] received) {
+		int length = RegionAckMessage.getLength(received.length);
+		if (pendingRegions.length < length)
+			pendingRegions = new byte[length];
+		Arrays.fill(pendingRegions, 0, length, (byte) 0);
+
+		for (int i = 0; i < received.length; i++) {
+			if (received[i])
+				pendingRegions[i >>> 3] |= 1 << (i & 7);
+		}
+		pendingRegionId = id;
+		pendingRegionCount = received.length;
+		pendingRegionComplete = false;
+	}
+
+	/**
+	 * @return The pending acknowledgment of regions, obtained from the pool,
+	 *         or <code>null</code>. Has to be called while holding
+	 *         {@link #ackLock}.
+	 */
+	private RegionAckMessage pollRegionAck() {
+		if (pendingRegionId == NO_REGION_ID)
+			return null;
+
+		int length = RegionAckMessage.getLength(pendingRegionCount);
+		byte[] bytes = BufferPool.DEFAULT.obtainByteArray(length);
+		System.arraycopy(pendingRegions, 0, bytes, 0, length);
+		RegionAckMessage ack = RegionAckMessage.POOL.obtain()
+				.set((short) pendingRegionId, pendingRegionCount, bytes);
+		pendingRegionId = NO_REGION_ID;
+		pendingRegionAcks = 0;
+		lastAckTime = System.nanoTime();
+
+		return ack;
+	}
+
+	private static void sendRegionAck(Connection con,
+			RegionAckMessage ack) {
+		if (ack == null)
+			return;
+
+		con.sendUDP(ack);
+		BufferPool.DEFAULT.freeByteArray(ack.getReceivedRegions());
+		RegionAckMessage.POOL.free(ack);
+	}
+
+	/**
+	 * Prepares a slot of the snapshot list for the regions of a message.
+	 */
+	private void startRegions(int index, short id, RegionMessage msg) {
+		int size = msg.getSize();
+		int count = Math.max(1,
+				(size + msg.getRegionSize() - 1) / msg.getRegionSize());
+
+		ByteBuffer buffer = snapshots[index];
+		if (buffer == null || buffer.capacity() < size) {
+			BufferPool.DEFAULT.freeByteBuffer(buffer);
+			buffer = BufferPool.DEFAULT.obtainByteBuffer(size);
+		}
+		// The server treats the bytes after the end of a message as zeros
+		Arrays.fill(buffer.array(), size, buffer.capacity(), (byte) 0);
+		buffer.clear();
+		buffer.limit(size);
+		snapshots[index] = buffer;
+
+		if (receivedRegions[index] == null
+				|| receivedRegions[index].length != count) {
+			receivedRegions[index] = new boolean[count];
+		} else {
+			Arrays.fill(receivedRegions[index], false);
+		}
+		missingRegions[index] = count;
+		regionIds[index] = id;
+		snapshotIds[index] = NO_SNAPSHOT_ID;
+	}
+
+	/**
+	 * Applies the delta of a region to the same region of its baseline and
+	 * writes the result to the array.
+	 * 
+	 * @return Whether the baseline region was available.
+	 */
+	private boolean mergeRegion(RegionMessage msg, byte[] target,
+			int offset) {
+		DiffMessage delta = msg.getDelta();
+		int region = msg.getRegion();
+		int baseIndex = Utils.getIndexForPos(snapshots.length,
+				delta.getMessageId());
+
+		if (regionIds[baseIndex] != delta.getMessageId()
+				|| region >= receivedRegions[baseIndex].length
+				|| !receivedRegions[baseIndex][region]) {
+			LOG.log(Level.FINE,
+					"Discarding a region whose baseline is not available");
+			return false;
+		}
+
+		// The region is copied, as the server compares it as if it was
+		// followed by zeros
+		int baseLength = RegionMessage.getRegionLength(
+				snapshots[baseIndex].limit(), msg.getRegionSize(), region);
+		ByteBuffer baseline = BufferPool.DEFAULT.obtainByteBuffer(baseLength);
+		System.arraycopy(snapshots[baseIndex].array(),
+				region * msg.getRegionSize(), baseline.array(), 0,
+				baseLength);
+		Arrays.fill(baseline.array(), baseLength, baseline.capacity(),
+				(byte) 0);
+		baseline.clear();
+		baseline.limit(baseLength);
+
+		ByteBuffer merged = mergeMessage(baseline, delta, null);
+		try {
+			if (merged.limit() < msg.getLength())
+				throw new KryoException("The delta of region " + region
+						+ " is too short");
+
+			System.arraycopy(merged.array(), 0, target, offset,
+					msg.getLength());
+		} finally {
+			BufferPool.DEFAULT.freeByteBuffer(baseline);
+			BufferPool.DEFAULT.freeByteBuffer(merged);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Decompresses a payload. A full message is decompressed right into the
+	 * snapshot list, as it is already serialized.
+	 * 
+	 * @param index
+	 *            The index of the message in the snapshot list
+	 * @return The decompressed delta message, obtained from the pool, or
+	 *         <code>null</code> for a full message.
+	 */
+	private DiffMessage decompress(CompressedMessage compressed, int index) {
+		int length = compressed.getUncompressedLength();
+
+		if (!compressed.isDelta()) {
+			ByteBuffer buffer = snapshots[index];
+			if (buffer == null || buffer.capacity() < length) {
+				BufferPool.DEFAULT.freeByteBuffer(buffer);
+				buffer = BufferPool.DEFAULT.obtainByteBuffer(length);
+			}
+
+			inflate(compressed, buffer.array(), length);
+			// The server treats the bytes after the end of a message as zeros
+			Arrays.fill(buffer.array(), length, buffer.capacity(), (byte) 0);
+			buffer.clear();
+			buffer.limit(length);
+			snapshots[index] = buffer;
+
+			return null;
+		}
+
+		byte[] bytes = BufferPool.DEFAULT.obtainByteArray(length);
+		try {
+			inflate(compressed, bytes, length);
+			input.setBuffer(bytes, 0, length);
+
+			return DiffMessageSerializer.readFlagsAndData(input,
+					compressed.getMessageId());
+		} finally {
+			BufferPool.DEFAULT.freeByteArray(bytes);
+		}
+	}
+
+	private void inflate(CompressedMessage compressed, byte[] target,
+			int length) {
+		inflater.reset();
+		inflater.setInput(compressed.getBytes(), 0, compressed.getLength());
+
+		try {
+			int position = 0;
+			while (!inflater.finished()) {
+				int read = inflater.inflate(target, position,
+						length - position);
+				position += read;
+
+				if (read == 0 && inflater.needsDictionary()) {
+					if (compressionDictionary == null)
+						throw new KryoException(
+								"The payload was compressed with a dictionary");
+					inflater.setDictionary(compressionDictionary);
+				} else if (read == 0) {
+					throw new KryoException(
+							"The compressed payload is incomplete");
+				}
+			}
+
+			if (position != length)
+				throw new KryoException("The compressed payload has "
+						+ position + " instead of " + length + " bytes");
+		} catch (DataFormatException e) {
+			throw new KryoException("Invalid compressed payload", e);
+		}
+	}
+
+	/**
+	 * Decodes the message in {@link #input}, either into one of the reused
+	 * instances or into a new object.
+	 */
+	@SuppressWarnings("unchecked")
+	private T decode() {
+		if (inPlaceDeserializer == null)
+			return (T) kryoSerializer.readClassAndObject(input);
+
+		Registration registration = kryoSerializer.readClass(input);
+		// The in-place deserializer only knows the format of T itself
+		if (registration == null || registration.getType() != cls)
+			throw new KryoException("Expected a message of " + cls
+					+ " to decode in place, but got "
+					+ (registration == null ? "null"
+							: registration.getType()));
+		// Skip the reference marker written by Kryo#writeClassAndObject()
+		if (kryoSerializer.getReferences() && kryoSerializer
+				.getReferenceResolver().useReferences(registration.getType())) {
+			input.readVarInt(true);
+		}
+
+		decodedIndex ^= 1;
+		T message = decodedMessages[decodedIndex];
+		inPlaceDeserializer.readInto(kryoSerializer, input, message);
+
+		return message;
 	}
 }
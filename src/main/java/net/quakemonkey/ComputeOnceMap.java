@@ -0,0 +1,102 @@
+package net.quakemonkey;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+import com.google.common.base.Throwables;
+
+/**
+ * A concurrent map whose values are computed once per key. Unlike
+ * {@link ConcurrentHashMap#computeIfAbsent(Object, Function)}, the value is
+ * computed outside of the map: only a placeholder is inserted atomically, so
+ * threads computing the values of other keys are never blocked, even if their
+ * keys share a bin. Threads asking for a key whose value is being computed
+ * wait for it.
+ *
+ * @param <K>
+ *            The type of the keys
+ * @param <V>
+ *            The type of the values; they must not be <code>null</code>
+ * @see DeltaCache
+ * @see PayloadCompressor
+ */
+final class ComputeOnceMap<K, V> {
+	private final ConcurrentMap<K, CompletableFuture<V>> map = new ConcurrentHashMap<>();
+
+	/**
+	 * @return The value of the key, after waiting for its computation, or
+	 *         <code>null</code> if it was never requested.
+	 */
+	V get(Object key) {
+		CompletableFuture<V> future = map.get(key);
+
+		return future == null ? null : join(future);
+	}
+
+	/**
+	 * Returns the value of the key. If it was not requested yet, it is
+	 * computed by the calling thread. If the computation fails, the exception
+	 * is thrown to all threads asking for the key.
+	 *
+	 * @param key
+	 *            The key, which is stored in the map
+	 * @param function
+	 *            Computes the value of the key
+	 * @return The value.
+	 */
+	V computeIfAbsent(K key, Function<? super K, ? extends V> function) {
+		CompletableFuture<V> future = map.get(key);
+
+		if (future == null) {
+			CompletableFuture<V> created = new CompletableFuture<>();
+			future = map.putIfAbsent(key, created);
+
+			if (future == null) {
+				V value;
+				try {
+					value = function.apply(key);
+				} catch (RuntimeException | Error e) {
+					created.completeExceptionally(e);
+					throw e;
+				}
+				created.complete(value);
+
+				return value;
+			}
+		}
+
+		return join(future);
+	}
+
+	/**
+	 * Removes all values and returns the ones that were computed without
+	 * failing. Must not be called concurrently with the other methods.
+	 *
+	 * @return The computed values.
+	 */
+	List<V> clear() {
+		List<V> values = new ArrayList<>(map.size());
+
+		for (CompletableFuture<V> future : map.values()) {
+			if (!future.isCompletedExceptionally())
+				values.add(future.getNow(null));
+		}
+		map.clear();
+
+		return values;
+	}
+
+	private static <V> V join(CompletableFuture<V> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			Throwables.throwIfUnchecked(e.getCause());
+			throw e;
+		}
+	}
+}
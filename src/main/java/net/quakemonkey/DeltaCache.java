@@ -0,0 +1,170 @@
+package net.quakemonkey;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import com.esotericsoftware.kryo.io.Output;
+
+import net.quakemonkey.messages.DiffMessage;
+import net.quakemonkey.messages.DiffMessageSerializer;
+import net.quakemonkey.utils.pool.BufferPool;
+
+/**
+ * Caches the delta between two {@linkplain Snapshot snapshots} for the
+ * duration of one dispatch. Connections that acknowledged the same snapshot
+ * can therefore reuse the delta computed for the first of them.
+ * <p>
+ * The cache owns the flags and data arrays of the cached deltas; they are
+ * given back to the pool when the cache is {@linkplain #clear() cleared}. If
+ * {@linkplain #setPreEncoding(boolean) pre-encoding} is enabled, the flags and
+ * data of each delta are also serialized once, so sending the delta to another
+ * client only requires copying those bytes.
+ * <p>
+ * The cache can be used by multiple threads concurrently; each delta is still
+ * only computed once. Deltas are computed outside of the map, so computing one
+ * delta does not block the threads looking up or computing the others.
+ *
+ * @see ServerDiffHandler
+ */
+class DeltaCache {
+	/**
+	 * Marks a pair of snapshots for which the full message is smaller than the
+	 * delta.
+	 */
+	private static final DiffMessage FULL_MESSAGE = new DiffMessage();
+
+	private final ComputeOnceMap<Key, DiffMessage> deltas = new ComputeOnceMap<>();
+	private final ThreadLocal<Key> lookupKey = ThreadLocal.withInitial(Key::new);
+	private final ThreadLocal<Output> output = ThreadLocal
+			.withInitial(Output::new);
+	private final LongAdder lookups = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private volatile boolean preEncoding;
+
+	/**
+	 * Returns the delta between both snapshots. If it was not computed yet, it
+	 * is computed by {@code generator} and added to the cache. If another
+	 * thread is computing it, this waits for its result. Each call is counted
+	 * as either a cache hit or a cache miss.
+	 *
+	 * @param baseline
+	 *            The last snapshot acknowledged by the client
+	 * @param target
+	 *            The snapshot to send
+	 * @param baselineId
+	 *            The id of the baseline message
+	 * @param generator
+	 *            Computes the delta message. The cache takes ownership of the
+	 *            arrays of the delta.
+	 * @return the cached delta or <code>null</code> if the full message is
+	 *         smaller than the delta.
+	 */
+	DiffMessage get(Snapshot baseline, Snapshot target, short baselineId,
+			DeltaGenerator generator) {
+		lookups.increment();
+
+		DiffMessage delta = deltas.get(lookupKey.get().set(baseline, target));
+		if (delta == null) {
+			delta = deltas.computeIfAbsent(new Key().set(baseline, target),
+					key -> {
+						misses.increment();
+						return encode(generator.generateDelta(target, baseline,
+								baselineId));
+					});
+		}
+
+		return delta == FULL_MESSAGE ? null : delta;
+	}
+
+	private DiffMessage encode(DiffMessage delta) {
+		if (delta == null)
+			return FULL_MESSAGE;
+
+		if (preEncoding) {
+			byte[] bytes = BufferPool.DEFAULT.obtainByteArray(
+					DiffMessageSerializer.getMaxFlagsAndDataLength(delta));
+			Output output = this.output.get();
+			output.setBuffer(bytes);
+
+			DiffMessageSerializer.writeFlagsAndData(output, delta);
+			delta.setEncodedFlagsAndData(bytes, output.position());
+		}
+
+		return delta;
+	}
+
+	/**
+	 * Removes all cached deltas and frees their arrays. Must not be called
+	 * concurrently with
+	 * {@link #get(Snapshot, Snapshot, short, DeltaGenerator)}.
+	 */
+	void clear() {
+		for (DiffMessage delta : deltas.clear()) {
+			if (delta != FULL_MESSAGE) {
+				BufferPool.DEFAULT.freeByteArray(delta.getFlags());
+				BufferPool.DEFAULT.freeIntArray(delta.getData());
+				BufferPool.DEFAULT.freeByteArray(delta.getInstructions());
+				BufferPool.DEFAULT.freeByteArray(delta.getEncodedFlagsAndData());
+				DiffMessage.POOL.free(delta);
+			}
+		}
+	}
+
+	/**
+	 * @param preEncoding
+	 *            Whether the flags and data of the cached deltas should be
+	 *            serialized once when they are added.
+	 */
+	void setPreEncoding(boolean preEncoding) {
+		this.preEncoding = preEncoding;
+	}
+
+	long getHits() {
+		return lookups.sum() - misses.sum();
+	}
+
+	long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Computes the delta between two snapshots.
+	 */
+	@FunctionalInterface
+	interface DeltaGenerator {
+		/**
+		 * @return The delta message or <code>null</code> if the full message
+		 *         should be sent.
+		 */
+		DiffMessage generateDelta(Snapshot snapshot, Snapshot previousSnapshot,
+				short diffToId);
+	}
+
+	/**
+	 * A key for a pair of snapshots. Snapshots are compared by reference.
+	 */
+	private static final class Key {
+		private Snapshot baseline;
+		private Snapshot target;
+
+		Key set(Snapshot baseline, Snapshot target) {
+			this.baseline = baseline;
+			this.target = target;
+
+			return this;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(baseline)
+					+ System.identityHashCode(target);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return baseline == other.baseline && target == other.target;
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package net.quakemonkey;
+
+import net.quakemonkey.utils.BlockComparison;
+import net.quakemonkey.utils.RollingHashDelta;
+
+/**
+ * The ways the server can compute the delta between two messages. Clients
+ * understand all of them, so the codec can be chosen freely by the server.
+ *
+ * @see ServerDiffHandler#setDeltaCodec(DeltaCodec)
+ */
+public enum DeltaCodec {
+	/**
+	 * Compares the blocks of four bytes at the same offsets via
+	 * {@link BlockComparison}. This is the fastest codec, but if the size of
+	 * a variable-length field changes, all following blocks differ.
+	 */
+	BLOCKS,
+	/**
+	 * Like {@link #BLOCKS}, but sends the XOR of the new and the old content
+	 * of the changed blocks, without its leading zero bytes. Suits values
+	 * that change only slightly, like moving positions or counters.
+	 */
+	XOR_BLOCKS,
+	/**
+	 * Finds unchanged regions, even if they were shifted, via
+	 * {@link RollingHashDelta}. Slower than {@link #BLOCKS}, but suited for
+	 * messages with strings or variable-length integers.
+	 */
+	ROLLING_HASH,
+	/**
+	 * Computes the deltas of all other codecs and sends the smallest one. The
+	 * blocks are only compared once for {@link #BLOCKS} and
+	 * {@link #XOR_BLOCKS}, as both deltas have the same flags.
+	 */
+	SMALLEST
+}
@@ -0,0 +1,99 @@
+package net.quakemonkey;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import net.quakemonkey.utils.BlockComparison;
+
+/**
+ * Counts how the deltas of a server were encoded. The counters can be updated
+ * by multiple threads concurrently.
+ *
+ * @see ServerDiffHandler
+ */
+class DeltaStatistics {
+	/**
+	 * The number of block deltas per {@linkplain BlockComparison#BLOCK_SIZES
+	 * block size}, by the index of the block size.
+	 */
+	private final LongAdder[] blockSizeCounts = new LongAdder[BlockComparison.BLOCK_SIZES.length];
+	private final LongAdder compressions = new LongAdder();
+	private final LongAdder uncompressedBytes = new LongAdder();
+	private final LongAdder compressedBytes = new LongAdder();
+	private final LongAdder compressionNanos = new LongAdder();
+
+	DeltaStatistics() {
+		for (int i = 0; i < blockSizeCounts.length; i++) {
+			blockSizeCounts[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Counts a computed block delta.
+	 *
+	 * @param blockSize
+	 *            The block size of the delta
+	 */
+	void recordBlockSize(int blockSize) {
+		blockSizeCounts[getIndex(blockSize)].increment();
+	}
+
+	/**
+	 * @return The number of computed block deltas with the given block size.
+	 */
+	long getBlockSizeCount(int blockSize) {
+		return blockSizeCounts[getIndex(blockSize)].sum();
+	}
+
+	/**
+	 * Counts a compressed payload.
+	 *
+	 * @param uncompressedLength
+	 *            The size of the payload in bytes
+	 * @param compressedLength
+	 *            The size after the compression or the size of the payload if
+	 *            the compression did not make it smaller
+	 * @param nanos
+	 *            The time the compression took
+	 */
+	void recordCompression(int uncompressedLength, int compressedLength,
+			long nanos) {
+		compressions.increment();
+		uncompressedBytes.add(uncompressedLength);
+		compressedBytes.add(compressedLength);
+		compressionNanos.add(nanos);
+	}
+
+	long getCompressionCount() {
+		return compressions.sum();
+	}
+
+	/**
+	 * @return The number of bytes after the compression divided by the number
+	 *         of bytes before it, or <code>1</code> if nothing was compressed.
+	 */
+	double getCompressionRatio() {
+		long uncompressed = uncompressedBytes.sum();
+
+		return uncompressed == 0 ? 1
+				: compressedBytes.sum() / (double) uncompressed;
+	}
+
+	/**
+	 * @return The average time a compression took in nanoseconds.
+	 */
+	double getAverageCompressionNanos() {
+		long count = compressions.sum();
+
+		return count == 0 ? 0 : compressionNanos.sum() / (double) count;
+	}
+
+	private static int getIndex(int blockSize) {
+		for (int i = 0; i < BlockComparison.BLOCK_SIZES.length; i++) {
+			if (BlockComparison.BLOCK_SIZES[i] == blockSize)
+				return i;
+		}
+
+		throw new IllegalArgumentException(
+				"Unsupported block size: " + blockSize);
+	}
+}
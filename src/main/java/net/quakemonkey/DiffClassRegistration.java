@@ -3,9 +3,21 @@ package net.quakemonkey;
 import com.esotericsoftware.kryo.Kryo;
 
 import net.quakemonkey.messages.AckMessage;
+import net.quakemonkey.messages.CompressedMessage;
+import net.quakemonkey.messages.CompressedMessageSerializer;
 import net.quakemonkey.messages.DiffMessage;
 import net.quakemonkey.messages.DiffMessageSerializer;
+import net.quakemonkey.messages.FragmentMessage;
+import net.quakemonkey.messages.FragmentMessageSerializer;
 import net.quakemonkey.messages.PayloadMessage;
+import net.quakemonkey.messages.PayloadMessageSerializer;
+import net.quakemonkey.messages.RegionAckMessage;
+import net.quakemonkey.messages.RegionAckMessageSerializer;
+import net.quakemonkey.messages.RegionBatchMessage;
+import net.quakemonkey.messages.RegionBatchMessageSerializer;
+import net.quakemonkey.messages.RegionMessage;
+import net.quakemonkey.messages.RegionMessageSerializer;
+import net.quakemonkey.messages.ResyncMessage;
 
 /**
  * Registers messages in the serializer that are required for the snapshot
@@ -33,6 +45,18 @@ public class DiffClassRegistration {
 	public static void registerClasses(Kryo kryoSerializer) {
 		kryoSerializer.register(DiffMessage.class, new DiffMessageSerializer());
 		kryoSerializer.register(AckMessage.class);
-		kryoSerializer.register(PayloadMessage.class);
+		kryoSerializer.register(PayloadMessage.class,
+				new PayloadMessageSerializer());
+		kryoSerializer.register(CompressedMessage.class,
+				new CompressedMessageSerializer());
+		kryoSerializer.register(FragmentMessage.class,
+				new FragmentMessageSerializer());
+		kryoSerializer.register(RegionMessage.class,
+				new RegionMessageSerializer());
+		kryoSerializer.register(RegionAckMessage.class,
+				new RegionAckMessageSerializer());
+		kryoSerializer.register(RegionBatchMessage.class,
+				new RegionBatchMessageSerializer());
+		kryoSerializer.register(ResyncMessage.class);
 	}
 }
@@ -2,22 +2,40 @@ package net.quakemonkey;
 
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Output;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 
 import net.quakemonkey.messages.DiffMessage;
+import net.quakemonkey.messages.DiffMessageSerializer;
 import net.quakemonkey.messages.PayloadMessage;
+import net.quakemonkey.messages.RegionAckMessage;
+import net.quakemonkey.messages.RegionMessage;
+import net.quakemonkey.utils.BlockComparison;
+import net.quakemonkey.utils.RollingHashDelta;
 import net.quakemonkey.utils.Utils;
 import net.quakemonkey.utils.pool.BufferPool;
 
 /**
  * The server-side handler of generating delta messages for one connection. It
- * keeps track of a list of snapshots in a cyclic array and registers the last
- * snapshot that was successfully received by the client.
+ * keeps track of a list of snapshots in a cyclic array and registers the
+ * snapshots that were successfully received by the client. Deltas are based
+ * on the newest of them that is still in the list.
+ * <p>
+ * Snapshots that were broadcast to all connections are kept in the
+ * server-wide {@link SnapshotStore}; for those, only their global id is
+ * stored. Other snapshots are held in private slots of this handler; they may
+ * nevertheless be {@linkplain Snapshot shared} with the other recipients of
+ * the same message.
  * 
  * @author Ben Ruijl
  * @see #ServerDiffHandler
@@ -27,15 +45,89 @@ import net.quakemonkey.utils.pool.BufferPool;
 public class DiffConnectionHandler<T> {
 	protected static final Logger LOG = Logger
 			.getLogger(DiffConnectionHandler.class.getName());
+	/**
+	 * Lets the handler estimate the best block size for every delta.
+	 * 
+	 * @see #setBlockSize(int)
+	 */
+	public static final int ADAPTIVE_BLOCK_SIZE = 0;
+	/**
+	 * The scratch outputs the instructions are encoded into; they grow as
+	 * needed.
+	 */
+	private static final ThreadLocal<Output> INSTRUCTION_OUTPUT = ThreadLocal
+			.withInitial(() -> new Output(4096, -1));
+	/**
+	 * Marks a region that was not acknowledged yet.
+	 */
+	private static final int NO_REGION_ACK = Integer.MIN_VALUE;
+	/**
+	 * Marks that none of the acknowledged messages can be used as baseline.
+	 */
+	private static final int NO_BASELINE = Integer.MIN_VALUE;
+	/**
+	 * Marks that no keyframe restricts the baselines.
+	 */
+	private static final int NO_KEYFRAME = Integer.MIN_VALUE;
 	private final Kryo kryoSerializer;
-	private final ByteBuffer[] snapshots;
+	/**
+	 * The store of the broadcast snapshots or <code>null</code>.
+	 */
+	private final SnapshotStore snapshotStore;
+	/**
+	 * The global ids of the snapshots in the {@linkplain #snapshotStore
+	 * store}, by position. {@link SnapshotStore#NO_ID} for private snapshots.
+	 */
+	private final long[] snapshotIds;
+	private final Snapshot[] privateSnapshots;
+	private final DeltaCache.DeltaGenerator deltaGenerator = this::generateDelta;
+	/**
+	 * @see #setDeltaCodec(DeltaCodec)
+	 */
+	private DeltaCodec deltaCodec = DeltaCodec.BLOCKS;
+	/**
+	 * @see #setBlockSize(int)
+	 */
+	private int blockSize = DiffMessage.DEFAULT_BLOCK_SIZE;
+	private DeltaStatistics statistics = new DeltaStatistics();
 	/**
 	 * Position in cyclic array.
 	 * 
 	 * @see Utils#getIndexForPos(int, short)
 	 */
 	private short curPos;
-	private short ackPos;
+	/**
+	 * The {@linkplain AckHistory packed} id of the last acknowledged message
+	 * and the bitmask of the acknowledged messages before it.
+	 * Acknowledgments are registered by the network thread, so it is only
+	 * updated atomically.
+	 * 
+	 * @see #registerAck(short, int)
+	 */
+	private final AtomicLong ackHistory;
+	/**
+	 * The id of the last acknowledged message per region or
+	 * {@link #NO_REGION_ACK}. The array is replaced by a larger one if a
+	 * message has more regions; acknowledgments registered in the old array
+	 * meanwhile may get lost, which only leads to older baselines.
+	 * 
+	 * @see #registerRegionAck(short, int, byte[])
+	 */
+	private volatile AtomicIntegerArray regionAckPos = new AtomicIntegerArray(
+			0);
+	/**
+	 * Whether the client requested a keyframe. Is set by the network thread.
+	 * 
+	 * @see #requestKeyframe(short, short)
+	 */
+	private final AtomicBoolean keyframeRequested = new AtomicBoolean();
+	/**
+	 * The id of the last keyframe sent on request or {@link #NO_KEYFRAME}.
+	 * Messages sent before it are not used as baselines, as the client may
+	 * not hold them. Is reset once all of them left the snapshot list. Is
+	 * read by the network thread to ignore outdated requests.
+	 */
+	private volatile int keyframePos = NO_KEYFRAME;
 
 	/**
 	 * If set to <code>false</code>, then the size of the full message and the
@@ -49,6 +141,17 @@ public class DiffConnectionHandler<T> {
 
 	public DiffConnectionHandler(Kryo kryoSerializer,
 			short snapshotHistoryCount, boolean alwaysSendDiff) {
+		this(kryoSerializer, snapshotHistoryCount, alwaysSendDiff, null);
+	}
+
+	/**
+	 * @param snapshotStore
+	 *            The store of the snapshots that were broadcast to all
+	 *            connections. Can be <code>null</code>, if only private
+	 *            snapshots are used.
+	 */
+	DiffConnectionHandler(Kryo kryoSerializer, short snapshotHistoryCount,
+			boolean alwaysSendDiff, SnapshotStore snapshotStore) {
 		Preconditions.checkNotNull(kryoSerializer);
 		Preconditions.checkArgument(snapshotHistoryCount >= 4);
 		Preconditions.checkArgument(Utils.isPowerOfTwo(snapshotHistoryCount),
@@ -56,12 +159,15 @@ public class DiffConnectionHandler<T> {
 
 		this.kryoSerializer = kryoSerializer;
 		this.alwaysSendDiff = alwaysSendDiff;
-		snapshots = new ByteBuffer[snapshotHistoryCount];
+		this.snapshotStore = snapshotStore;
+		snapshotIds = new long[snapshotHistoryCount];
+		Arrays.fill(snapshotIds, SnapshotStore.NO_ID);
+		privateSnapshots = new Snapshot[snapshotHistoryCount];
 
 		curPos = 0;
-		ackPos = (short) (-snapshotHistoryCount - 1); // needed, so the first
-														// message is always
-														// unacknowledged for
+		// needed, so the first message is always unacknowledged
+		ackHistory = new AtomicLong(
+				AckHistory.of((short) (-snapshotHistoryCount - 1), 0));
 	}
 
 	public DiffConnectionHandler(Kryo kryoSerializer, short numSnapshots) {
@@ -70,8 +176,8 @@ public class DiffConnectionHandler<T> {
 
 	/**
 	 * Adds a new message to the snapshot list and either returns the full
-	 * message or a {@linkplain #generateDelta(ByteBuffer, ByteBuffer, short)
-	 * delta message} if the latter is possible and viable.
+	 * message or a {@linkplain #generateDelta(Snapshot, Snapshot, short) delta
+	 * message} if the latter is possible and viable.
 	 * 
 	 * @param message
 	 *            Message to add to snapshot list
@@ -79,18 +185,90 @@ public class DiffConnectionHandler<T> {
 	 */
 	@VisibleForTesting
 	PayloadMessage generateSnapshot(T message) {
+		Snapshot snapshot = Snapshot
+				.wrap(Utils.messageToBuffer(message, kryoSerializer));
+		PayloadMessage payload = generateSnapshot(message, snapshot, null);
+		snapshot.release();
+
+		return payload;
+	}
+
+	/**
+	 * Adds an already serialized message to the private slots of the snapshot
+	 * list and either returns the full message or a
+	 * {@linkplain #generateDelta(Snapshot, Snapshot, short) delta message} if
+	 * the latter is possible and viable.
+	 * <p>
+	 * The snapshot is {@linkplain Snapshot#retain() retained} for as long as
+	 * it is part of the snapshot list, so the same snapshot can be handed to
+	 * multiple connections.
+	 * 
+	 * @param message
+	 *            Message to add to snapshot list
+	 * @param snapshot
+	 *            The serialized {@code message}
+	 * @param deltaCache
+	 *            The cache used to share deltas with other connections or
+	 *            <code>null</code>. If a cache is used, the flags and data
+	 *            arrays of a returned delta message are owned by the cache.
+	 * @return {@code message} or a delta message
+	 */
+	PayloadMessage generateSnapshot(T message, Snapshot snapshot,
+			DeltaCache deltaCache) {
+		int index = Utils.getIndexForPos(privateSnapshots.length, curPos);
+
+		clearSlot(index);
+		privateSnapshots[index] = snapshot.retain();
+
+		return generatePayload(message, snapshot, deltaCache);
+	}
+
+	/**
+	 * Adds a message of the {@linkplain SnapshotStore snapshot store} to the
+	 * snapshot list and either returns the full message or a
+	 * {@linkplain #generateDelta(Snapshot, Snapshot, short) delta message} if
+	 * the latter is possible and viable.
+	 * 
+	 * @param message
+	 *            Message to add to snapshot list
+	 * @param snapshotId
+	 *            The global id of the serialized {@code message}
+	 * @param deltaCache
+	 *            The cache used to share deltas with other connections or
+	 *            <code>null</code>. If a cache is used, the flags and data
+	 *            arrays of a returned delta message are owned by the cache.
+	 * @return {@code message} or a delta message
+	 */
+	PayloadMessage generateSnapshot(T message, long snapshotId,
+			DeltaCache deltaCache) {
+		Preconditions.checkState(snapshotStore != null,
+				"The handler has no snapshot store");
+
+		Snapshot snapshot = snapshotStore.get(snapshotId);
+		Preconditions.checkArgument(snapshot != null,
+				"The snapshot is not stored");
+
+		int index = Utils.getIndexForPos(snapshotIds.length, curPos);
+
+		clearSlot(index);
+		snapshotIds[index] = snapshotId;
+
+		return generatePayload(message, snapshot, deltaCache);
+	}
+
+	private PayloadMessage generatePayload(T message, Snapshot snapshot,
+			DeltaCache deltaCache) {
 		short oldPos = curPos;
 		curPos++;
 
-		int index = Utils.getIndexForPos(snapshots.length, oldPos);
-		BufferPool.DEFAULT.freeByteBuffer(snapshots[index]);
-		ByteBuffer newMessage = snapshots[index] = Utils
-				.messageToBuffer(message, kryoSerializer);
-
-		short diff = (short) (oldPos - ackPos);
+		updateKeyframe(oldPos);
+		int baselinePos = getBaselinePos(oldPos);
 
-		/* The last received message is too old; send a full one */
-		if (diff < 0 || diff > snapshots.length) {
+		/*
+		 * The received messages are too old (or the last one was just
+		 * overwritten by the new one); send a full one
+		 */
+		if (baselinePos == NO_BASELINE) {
 			LOG.log(Level.INFO,
 					"The last acknowledged message is too old; sending a full one");
 
@@ -98,122 +276,699 @@ public class DiffConnectionHandler<T> {
 		}
 
 		/* Send a normal diff message */
-		ByteBuffer lastAckMessage = snapshots[Utils
-				.getIndexForPos(snapshots.length, ackPos)];
-		lastAckMessage.position(0); // the buffer could have been used before
-
+		short ackPos = (short) baselinePos;
+		Snapshot lastAckSnapshot = getSnapshot(ackPos);
 		// Generate the delta message; is null if the message itself is smaller
 		// (because of Kryo's serialization)
-		Object delta = generateDelta(newMessage, lastAckMessage, ackPos);
+		DiffMessage delta;
+		if (deltaCache == null) {
+			delta = generateDelta(snapshot, lastAckSnapshot, ackPos);
+		} else {
+			delta = getCachedDelta(snapshot, lastAckSnapshot, ackPos,
+					deltaCache);
+		}
 
 		return PayloadMessage.POOL.obtain().set(oldPos,
 				delta == null ? message : delta);
 	}
 
+	/**
+	 * Picks the newest acknowledged message that is still in the snapshot
+	 * list. An older one is used if the snapshot of the last acknowledged
+	 * message is no longer available, e.g. because it was evicted from the
+	 * {@linkplain SnapshotStore store}.
+	 * 
+	 * @param pos
+	 *            The id of the message that is generated
+	 * @return The id of the baseline or {@link #NO_BASELINE}.
+	 */
+	private int getBaselinePos(short pos) {
+		long history = ackHistory.get();
+		short ackPos = AckHistory.getId(history);
+		int receivedBits = AckHistory.getReceivedBits(history);
+
+		for (int i = 0; i <= AckHistory.HISTORY_LENGTH; i++) {
+			if (i > 0 && (receivedBits & (1 << (i - 1))) == 0)
+				continue;
+
+			short baselinePos = (short) (ackPos - i);
+			short diff = (short) (pos - baselinePos);
+			if (diff >= snapshotIds.length || !isAfterKeyframe(baselinePos))
+				break;
+			if (diff >= 0 && getSnapshot(baselinePos) != null)
+				return baselinePos;
+		}
+		return NO_BASELINE;
+	}
+
+	/**
+	 * Starts a keyframe if it was requested; messages sent before it are no
+	 * longer used as baselines. The restriction is lifted once they left the
+	 * snapshot list.
+	 * 
+	 * @param pos
+	 *            The id of the message that is generated
+	 */
+	private void updateKeyframe(short pos) {
+		if (keyframeRequested.getAndSet(false)) {
+			LOG.log(Level.INFO,
+					"The client requested a resync; sending a full message");
+			keyframePos = pos;
+		} else if (keyframePos != NO_KEYFRAME && (short) (pos
+				- keyframePos) >= snapshotIds.length) {
+			keyframePos = NO_KEYFRAME;
+		}
+	}
+
+	/**
+	 * @return Whether the message was sent after the last requested keyframe,
+	 *         or the keyframe itself, so the client may use it as baseline.
+	 */
+	private boolean isAfterKeyframe(short pos) {
+		return keyframePos == NO_KEYFRAME || (short) (pos - keyframePos) >= 0;
+	}
+
+	/**
+	 * Looks up the delta in the cache or computes it.
+	 * 
+	 * @return A delta message obtained from the pool, whose arrays are owned
+	 *         by the cache, or <code>null</code> if the full message is
+	 *         smaller.
+	 */
+	private DiffMessage getCachedDelta(Snapshot snapshot,
+			Snapshot previousSnapshot, short diffToId, DeltaCache deltaCache) {
+		DiffMessage cachedDelta = deltaCache.get(previousSnapshot, snapshot,
+				diffToId, deltaGenerator);
+		if (cachedDelta == null)
+			return null;
+
+		return DiffMessage.POOL.obtain()
+				.set(diffToId, cachedDelta.getFlags(), cachedDelta.getData())
+				.setBlockSize(cachedDelta.getBlockSize())
+				.setXorData(cachedDelta.isXorData())
+				.setInstructions(cachedDelta.getInstructions(),
+						cachedDelta.getInstructionsLength())
+				.setEncodedFlagsAndData(cachedDelta.getEncodedFlagsAndData(),
+						cachedDelta.getEncodedFlagsAndDataLength());
+	}
+
+	/**
+	 * Adds an already serialized message to the private slots of the snapshot
+	 * list and {@linkplain #generateRegions(Snapshot, int, DeltaCache, List)
+	 * divides it into regions}.
+	 * 
+	 * @param snapshot
+	 *            The serialized message
+	 * @see #generateSnapshot(Object, Snapshot, DeltaCache)
+	 */
+	void generateRegions(Snapshot snapshot, int regionSize,
+			DeltaCache deltaCache, List<RegionMessage> regions) {
+		int index = Utils.getIndexForPos(privateSnapshots.length, curPos);
+
+		clearSlot(index);
+		privateSnapshots[index] = snapshot.retain();
+
+		generateRegionMessages(snapshot, regionSize, deltaCache, regions);
+	}
+
+	/**
+	 * Adds a message of the {@linkplain SnapshotStore snapshot store} to the
+	 * snapshot list and
+	 * {@linkplain #generateRegions(Snapshot, int, DeltaCache, List) divides
+	 * it into regions}.
+	 * 
+	 * @param snapshotId
+	 *            The global id of the serialized message
+	 * @see #generateSnapshot(Object, long, DeltaCache)
+	 */
+	void generateRegions(long snapshotId, int regionSize,
+			DeltaCache deltaCache, List<RegionMessage> regions) {
+		Preconditions.checkState(snapshotStore != null,
+				"The handler has no snapshot store");
+
+		Snapshot snapshot = snapshotStore.get(snapshotId);
+		Preconditions.checkArgument(snapshot != null,
+				"The snapshot is not stored");
+
+		int index = Utils.getIndexForPos(snapshotIds.length, curPos);
+
+		clearSlot(index);
+		snapshotIds[index] = snapshotId;
+
+		generateRegionMessages(snapshot, regionSize, deltaCache, regions);
+	}
+
+	/**
+	 * Divides the snapshot into {@linkplain Snapshot#getRegion(int, int)
+	 * regions} and adds a region message for each of them to the list. Every
+	 * region is sent as a delta to the same region of the last message of
+	 * which the client acknowledged that region, if that message is still in
+	 * the snapshot list. Otherwise, or if the region itself is smaller, it is
+	 * sent as it is. The regions can therefore be decoded independently of
+	 * each other.
+	 * 
+	 * @param deltaCache
+	 *            The cache used to share the deltas with other connections.
+	 *            It owns the arrays of the deltas of the region messages.
+	 * @param regions
+	 *            The list the region messages, obtained from the pool, are
+	 *            added to
+	 */
+	private void generateRegionMessages(Snapshot snapshot, int regionSize,
+			DeltaCache deltaCache, List<RegionMessage> regions) {
+		Preconditions.checkNotNull(deltaCache);
+
+		short oldPos = curPos;
+		curPos++;
+
+		updateKeyframe(oldPos);
+		int count = snapshot.getRegionCount(regionSize);
+		AtomicIntegerArray acks = getRegionAckPos(count);
+
+		for (int i = 0; i < count; i++) {
+			RegionMessage msg = RegionMessage.POOL.obtain().set(oldPos, i,
+					regionSize, snapshot.size());
+			int ack = acks.get(i);
+			Snapshot baseline = ack == NO_REGION_ACK ? null
+					: getRegionBaseline(oldPos, (short) ack, i, regionSize);
+			DiffMessage delta = baseline == null ? null
+					: getCachedDelta(snapshot.getRegion(i, regionSize),
+							baseline, (short) ack, deltaCache);
+
+			if (delta != null) {
+				msg.setDelta(delta);
+			} else {
+				msg.setBytes(snapshot.getBuffer().array(), i * regionSize);
+			}
+			regions.add(msg);
+		}
+	}
+
+	/**
+	 * @return The region of the acknowledged message or <code>null</code> if
+	 *         it is too old or does not have that region.
+	 */
+	private Snapshot getRegionBaseline(short pos, short ackPos, int region,
+			int regionSize) {
+		short diff = (short) (pos - ackPos);
+		if (diff < 0 || diff >= snapshotIds.length
+				|| !isAfterKeyframe(ackPos))
+			return null;
+
+		Snapshot baseline = getSnapshot(ackPos);
+		if (baseline == null
+				|| region >= baseline.getRegionCount(regionSize))
+			return null;
+
+		return baseline.getRegion(region, regionSize);
+	}
+
+	/**
+	 * @return The acknowledgments of the regions, grown to at least
+	 *         {@code count} regions.
+	 */
+	private AtomicIntegerArray getRegionAckPos(int count) {
+		AtomicIntegerArray acks = regionAckPos;
+		if (acks.length() >= count)
+			return acks;
+
+		AtomicIntegerArray grown = new AtomicIntegerArray(count);
+		for (int i = 0; i < count; i++) {
+			grown.set(i, i < acks.length() ? acks.get(i) : NO_REGION_ACK);
+		}
+		regionAckPos = grown;
+
+		return grown;
+	}
+
+	/**
+	 * @return The snapshot of the message with the given id or
+	 *         <code>null</code> if it is no longer stored.
+	 */
+	private Snapshot getSnapshot(short pos) {
+		int index = Utils.getIndexForPos(snapshotIds.length, pos);
+
+		if (privateSnapshots[index] != null)
+			return privateSnapshots[index];
+		if (snapshotIds[index] != SnapshotStore.NO_ID)
+			return snapshotStore.get(snapshotIds[index]);
+		return null;
+	}
+
+	private void clearSlot(int index) {
+		if (privateSnapshots[index] != null) {
+			privateSnapshots[index].release();
+			privateSnapshots[index] = null;
+		}
+		snapshotIds[index] = SnapshotStore.NO_ID;
+	}
+
+	/**
+	 * Releases the private snapshots. Has to be called when the connection is
+	 * closed.
+	 */
+	void dispose() {
+		for (int i = 0; i < privateSnapshots.length; i++) {
+			clearSlot(i);
+		}
+	}
+
 	/**
 	 * Gets the number of messages the server is lagging behind.
 	 * 
 	 * @return Number of messages left behind
 	 */
 	public int getLag() {
-		return Math.abs((short) (curPos - ackPos));
+		return Math.abs(
+				(short) (curPos - AckHistory.getId(ackHistory.get())));
 	}
 
+	/**
+	 * Registers the acknowledgment of a message. Can be called from any
+	 * thread; it never blocks.
+	 * 
+	 * @param id
+	 *            The id of the acknowledged message
+	 * @see #registerAck(short, int)
+	 */
 	public void registerAck(short id) {
-		// because the ack-messages could arrive in the wrong order, we have to
-		// check if the received ack-message is the latest one
-		short diff = (short) (id - ackPos);
+		registerAck(id, 0);
+	}
+
+	/**
+	 * Registers the acknowledgment of a message and of the messages received
+	 * before it. Can be called from any thread; it never blocks.
+	 * 
+	 * @param id
+	 *            The id of the acknowledged message
+	 * @param receivedBits
+	 *            Bit {@code i} is set if the message {@code id - 1 - i} was
+	 *            received as well
+	 */
+	public void registerAck(short id, int receivedBits) {
+		// because the ack-messages could arrive in the wrong order, they are
+		// merged into the history instead of replacing it
+		long current;
+		long merged;
+		do {
+			current = ackHistory.get();
+			merged = AckHistory.merge(current, id, receivedBits);
+
+			if (merged == current) {
+				if (LOG.isLoggable(Level.FINER)) {
+					LOG.log(Level.FINER, "Client acknowledged _old_ message "
+							+ id + " vs. current "
+							+ AckHistory.getId(current));
+				}
+				return;
+			}
+		} while (!ackHistory.compareAndSet(current, merged));
+
+		if (LOG.isLoggable(Level.FINER)) {
+			LOG.log(Level.FINER, "Client acknowledged message " + id);
+		}
+	}
+
+	/**
+	 * Registers the acknowledgment of the regions of a message. Can be called
+	 * from any thread; it never blocks. Once all regions were received, the
+	 * message also counts as {@linkplain #registerAck(short) acknowledged}.
+	 * 
+	 * @param id
+	 *            The id of the message
+	 * @param regionCount
+	 *            The number of regions of the message
+	 * @param receivedRegions
+	 *            Bit {@code i % 8} of byte {@code i / 8} is set if region
+	 *            {@code i} was received
+	 * @see RegionAckMessage
+	 */
+	public void registerRegionAck(short id, int regionCount,
+			byte[] receivedRegions) {
+		AtomicIntegerArray acks = regionAckPos;
+		boolean complete = true;
+
+		for (int i = 0; i < regionCount; i++) {
+			if ((receivedRegions[i >>> 3] & (1 << (i & 7))) == 0) {
+				complete = false;
+			} else if (i < acks.length()) {
+				registerRegionAck(acks, i, id);
+			}
+		}
 
-		if (diff > 0) {
-			if (LOG.isLoggable(Level.FINER)) {
-				LOG.log(Level.FINER, "Client acknowledged message " + id);
+		if (complete)
+			registerAck(id);
+	}
+
+	/**
+	 * Replaces the acknowledgment of a region, if the given one is newer.
+	 */
+	private static void registerRegionAck(AtomicIntegerArray acks,
+			int region, short id) {
+		int current;
+		do {
+			current = acks.get(region);
+
+			if (current != NO_REGION_ACK && (short) (id - current) <= 0)
+				return;
+		} while (!acks.compareAndSet(region, current, id));
+	}
+
+	/**
+	 * Requests a full message, because the client received a delta based on
+	 * a message it does not hold. The next message is sent in full (or as
+	 * full regions) and the messages sent before it are no longer used as
+	 * baselines, even if they were acknowledged. Can be called from any
+	 * thread; it never blocks.
+	 * <p>
+	 * Requests for messages sent before the last keyframe are ignored: the
+	 * client sent them before the keyframe arrived, so it is already
+	 * answered.
+	 * 
+	 * @param id
+	 *            The id of the message the client could not decode
+	 * @param baselineId
+	 *            The id of the baseline of that message
+	 */
+	public void requestKeyframe(short id, short baselineId) {
+		int keyframe = keyframePos;
+		if (keyframe != NO_KEYFRAME && (short) (id - keyframe) < 0) {
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.log(Level.FINE, "Ignoring a resync of message " + id
+						+ "; keyframe " + keyframe + " was already sent");
 			}
-			ackPos = id;
 			return;
 		}
 
-		if (LOG.isLoggable(Level.FINER)) {
-			LOG.log(Level.FINER, "Client acknowledged _old_ message " + id
-					+ " vs. current " + ackPos);
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.log(Level.FINE, "Client misses baseline " + baselineId
+					+ " of message " + id);
 		}
+		keyframeRequested.set(true);
 	}
 
 	/**
-	 * Returns a delta message from <code>message</code> and
-	 * <code>prevMessage</code> or just <code>message</code> if that happens to
+	 * Returns a delta message from <code>snapshot</code> and
+	 * <code>previousSnapshot</code>, computed by the {@linkplain #deltaCodec
+	 * delta codec}, or just <code>null</code> if the message itself happens to
 	 * be smaller.
+	 * <p>
+	 * The buffers of both snapshots are only accessed via absolute operations,
+	 * as they may be shared with other connections.
 	 * 
-	 * @param buffer
-	 *            Message to send as a ByteBuffer
-	 * @param previousBuffer
-	 *            The last acknowledged message as a ByteBuffer
+	 * @param snapshot
+	 *            Message to send
+	 * @param previousSnapshot
+	 *            The last acknowledged message
 	 * @param diffToId
 	 *            The id of the previous message.
 	 * @return
 	 * @see #alwaysSendDiff
 	 */
-	private Object generateDelta(ByteBuffer buffer, ByteBuffer previousBuffer,
-			short diffToId) {
-		int intBound = (int) (Math.ceil(
-				Math.max(buffer.remaining(), previousBuffer.remaining()) / 4f))
-				* 4;
-		previousBuffer.limit(intBound);
-		buffer.limit(intBound); // set buffers to be the same size
+	private DiffMessage generateDelta(Snapshot snapshot,
+			Snapshot previousSnapshot, short diffToId) {
+		DiffMessage delta;
+
+		switch (deltaCodec) {
+		case XOR_BLOCKS:
+			delta = generateBlockDelta(snapshot, previousSnapshot, diffToId);
+			xorData(delta, previousSnapshot.getBuffer());
+			break;
+		case ROLLING_HASH:
+			delta = generateInstructionDelta(snapshot, previousSnapshot,
+					diffToId);
+			break;
+		case SMALLEST:
+			DiffMessage blockDelta = generateBlockDelta(snapshot,
+					previousSnapshot, diffToId);
+			// The XOR delta has the same flags; only its data differs
+			DiffMessage xorDelta = copyBlockDelta(blockDelta);
+			xorData(xorDelta, previousSnapshot.getBuffer());
+			DiffMessage instructionDelta = generateInstructionDelta(snapshot,
+					previousSnapshot, diffToId);
+
+			int blockDeltaSize = getDeltaSize(blockDelta);
+			int xorDeltaSize = getDeltaSize(xorDelta);
+			delta = xorDeltaSize < blockDeltaSize ? xorDelta : blockDelta;
+			if (getDeltaSize(instructionDelta) < Math.min(blockDeltaSize,
+					xorDeltaSize))
+				delta = instructionDelta;
+
+			if (delta != blockDelta)
+				freeDelta(blockDelta);
+			if (delta != xorDelta)
+				freeDelta(xorDelta);
+			if (delta != instructionDelta)
+				freeDelta(instructionDelta);
+			break;
+		default:
+			delta = generateBlockDelta(snapshot, previousSnapshot, diffToId);
+		}
+
+		/* Check what is smaller, delta message or original buffer */
+		int msgSize = (int) (Math.ceil(
+				Math.max(snapshot.size(), previousSnapshot.size()) / 4f)) * 4;
+		int diffSize = getDeltaSize(delta);
+
+		if (Math.min(msgSize, diffSize) >= 1400) {
+			LOG.log(Level.FINE,
+					"The message size is above the approximated MTU. It is recommended to enable fragmentation.");
+		}
 
-		IntBuffer diffInts = BufferPool.DEFAULT.obtainIntBuffer(buffer.limit()); // great
-																					// overestimation
+		if (alwaysSendDiff || diffSize < msgSize) {
+			if (delta.getInstructions() == null)
+				statistics.recordBlockSize(delta.getBlockSize());
+			return delta;
+		}
+
+		LOG.log(Level.FINE, "The state message is smaller than the diff.");
+		freeDelta(delta);
+
+		return null;
+	}
+
+	/**
+	 * Compares the snapshots block by block. The block size is either the
+	 * {@linkplain #blockSize configured} one or estimated on a sample of the
+	 * snapshots.
+	 */
+	private DiffMessage generateBlockDelta(Snapshot snapshot,
+			Snapshot previousSnapshot, short diffToId) {
+		ByteBuffer buffer = snapshot.getBuffer();
+		ByteBuffer previousBuffer = previousSnapshot.getBuffer();
+		int size = Math.max(snapshot.size(), previousSnapshot.size());
+		int blockSize = this.blockSize == ADAPTIVE_BLOCK_SIZE
+				? BlockComparison.estimateBlockSize(buffer, previousBuffer,
+						size)
+				: this.blockSize;
+
+		if (blockSize != DiffMessage.DEFAULT_BLOCK_SIZE)
+			return generateBlockDelta(buffer, previousBuffer, size, blockSize,
+					diffToId);
+
+		int intBound = (int) (Math.ceil(size / 4f)) * 4;
 
 		// check block of size int
 		int numBits = intBound / 4;
 		int numBytes = (numBits - 1) / 8 + 1;
-		byte[] flags = BufferPool.DEFAULT.obtainByteArray(numBytes);
+		IntBuffer diffInts = BufferPool.DEFAULT.obtainIntBuffer(numBits);
+		byte[] flags = BufferPool.DEFAULT.obtainByteArray(numBytes, true);
+		Arrays.fill(flags, (byte) 0);
 
 		// also works if old and new are not the same size, but less efficiently
-		int i = 0;
-		while (buffer.remaining() >= 4) {
-			int val = buffer.getInt();
-			if (previousBuffer.remaining() < 4
-					|| val != previousBuffer.getInt()) {
-				// diff detected
-				diffInts.put(val);
-				flags[i / 8] |= 1 << (i % 8);
-			} else {
-				// same content -> no diff
-				flags[i / 8] &= ~(1 << (i % 8));
-			}
-			i++;
-		}
+		BlockComparison.compare(buffer, previousBuffer, intBound, flags,
+				diffInts);
 
 		diffInts.flip();
 
-		/* Check what is smaller, delta message or original buffer */
-		Object retMessage = null;
-		int msgSize = buffer.limit();
-		int diffSize = diffInts.remaining() * 4 + (diffInts.remaining() / 8)
-				+ 1;
+		int diffDataSize = diffInts.remaining();
+		int[] diffData = BufferPool.DEFAULT.obtainIntArray(diffDataSize, true);
+		diffInts.get(diffData, 0, diffDataSize);
 
-		if (Math.min(msgSize, diffSize) >= 1400) {
-			LOG.log(Level.FINE,
-					"The message size is above the approximated MTU. It is recommended to fragment the message.");
+		BufferPool.DEFAULT.freeIntBuffer(diffInts);
+
+		return DiffMessage.POOL.obtain().set(diffToId, flags, diffData);
+	}
+
+	/**
+	 * Compares the buffers in blocks of any size. The content of the changed
+	 * blocks is packed into ints afterwards.
+	 */
+	private static DiffMessage generateBlockDelta(ByteBuffer buffer,
+			ByteBuffer previousBuffer, int size, int blockSize,
+			short diffToId) {
+		int numBits = (size + blockSize - 1) / blockSize;
+		int bound = numBits * blockSize;
+		int numBytes = (numBits - 1) / 8 + 1;
+		byte[] flags = BufferPool.DEFAULT.obtainByteArray(numBytes, true);
+		Arrays.fill(flags, (byte) 0);
+		// Rounded up to whole ints
+		byte[] diffBytes = BufferPool.DEFAULT.obtainByteArray(bound + 3);
+
+		int changedBlocks = BlockComparison.compare(buffer, previousBuffer,
+				bound, blockSize, flags, diffBytes);
+
+		int byteCount = changedBlocks * blockSize;
+		int intCount = (byteCount + 3) / 4;
+		// The last int is padded with zeros
+		Arrays.fill(diffBytes, byteCount, intCount * 4, (byte) 0);
+
+		int[] diffData = BufferPool.DEFAULT.obtainIntArray(intCount, true);
+		ByteBuffer.wrap(diffBytes).asIntBuffer().get(diffData, 0, intCount);
+
+		BufferPool.DEFAULT.freeByteArray(diffBytes);
+
+		return DiffMessage.POOL.obtain().set(diffToId, flags, diffData)
+				.setBlockSize(blockSize);
+	}
+
+	/**
+	 * Replaces the content of the changed blocks of a block delta by its XOR
+	 * with the content of the previous snapshot. Bytes beyond the capacity of
+	 * the previous buffer are treated as zeros, like in the comparison.
+	 */
+	private static void xorData(DiffMessage delta, ByteBuffer previousBuffer) {
+		byte[] flags = delta.getFlags();
+		int[] data = delta.getData();
+		int blockSize = delta.getBlockSize();
+		int capacity = previousBuffer.capacity();
+		int byteIndex = 0;
+
+		for (int i = 0; i < flags.length; i++) {
+			int bits = flags[i] & 0xFF;
+			while (bits != 0) {
+				int block = i * 8 + Integer.numberOfTrailingZeros(bits);
+				int offset = block * blockSize;
+
+				for (int j = 0; j < blockSize;) {
+					int position = offset + j;
+
+					if ((byteIndex & 3) == 0 && j + 4 <= blockSize
+							&& position + 4 <= capacity) {
+						data[byteIndex >>> 2] ^= previousBuffer
+								.getInt(position);
+						j += 4;
+						byteIndex += 4;
+					} else {
+						int previous = position < capacity
+								? previousBuffer.get(position) & 0xFF
+								: 0;
+						data[byteIndex >>> 2] ^= previous << (24
+								- ((byteIndex & 3) << 3));
+						j++;
+						byteIndex++;
+					}
+				}
+				bits &= bits - 1;
+			}
 		}
 
-		if (alwaysSendDiff || diffSize < msgSize) {
-			int diffDataSize = diffInts.remaining();
-			int[] diffData = BufferPool.DEFAULT.obtainIntArray(diffDataSize,
-					true);
+		delta.setXorData(true);
+	}
 
-			diffInts.get(diffData, 0, diffDataSize);
+	/**
+	 * @return A copy of the block delta, whose arrays are obtained from the
+	 *         pool.
+	 */
+	private static DiffMessage copyBlockDelta(DiffMessage delta) {
+		byte[] flags = BufferPool.DEFAULT
+				.obtainByteArray(delta.getFlags().length, true);
+		System.arraycopy(delta.getFlags(), 0, flags, 0, flags.length);
+		int[] data = BufferPool.DEFAULT.obtainIntArray(delta.getData().length,
+				true);
+		System.arraycopy(delta.getData(), 0, data, 0, data.length);
+
+		return DiffMessage.POOL.obtain()
+				.set(delta.getMessageId(), flags, data)
+				.setBlockSize(delta.getBlockSize());
+	}
 
-			retMessage = DiffMessage.POOL.obtain().set(diffToId, flags,
-					diffData);
-		} else {
-			LOG.log(Level.FINE, "The state message is smaller than the diff.");
+	/**
+	 * Encodes the snapshot as copy and insert instructions based on the
+	 * previous snapshot.
+	 */
+	private DiffMessage generateInstructionDelta(Snapshot snapshot,
+			Snapshot previousSnapshot, short diffToId) {
+		Output output = INSTRUCTION_OUTPUT.get();
+		output.reset();
+
+		RollingHashDelta.encode(snapshot.getBuffer().array(), snapshot.size(),
+				previousSnapshot.getBuffer().array(), previousSnapshot.size(),
+				output);
+
+		int length = output.position();
+		byte[] instructions = BufferPool.DEFAULT.obtainByteArray(length);
+		System.arraycopy(output.getBuffer(), 0, instructions, 0, length);
 
-			retMessage = null;
+		return DiffMessage.POOL.obtain().set(diffToId, null, null)
+				.setInstructions(instructions, length);
+	}
+
+	/**
+	 * @return The size of the serialized delta, apart from the id of its
+	 *         baseline.
+	 */
+	private static int getDeltaSize(DiffMessage delta) {
+		return DiffMessageSerializer.getFlagsAndDataLength(delta);
+	}
+
+	private static void freeDelta(DiffMessage delta) {
+		BufferPool.DEFAULT.freeByteArray(delta.getFlags());
+		BufferPool.DEFAULT.freeIntArray(delta.getData());
+		BufferPool.DEFAULT.freeByteArray(delta.getInstructions());
+		DiffMessage.POOL.free(delta);
+	}
+
+	/**
+	 * Sets the codec used to compute the deltas.
+	 * 
+	 * @param deltaCodec
+	 *            The codec. Is {@link DeltaCodec#BLOCKS} by default.
+	 */
+	public void setDeltaCodec(DeltaCodec deltaCodec) {
+		this.deltaCodec = Preconditions.checkNotNull(deltaCodec);
+	}
+
+	/**
+	 * Sets the size of the blocks the block deltas consist of. Small blocks
+	 * suit messages in which single bytes change, e.g. flags; large blocks
+	 * need fewer flags for messages in which whole ranges change, e.g. arrays
+	 * of floats. The clients do not have to be configured.
+	 * 
+	 * @param blockSize
+	 *            One of {@link BlockComparison#BLOCK_SIZES} or
+	 *            {@link #ADAPTIVE_BLOCK_SIZE} to let the handler pick the block
+	 *            size that results in the smallest delta on a sample of each
+	 *            snapshot. Is {@link DiffMessage#DEFAULT_BLOCK_SIZE} by
+	 *            default.
+	 */
+	public void setBlockSize(int blockSize) {
+		Preconditions.checkArgument(isValidBlockSize(blockSize),
+				"Unsupported block size: %s", blockSize);
+
+		this.blockSize = blockSize;
+	}
+
+	static boolean isValidBlockSize(int blockSize) {
+		if (blockSize == ADAPTIVE_BLOCK_SIZE)
+			return true;
+
+		for (int supported : BlockComparison.BLOCK_SIZES) {
+			if (supported == blockSize)
+				return true;
 		}
+		return false;
+	}
 
-		BufferPool.DEFAULT.freeIntBuffer(diffInts);
+	/**
+	 * Sets the statistics the computed deltas are counted in. Is used to
+	 * share them among the connections of a server.
+	 */
+	void setStatistics(DeltaStatistics statistics) {
+		this.statistics = Preconditions.checkNotNull(statistics);
+	}
 
-		return retMessage;
+	DeltaStatistics getStatistics() {
+		return statistics;
 	}
 }
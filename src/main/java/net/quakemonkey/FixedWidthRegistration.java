@@ -0,0 +1,104 @@
+package net.quakemonkey;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.SerializerFactory.FieldSerializerFactory;
+import com.esotericsoftware.kryo.serializers.FieldSerializer.FieldSerializerConfig;
+
+import net.quakemonkey.utils.FixedWidthSerializers;
+
+/**
+ * Installs an optional serialization mode in which every value of a type is
+ * serialized to the same number of bytes. By default, Kryo writes integers as
+ * varints and strings with their actual length, so the size of one field
+ * shifts the offsets of all following fields. The delta of two such messages
+ * then contains every block after the first change, even if the values there
+ * are unchanged.
+ * <p>
+ * The mode trades the size of full messages for the size of deltas, so it
+ * pays off when most messages are sent as deltas. Like
+ * {@link DiffClassRegistration#registerClasses(Kryo)}, it has to be installed
+ * on both the server and the client, in the same position relative to the
+ * other registrations.
+ *
+ * @see FixedWidthSerializers
+ */
+public class FixedWidthRegistration {
+	/**
+	 * The default width of the slot of a string in bytes.
+	 */
+	public static final int DEFAULT_STRING_WIDTH = 32;
+
+	private FixedWidthRegistration() {
+		// not used
+	}
+
+	/**
+	 * Installs the fixed-width mode with the {@linkplain #DEFAULT_STRING_WIDTH
+	 * default string width}.
+	 *
+	 * @param kryoSerializer
+	 *            the serializer used by the endpoint
+	 * @see #registerSerializers(Kryo, int)
+	 */
+	public static void registerSerializers(Kryo kryoSerializer) {
+		registerSerializers(kryoSerializer, DEFAULT_STRING_WIDTH);
+	}
+
+	/**
+	 * Installs the fixed-width mode:
+	 * <ul>
+	 * <li>the primitives and their wrappers are written with their natural
+	 * width instead of as varints,</li>
+	 * <li>strings are written into slots of {@code stringWidth} bytes and</li>
+	 * <li>classes registered afterwards without an explicit serializer use a
+	 * {@link com.esotericsoftware.kryo.serializers.FieldSerializer
+	 * FieldSerializer} that writes its int and long fields with a fixed
+	 * width.</li>
+	 * </ul>
+	 * The ids of the registered classes are not changed. Collections have to
+	 * be registered with a
+	 * {@link FixedWidthSerializers.CollectionSerializer} explicitly, as their
+	 * maximum size and the width of their elements depend on the game.
+	 *
+	 * @param kryoSerializer
+	 *            the serializer used by the endpoint
+	 * @param stringWidth
+	 *            The width of the slot of a string in bytes. Longer strings
+	 *            cannot be serialized.
+	 */
+	public static void registerSerializers(Kryo kryoSerializer,
+			int stringWidth) {
+		setSerializer(kryoSerializer, boolean.class,
+				new FixedWidthSerializers.BooleanSerializer());
+		setSerializer(kryoSerializer, byte.class,
+				new FixedWidthSerializers.ByteSerializer());
+		setSerializer(kryoSerializer, char.class,
+				new FixedWidthSerializers.CharSerializer());
+		setSerializer(kryoSerializer, short.class,
+				new FixedWidthSerializers.ShortSerializer());
+		setSerializer(kryoSerializer, int.class,
+				new FixedWidthSerializers.IntSerializer());
+		setSerializer(kryoSerializer, long.class,
+				new FixedWidthSerializers.LongSerializer());
+		setSerializer(kryoSerializer, float.class,
+				new FixedWidthSerializers.FloatSerializer());
+		setSerializer(kryoSerializer, double.class,
+				new FixedWidthSerializers.DoubleSerializer());
+		setSerializer(kryoSerializer, String.class,
+				new FixedWidthSerializers.StringSerializer(stringWidth));
+
+		FieldSerializerConfig config = new FieldSerializerConfig();
+		config.setVariableLengthEncoding(false);
+		kryoSerializer.setDefaultSerializer(new FieldSerializerFactory(config));
+	}
+
+	/**
+	 * Replaces the serializer of a class that Kryo registers by default, so
+	 * its id stays the same.
+	 */
+	private static void setSerializer(Kryo kryoSerializer, Class<?> type,
+			Serializer<?> serializer) {
+		kryoSerializer.getRegistration(type).setSerializer(serializer);
+	}
+}
@@ -0,0 +1,200 @@
+package net.quakemonkey;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.base.Preconditions;
+
+import net.quakemonkey.messages.FragmentMessage;
+import net.quakemonkey.utils.pool.BufferPool;
+
+/**
+ * Reassembles the {@linkplain FragmentMessage fragments} of payload messages.
+ * At most {@code capacity} messages are reassembled at the same time; if a
+ * fragment of another message arrives, the oldest partial message is
+ * evicted. Partial messages that are older than the newest received message
+ * are evicted as well, as they would be discarded anyway.
+ * <p>
+ * The fragments may arrive in any order and duplicates are ignored. Fragments
+ * that contradict the other fragments of their message or belong to a message
+ * longer than {@code maxLength} are dropped.
+ *
+ * @see ClientDiffHandler
+ */
+class FragmentAssembler {
+	private static final Logger LOG = Logger
+			.getLogger(FragmentAssembler.class.getName());
+
+	private final PartialMessage[] partialMessages;
+	private final int maxLength;
+
+	/**
+	 * A message of which not all fragments were received yet.
+	 */
+	private static class PartialMessage {
+		private short messageId;
+		private int count;
+		private int totalLength;
+		private byte[] bytes;
+		/**
+		 * One flag per fragment.
+		 */
+		private boolean[] received;
+		private int receivedCount;
+	}
+
+	/**
+	 * @param capacity
+	 *            The maximum number of messages that are reassembled at the
+	 *            same time
+	 * @param maxLength
+	 *            The maximum length of a reassembled message in bytes
+	 */
+	FragmentAssembler(int capacity, int maxLength) {
+		Preconditions.checkArgument(capacity > 0);
+		Preconditions.checkArgument(maxLength > 0);
+
+		partialMessages = new PartialMessage[capacity];
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * Adds a received fragment. Its array is not kept.
+	 *
+	 * @param fragment
+	 *            The fragment
+	 * @param latestId
+	 *            The ID of the newest message that was received; fragments of
+	 *            older messages are dropped
+	 * @return The bytes of the reassembled message, obtained from the
+	 *         {@linkplain BufferPool pool}, if this was its last missing
+	 *         fragment, otherwise <code>null</code>. The message is
+	 *         {@linkplain FragmentMessage#getTotalLength() as long as}
+	 *         specified by the fragment.
+	 */
+	byte[] add(FragmentMessage fragment, short latestId) {
+		short messageId = fragment.getMessageId();
+		if ((short) (messageId - latestId) < 0) {
+			LOG.log(Level.FINE, "Discarding a fragment of an old message");
+			return null;
+		}
+		if (fragment.getTotalLength() > maxLength
+				|| fragment.getCount() > fragment.getTotalLength()) {
+			LOG.log(Level.WARNING, "Discarding a fragment of a message with "
+					+ fragment.getTotalLength() + " bytes");
+			return null;
+		}
+
+		PartialMessage msg = get(fragment);
+		if (msg == null)
+			return null;
+
+		int fragmentLength = FragmentMessage.getFragmentLength(
+				msg.totalLength, msg.count);
+		int offset = fragment.getIndex() * fragmentLength;
+		if (fragment.getLength() != Math.min(fragmentLength,
+				msg.totalLength - offset)) {
+			LOG.log(Level.WARNING, "Discarding an invalid fragment");
+			return null;
+		}
+		if (msg.received[fragment.getIndex()])
+			return null;
+
+		System.arraycopy(fragment.getBytes(), fragment.getOffset(), msg.bytes,
+				offset, fragment.getLength());
+		msg.received[fragment.getIndex()] = true;
+		msg.receivedCount++;
+
+		if (msg.receivedCount < msg.count)
+			return null;
+
+		byte[] bytes = msg.bytes;
+		msg.bytes = null;
+		remove(msg);
+		evictOlderThan(messageId);
+
+		return bytes;
+	}
+
+	/**
+	 * Finds the partial message of the fragment or starts a new one.
+	 *
+	 * @return The message or <code>null</code> if the fragment does not match
+	 *         the other fragments of its message.
+	 */
+	private PartialMessage get(FragmentMessage fragment) {
+		int free = -1;
+		int oldest = -1;
+
+		for (int i = 0; i < partialMessages.length; i++) {
+			PartialMessage msg = partialMessages[i];
+
+			if (msg == null) {
+				free = i;
+			} else if (msg.messageId == fragment.getMessageId()) {
+				if (msg.count != fragment.getCount()
+						|| msg.totalLength != fragment.getTotalLength()) {
+					LOG.log(Level.WARNING,
+							"Discarding a fragment that does not match its message");
+					return null;
+				}
+				return msg;
+			} else if (oldest == -1 || (short) (msg.messageId
+					- partialMessages[oldest].messageId) < 0) {
+				oldest = i;
+			}
+		}
+
+		if (free == -1) {
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.log(Level.FINE, "Evicting the partial message "
+						+ partialMessages[oldest].messageId);
+			}
+			free = oldest;
+			evict(partialMessages[oldest]);
+		}
+
+		PartialMessage msg = new PartialMessage();
+		msg.messageId = fragment.getMessageId();
+		msg.count = fragment.getCount();
+		msg.totalLength = fragment.getTotalLength();
+		msg.bytes = BufferPool.DEFAULT.obtainByteArray(msg.totalLength);
+		msg.received = new boolean[msg.count];
+		partialMessages[free] = msg;
+
+		return msg;
+	}
+
+	private void evictOlderThan(short messageId) {
+		for (PartialMessage msg : partialMessages) {
+			if (msg != null && (short) (msg.messageId - messageId) < 0)
+				evict(msg);
+		}
+	}
+
+	private void evict(PartialMessage msg) {
+		BufferPool.DEFAULT.freeByteArray(msg.bytes);
+		remove(msg);
+	}
+
+	private void remove(PartialMessage msg) {
+		for (int i = 0; i < partialMessages.length; i++) {
+			if (partialMessages[i] == msg)
+				partialMessages[i] = null;
+		}
+	}
+
+	/**
+	 * @return The number of messages of which not all fragments were received
+	 *         yet.
+	 */
+	int getPartialMessageCount() {
+		int count = 0;
+		for (PartialMessage msg : partialMessages) {
+			if (msg != null)
+				count++;
+		}
+
+		return count;
+	}
+}
@@ -0,0 +1,36 @@
+package net.quakemonkey;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+
+/**
+ * Deserializes messages of type {@code T} into an existing instance instead
+ * of creating a new object graph for every received message. This is
+ * typically implemented by the {@link com.esotericsoftware.kryo.Serializer}
+ * that is registered for {@code T}.
+ * 
+ * @param <T>
+ *            Message type
+ * @see ClientDiffHandler#setInPlaceDeserializer(InPlaceDeserializer)
+ */
+public interface InPlaceDeserializer<T> {
+	/**
+	 * @return A new, empty instance of the message, which is reused for the
+	 *         following messages.
+	 */
+	T create();
+
+	/**
+	 * Reads the content of a message into {@code message}. The registered
+	 * class of the message was already read.
+	 * 
+	 * @param kryo
+	 *            The serializer
+	 * @param input
+	 *            The input positioned after the class
+	 * @param message
+	 *            The instance to overwrite; it contains a previously received
+	 *            message
+	 */
+	void readInto(Kryo kryo, Input input, T message);
+}
@@ -0,0 +1,155 @@
+package net.quakemonkey;
+
+import java.util.zip.Deflater;
+
+import com.esotericsoftware.kryo.io.Output;
+
+import net.quakemonkey.messages.CompressedMessage;
+import net.quakemonkey.messages.DiffMessage;
+import net.quakemonkey.messages.DiffMessageSerializer;
+import net.quakemonkey.utils.pool.BufferPool;
+
+/**
+ * Compresses the payloads of one dispatch with a {@link Deflater}, optionally
+ * with a preset dictionary. Full messages are compressed from the bytes of
+ * their snapshot and deltas from their
+ * {@linkplain DiffMessageSerializer#writeFlagsAndData(Output, DiffMessage)
+ * flags and data}, so no Kryo instance is needed. Each distinct payload is
+ * only compressed once per dispatch, even if it is sent to multiple
+ * connections; it is compressed outside of the map, so other payloads can be
+ * compressed concurrently.
+ * <p>
+ * The compressor owns the arrays of the compressed messages; they are given
+ * back to the pool when it is {@linkplain #clear() cleared}. Like the
+ * {@link DeltaCache}, it can be used by multiple threads concurrently.
+ *
+ * @see ServerDiffHandler#setCompressionThreshold(int)
+ */
+class PayloadCompressor {
+	/**
+	 * Marks a payload for which the compressed form is not smaller.
+	 */
+	private static final CompressedMessage NOT_COMPRESSED = new CompressedMessage();
+
+	private final int threshold;
+	/**
+	 * The preset dictionary or <code>null</code>.
+	 */
+	private final byte[] dictionary;
+	private final DeltaStatistics statistics;
+	private final ThreadLocal<Deflater> deflater = ThreadLocal
+			.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+	/**
+	 * The scratch outputs the deltas are serialized into.
+	 */
+	private final ThreadLocal<Output> output = ThreadLocal
+			.withInitial(() -> new Output(4096, -1));
+	/**
+	 * The compressed payloads, by their snapshot or the flags or instructions
+	 * array of their delta. The keys are compared by identity.
+	 */
+	private final ComputeOnceMap<Object, CompressedMessage> compressed = new ComputeOnceMap<>();
+
+	/**
+	 * @param threshold
+	 *            The minimum size of a serialized payload in bytes for it to be
+	 *            compressed
+	 * @param dictionary
+	 *            The preset dictionary or <code>null</code>
+	 * @param statistics
+	 *            The statistics the compressions are counted in
+	 */
+	PayloadCompressor(int threshold, byte[] dictionary,
+			DeltaStatistics statistics) {
+		this.threshold = threshold;
+		this.dictionary = dictionary;
+		this.statistics = statistics;
+	}
+
+	/**
+	 * @return The compressed full message or <code>null</code> if it is below
+	 *         the threshold or the compression does not make it smaller.
+	 */
+	CompressedMessage compress(Snapshot snapshot) {
+		if (snapshot.size() < threshold)
+			return null;
+
+		return get(compressed.computeIfAbsent(snapshot,
+				key -> deflate(false, snapshot.getBuffer().array(),
+						snapshot.size())));
+	}
+
+	/**
+	 * @return The compressed delta or <code>null</code> if it is below the
+	 *         threshold or the compression does not make it smaller. The
+	 *         message id of the returned message is not set.
+	 */
+	CompressedMessage compress(DiffMessage delta) {
+		if (DiffMessageSerializer.getMaxFlagsAndDataLength(delta) < threshold)
+			return null;
+
+		Object key = delta.getFlags() != null ? delta.getFlags()
+				: delta.getInstructions();
+
+		return get(compressed.computeIfAbsent(key, k -> {
+			if (delta.getEncodedFlagsAndData() != null)
+				return deflate(true, delta.getEncodedFlagsAndData(),
+						delta.getEncodedFlagsAndDataLength());
+
+			Output output = this.output.get();
+			output.reset();
+			DiffMessageSerializer.writeFlagsAndData(output, delta);
+
+			return deflate(true, output.getBuffer(), output.position());
+		}));
+	}
+
+	private static CompressedMessage get(CompressedMessage msg) {
+		return msg == NOT_COMPRESSED ? null : msg;
+	}
+
+	private CompressedMessage deflate(boolean delta, byte[] bytes,
+			int length) {
+		if (length < threshold)
+			return NOT_COMPRESSED;
+
+		long start = System.nanoTime();
+
+		Deflater deflater = this.deflater.get();
+		deflater.reset();
+		if (dictionary != null)
+			deflater.setDictionary(dictionary);
+		deflater.setInput(bytes, 0, length);
+		deflater.finish();
+
+		// Only worth it if it is smaller
+		byte[] compressedBytes = BufferPool.DEFAULT.obtainByteArray(length);
+		int compressedLength = deflater.deflate(compressedBytes, 0, length);
+		boolean smaller = deflater.finished() && compressedLength < length;
+
+		statistics.recordCompression(length,
+				smaller ? compressedLength : length,
+				System.nanoTime() - start);
+
+		if (!smaller) {
+			BufferPool.DEFAULT.freeByteArray(compressedBytes);
+			return NOT_COMPRESSED;
+		}
+
+		return CompressedMessage.POOL.obtain().set(delta, (short) 0,
+				compressedBytes, compressedLength, length);
+	}
+
+	/**
+	 * Removes all compressed payloads and frees their arrays. Must not be
+	 * called concurrently with the other methods.
+	 */
+	void clear() {
+		for (CompressedMessage msg : compressed.clear()) {
+			if (msg != NOT_COMPRESSED) {
+				BufferPool.DEFAULT.freeByteArray(msg.getBytes());
+				CompressedMessage.POOL.free(msg);
+			}
+		}
+	}
+}
@@ -1,25 +1,54 @@
 package net.quakemonkey;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Output;
 import com.esotericsoftware.kryonet.Connection;
 import com.esotericsoftware.kryonet.Listener;
 import com.esotericsoftware.kryonet.Server;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 
 import net.quakemonkey.messages.AckMessage;
+import net.quakemonkey.messages.CompressedMessage;
 import net.quakemonkey.messages.DiffMessage;
+import net.quakemonkey.messages.FragmentMessage;
 import net.quakemonkey.messages.PayloadMessage;
+import net.quakemonkey.messages.RegionAckMessage;
+import net.quakemonkey.messages.RegionBatchMessage;
+import net.quakemonkey.messages.RegionMessage;
+import net.quakemonkey.messages.ResyncMessage;
+import net.quakemonkey.utils.BlockComparison;
 import net.quakemonkey.utils.Utils;
 import net.quakemonkey.utils.pool.BufferPool;
+import net.quakemonkey.utils.pool.KryoPool;
 
 /**
  * Handles the dispatching of messages of type {@code T} to clients, using a
  * protocol of delta messages.
  * <p>
+ * Messages can be dispatched from any thread; concurrent dispatches are
+ * serialized. The work of a single dispatch can be spread over multiple
+ * threads by {@linkplain #setExecutor(Executor, int) setting an executor}.
+ * The network thread never waits for a dispatch: acknowledgments are
+ * registered lock-free and disconnected connections are cleaned up by the
+ * next dispatch. To not share the server's Kryo instance with the network
+ * thread, {@linkplain #setKryoPool(KryoPool) set a Kryo pool}.
+ * <p>
  * Important: make sure that you call
  * {@link DiffClassRegistration#registerClasses()} before starting the server.
  * 
@@ -32,10 +61,100 @@ import net.quakemonkey.utils.pool.BufferPool;
 public class ServerDiffHandler<T> {
 	protected static final Logger LOG = Logger
 			.getLogger(ServerDiffHandler.class.getName());
+	/**
+	 * Disables the compression of payloads.
+	 * 
+	 * @see #setCompressionThreshold(int)
+	 */
+	public static final int NO_COMPRESSION = -1;
+	/**
+	 * Disables the fragmentation of payloads.
+	 * 
+	 * @see #setFragmentSize(int)
+	 */
+	public static final int NO_FRAGMENTATION = -1;
+	/**
+	 * Sends messages as a whole.
+	 * 
+	 * @see #setRegionSize(int)
+	 */
+	public static final int NO_REGIONS = -1;
 	private final Server server;
 	private final short snapshotHistoryCount;
 	private final Map<Connection, DiffConnectionHandler<T>> diffConnections;
 	private final boolean alwaysSendDiffs;
+	/**
+	 * The connections that were closed since the last dispatch.
+	 */
+	private final Queue<Connection> disconnectedConnections = new ConcurrentLinkedQueue<>();
+	/**
+	 * Guards the dispatch state, i.e. the delta cache, the snapshot store and
+	 * the snapshot lists of the connections.
+	 */
+	private final Object dispatchLock = new Object();
+	/**
+	 * The recipients of the current dispatch and their handlers.
+	 */
+	private final List<Connection> recipients = new ArrayList<>();
+	private final List<DiffConnectionHandler<T>> recipientHandlers = new ArrayList<>();
+	/**
+	 * @see #setExecutor(Executor, int)
+	 */
+	private Executor executor;
+	private int parallelism;
+	/**
+	 * The deltas computed during the current dispatch.
+	 */
+	private final DeltaCache deltaCache = new DeltaCache();
+	/**
+	 * The history of the messages that were dispatched to all connections.
+	 */
+	private final SnapshotStore snapshotStore;
+	/**
+	 * @see #setPreEncoding(boolean)
+	 */
+	private boolean preEncoding = false;
+	/**
+	 * @see #setKryoPool(KryoPool)
+	 */
+	private KryoPool kryoPool;
+	/**
+	 * @see #setDeltaCodec(DeltaCodec)
+	 */
+	private DeltaCodec deltaCodec = DeltaCodec.BLOCKS;
+	/**
+	 * @see #setBlockSize(int)
+	 */
+	private int blockSize = DiffMessage.DEFAULT_BLOCK_SIZE;
+	private final DeltaStatistics statistics = new DeltaStatistics();
+	/**
+	 * @see #setCompressionThreshold(int)
+	 */
+	private int compressionThreshold = NO_COMPRESSION;
+	private byte[] compressionDictionary;
+	/**
+	 * Compresses the payloads of the current dispatch or is <code>null</code>
+	 * if compression is disabled.
+	 */
+	private PayloadCompressor compressor;
+	/**
+	 * @see #setFragmentSize(int)
+	 */
+	private int fragmentSize = NO_FRAGMENTATION;
+	/**
+	 * The scratch outputs the payloads are serialized into to fragment them.
+	 */
+	private final ThreadLocal<Output> payloadOutput = ThreadLocal
+			.withInitial(() -> new Output(4096, -1));
+	/**
+	 * @see #setRegionSize(int)
+	 */
+	private int regionSize = NO_REGIONS;
+	/**
+	 * The region messages of the current recipient of each worker.
+	 */
+	private final ThreadLocal<List<RegionMessage>> regionMessages = ThreadLocal
+			.withInitial(ArrayList::new);
 
 	/**
 	 * @param server
@@ -59,21 +178,37 @@ public class ServerDiffHandler<T> {
 		this.server = server;
 		this.snapshotHistoryCount = snapshotHistoryCount;
 		this.alwaysSendDiffs = alwaysSendDiffs;
-		diffConnections = new HashMap<Connection, DiffConnectionHandler<T>>();
+		snapshotStore = new SnapshotStore(snapshotHistoryCount);
+		diffConnections = new ConcurrentHashMap<Connection, DiffConnectionHandler<T>>();
 
 		server.addListener(new Listener() {
 			@Override
 			public void disconnected(Connection connection) {
-				diffConnections.remove(connection);
+				// The handler may be in use by a dispatch right now
+				disconnectedConnections.offer(connection);
 			}
 
 			@Override
 			public void received(Connection con, Object m) {
-				if (m instanceof AckMessage
-						&& diffConnections.containsKey(con)) {
+				if (m instanceof AckMessage) {
+					AckMessage ack = (AckMessage) m;
+
+					registerAck(con, ack.getId(), ack.getReceivedBits());
+				} else if (m instanceof RegionAckMessage) {
+					RegionAckMessage ack = (RegionAckMessage) m;
+
+					registerRegionAck(con, ack);
+					BufferPool.DEFAULT
+							.freeByteArray(ack.getReceivedRegions());
+					RegionAckMessage.POOL.free(ack);
+				} else if (m instanceof ResyncMessage) {
 					DiffConnectionHandler<T> diffConnection = diffConnections
 							.get(con);
-					diffConnection.registerAck(((AckMessage) m).getId());
+					ResyncMessage resync = (ResyncMessage) m;
+
+					if (diffConnection != null)
+						diffConnection.requestKeyframe(resync.getId(),
+								resync.getBaselineId());
 				}
 			}
 		});
@@ -91,48 +226,383 @@ public class ServerDiffHandler<T> {
 		this(server, false);
 	}
 
+	/**
+	 * Dispatches a message to all clients. The message is only serialized
+	 * once; the resulting {@linkplain Snapshot snapshot} is kept in a history
+	 * shared by all connections.
+	 */
 	public void dispatchMessageToAll(T msg) {
-		for (Connection connection : server.getConnections()) {
-			dispatchMessageToConnection(connection, msg);
+		synchronized (dispatchLock) {
+			removeDisconnectedConnections();
+
+			Snapshot snapshot = serialize(msg);
+			long snapshotId = snapshotStore.add(snapshot);
+
+			for (Connection connection : server.getConnections()) {
+				addRecipient(connection);
+			}
+			dispatch(msg, snapshot, snapshotId);
+
+			snapshot.release();
 		}
 	}
 
 	/**
-	 * Dispatches a message to all clients in the filter.
+	 * Dispatches a message to all clients in the filter. The message is kept
+	 * in the private snapshot history of each recipient, so it does not
+	 * displace the messages dispatched to all clients from the shared
+	 * history.
 	 */
 	public void dispatchMessageToConnections(Collection<Connection> recipients,
 			T msg) {
-		for (Connection connection : server.getConnections()) {
-			if (recipients.contains(connection)) { // FIXME Reference
-													// comparison (?)
-				dispatchMessageToConnection(connection, msg);
+		synchronized (dispatchLock) {
+			removeDisconnectedConnections();
+
+			Snapshot snapshot = serialize(msg);
+
+			for (Connection connection : server.getConnections()) {
+				if (recipients.contains(connection)) { // FIXME Reference
+														// comparison (?)
+					addRecipient(connection);
+				}
+			}
+			dispatch(msg, snapshot, SnapshotStore.NO_ID);
+
+			snapshot.release();
+		}
+	}
+
+	/**
+	 * Serializes the message with an instance of the {@linkplain #kryoPool
+	 * Kryo pool} or, if none is set, with the server's Kryo instance.
+	 */
+	private Snapshot serialize(T msg) {
+		if (kryoPool == null)
+			return Snapshot.wrap(Utils.messageToBuffer(msg, server.getKryo()));
+
+		Kryo kryo = kryoPool.obtain();
+		try {
+			return Snapshot.wrap(Utils.messageToBuffer(msg, kryo));
+		} finally {
+			kryoPool.free(kryo);
+		}
+	}
+
+	private void addRecipient(Connection connection) {
+		recipients.add(connection);
+		recipientHandlers.add(getDiffConnection(connection));
+	}
+
+	/**
+	 * Sends the message to all {@linkplain #recipients recipients}, either on
+	 * the current thread or in parallel. Returns when the message was sent to
+	 * all of them.
+	 * 
+	 * @param snapshotId
+	 *            The id of the snapshot in the {@linkplain #snapshotStore
+	 *            store} or {@link SnapshotStore#NO_ID} if the snapshot is a
+	 *            private one
+	 */
+	private void dispatch(T msg, Snapshot snapshot, long snapshotId) {
+		try {
+			if (executor == null || parallelism <= 1 || recipients.size() <= 1) {
+				for (int i = 0; i < recipients.size(); i++) {
+					dispatchToRecipient(i, msg, snapshot, snapshotId);
+				}
+			} else {
+				dispatchInParallel(msg, snapshot, snapshotId);
 			}
+		} finally {
+			recipients.clear();
+			recipientHandlers.clear();
+			deltaCache.clear();
+			if (compressor != null)
+				compressor.clear();
 		}
 	}
 
-	private void dispatchMessageToConnection(Connection connection, T msg) {
-		if (!diffConnections.containsKey(connection)) {
-			diffConnections.put(connection, new DiffConnectionHandler<T>(
-					server.getKryo(), snapshotHistoryCount, alwaysSendDiffs));
+	/**
+	 * Distributes the recipients among up to {@link #parallelism} workers,
+	 * one of which is the current thread. Waits until all workers are done.
+	 */
+	private void dispatchInParallel(T msg, Snapshot snapshot,
+			long snapshotId) {
+		int count = recipients.size();
+		int workers = Math.min(parallelism, count);
+		AtomicInteger nextIndex = new AtomicInteger();
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		CountDownLatch done = new CountDownLatch(workers);
+
+		Runnable worker = () -> {
+			try {
+				int i;
+				while (failure.get() == null
+						&& (i = nextIndex.getAndIncrement()) < count) {
+					dispatchToRecipient(i, msg, snapshot, snapshotId);
+				}
+			} catch (Throwable t) {
+				failure.compareAndSet(null, t);
+			} finally {
+				done.countDown();
+			}
+		};
+
+		for (int i = 1; i < workers; i++) {
+			try {
+				executor.execute(worker);
+			} catch (RejectedExecutionException e) {
+				// The current thread does the work instead
+				done.countDown();
+			}
+		}
+		worker.run();
+
+		// The snapshot and the cached deltas must not be freed before all
+		// workers are done
+		boolean interrupted = false;
+		while (true) {
+			try {
+				done.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+
+		Throwable t = failure.get();
+		if (t != null) {
+			Throwables.throwIfUnchecked(t);
+			throw new IllegalStateException(t);
 		}
+	}
+
+	private void dispatchToRecipient(int index, T msg, Snapshot snapshot,
+			long snapshotId) {
+		DiffConnectionHandler<T> diffConnection = recipientHandlers.get(index);
+
+		if (regionSize != NO_REGIONS) {
+			List<RegionMessage> regions = regionMessages.get();
+			if (snapshotId == SnapshotStore.NO_ID) {
+				diffConnection.generateRegions(snapshot, regionSize,
+						deltaCache, regions);
+			} else {
+				diffConnection.generateRegions(snapshotId, regionSize,
+						deltaCache, regions);
+			}
 
+			sendRegions(recipients.get(index), regions);
+			return;
+		}
+
+		PayloadMessage newMessage = snapshotId == SnapshotStore.NO_ID
+				? diffConnection.generateSnapshot(msg, snapshot, deltaCache)
+				: diffConnection.generateSnapshot(msg, snapshotId, deltaCache);
+
+		send(recipients.get(index), msg, snapshot, newMessage);
+	}
+
+	/**
+	 * Sends the region messages and gives them back to the pool. Small
+	 * regions are batched, so that a datagram holds up to
+	 * {@link #regionSize} bytes. The arrays of the deltas are freed by the
+	 * delta cache.
+	 */
+	private void sendRegions(Connection connection,
+			List<RegionMessage> regions) {
+		RegionBatchMessage batch = RegionBatchMessage.POOL.obtain();
+		try {
+			int batchLength = 0;
+			for (RegionMessage region : regions) {
+				int length = region.getMaxSerializedLength();
+
+				if (!batch.getRegions().isEmpty()
+						&& batchLength + length > regionSize) {
+					sendBatch(connection, batch);
+					batchLength = 0;
+				}
+				batch.getRegions().add(region);
+				batchLength += length;
+			}
+			sendBatch(connection, batch);
+		} finally {
+			RegionBatchMessage.POOL.free(batch);
+
+			for (RegionMessage region : regions) {
+				if (region.getDelta() != null)
+					DiffMessage.POOL.free(region.getDelta());
+				RegionMessage.POOL.free(region);
+			}
+			regions.clear();
+		}
+	}
+
+	/**
+	 * Sends the regions of the batch and clears it. A single region is sent
+	 * on its own.
+	 */
+	private void sendBatch(Connection connection, RegionBatchMessage batch) {
+		List<RegionMessage> regions = batch.getRegions();
+
+		if (regions.size() == 1) {
+			server.sendToUDP(connection.getID(), regions.get(0));
+		} else if (!regions.isEmpty()) {
+			server.sendToUDP(connection.getID(), batch);
+		}
+		regions.clear();
+	}
+
+	/**
+	 * Removes the handlers of the closed connections and releases their
+	 * snapshots.
+	 */
+	private void removeDisconnectedConnections() {
+		Connection connection;
+		while ((connection = disconnectedConnections.poll()) != null) {
+			DiffConnectionHandler<T> diffConnection = diffConnections
+					.remove(connection);
+
+			if (diffConnection != null)
+				diffConnection.dispose();
+		}
+	}
+
+	private DiffConnectionHandler<T> getDiffConnection(Connection connection) {
 		DiffConnectionHandler<T> diffConnection = diffConnections
 				.get(connection);
-		PayloadMessage newMessage = diffConnection.generateSnapshot(msg);
-		server.sendToUDP(connection.getID(), newMessage);
 
-		// Everything back to pools
-		if (newMessage.getPayloadMessage() instanceof DiffMessage) {
-			DiffMessage diffMessage = (DiffMessage) newMessage
-					.getPayloadMessage();
+		if (diffConnection == null) {
+			diffConnection = new DiffConnectionHandler<T>(server.getKryo(),
+					snapshotHistoryCount, alwaysSendDiffs, snapshotStore);
+			diffConnection.setDeltaCodec(deltaCodec);
+			diffConnection.setBlockSize(blockSize);
+			diffConnection.setStatistics(statistics);
+			diffConnections.put(connection, diffConnection);
+		}
+
+		return diffConnection;
+	}
+
+	private void send(Connection connection, T msg, Snapshot snapshot,
+			PayloadMessage newMessage) {
+		Object payload = newMessage.getPayloadMessage();
+		CompressedMessage compressed = compress(payload == msg ? null
+				: (DiffMessage) payload, snapshot);
+
+		if (compressed != null) {
+			newMessage.set(newMessage.getId(), compressed);
+		} else if ((preEncoding || fragmentSize != NO_FRAGMENTATION)
+				&& payload == msg) {
+			// The snapshot already contains the serialized message
+			newMessage.setEncodedPayload(snapshot.getBuffer().array(),
+					snapshot.size());
+		}
+
+		if (fragmentSize == NO_FRAGMENTATION) {
+			server.sendToUDP(connection.getID(), newMessage);
+		} else {
+			sendFragmented(connection, newMessage);
+		}
 
-			BufferPool.DEFAULT.freeByteArray(diffMessage.getFlags());
-			BufferPool.DEFAULT.freeIntArray(diffMessage.getData());
-			DiffMessage.POOL.free(diffMessage);
+		// Everything back to pools; the arrays are freed by the delta cache
+		// and the compressor
+		if (payload instanceof DiffMessage) {
+			DiffMessage.POOL.free((DiffMessage) payload);
+		}
+		if (compressed != null) {
+			CompressedMessage.POOL.free(compressed);
 		}
 		PayloadMessage.POOL.free(newMessage);
 	}
 
+	/**
+	 * Sends the message in fragments if its payload is longer than the
+	 * {@linkplain #fragmentSize fragment size}, otherwise as it is. The
+	 * payload is serialized only once in either case.
+	 */
+	private void sendFragmented(Connection connection,
+			PayloadMessage newMessage) {
+		byte[] bytes = newMessage.getEncodedPayload();
+		int length = newMessage.getEncodedPayloadLength();
+
+		if (bytes == null) {
+			Output output = payloadOutput.get();
+			output.reset();
+			encode(output, newMessage.getPayloadMessage());
+
+			bytes = output.getBuffer();
+			length = output.position();
+		}
+
+		if (length <= fragmentSize) {
+			newMessage.setEncodedPayload(bytes, length);
+			server.sendToUDP(connection.getID(), newMessage);
+			return;
+		}
+
+		int count = (length + fragmentSize - 1) / fragmentSize;
+		int fragmentLength = FragmentMessage.getFragmentLength(length, count);
+		FragmentMessage fragment = FragmentMessage.POOL.obtain();
+
+		for (int i = 0; i < count; i++) {
+			int offset = i * fragmentLength;
+			fragment.set(newMessage.getId(), i, count, length, bytes, offset,
+					Math.min(fragmentLength, length - offset));
+			server.sendToUDP(connection.getID(), fragment);
+		}
+
+		FragmentMessage.POOL.free(fragment);
+	}
+
+	/**
+	 * Serializes a payload with an instance of the {@linkplain #kryoPool Kryo
+	 * pool} or, if none is set, with the server's Kryo instance. The latter
+	 * only happens if no executor is set.
+	 * 
+	 * @see #checkKryoPool(Executor, int, KryoPool)
+	 */
+	private void encode(Output output, Object payload) {
+		if (kryoPool == null) {
+			server.getKryo().writeClassAndObject(output, payload);
+			return;
+		}
+
+		Kryo kryo = kryoPool.obtain();
+		try {
+			kryo.writeClassAndObject(output, payload);
+		} finally {
+			kryoPool.free(kryo);
+		}
+	}
+
+	/**
+	 * Compresses the payload, if compression is enabled and worth it.
+	 * 
+	 * @param delta
+	 *            The delta message or <code>null</code> if the full message
+	 *            is sent
+	 * @param snapshot
+	 *            The serialized full message
+	 * @return A compressed message obtained from the pool or
+	 *         <code>null</code> if the payload is sent uncompressed.
+	 */
+	private CompressedMessage compress(DiffMessage delta, Snapshot snapshot) {
+		if (compressor == null)
+			return null;
+
+		CompressedMessage compressed = delta == null
+				? compressor.compress(snapshot)
+				: compressor.compress(delta);
+		if (compressed == null)
+			return null;
+
+		return CompressedMessage.POOL.obtain().set(compressed.isDelta(),
+				delta == null ? 0 : delta.getMessageId(),
+				compressed.getBytes(), compressed.getLength(),
+				compressed.getUncompressedLength());
+	}
+
 	/**
 	 * Returns the lag in terms of how many messages sent to the client haven't
 	 * been acknowledged. If the connection does not exist, for example because
@@ -143,10 +613,400 @@ public class ServerDiffHandler<T> {
 	 * @return Connection lag
 	 */
 	public int getLag(Connection conn) {
-		Preconditions.checkState(diffConnections.containsKey(conn),
+		DiffConnectionHandler<T> diffConnection = diffConnections.get(conn);
+
+		Preconditions.checkState(diffConnection != null,
 				"Trying to get lag of a connection that does not exist (yet).");
 
-		return diffConnections.get(conn).getLag();
+		return diffConnection.getLag();
+	}
+
+	/**
+	 * Registers an acknowledgment the client sent as part of an application
+	 * message instead of an {@link AckMessage}, e.g. by embedding the
+	 * {@linkplain ClientDiffHandler#pollPendingAck() pending acknowledgment}
+	 * in its input messages. Can be called from any thread; it never blocks.
+	 * Acknowledgments of connections that were not sent any messages yet are
+	 * ignored.
+	 * 
+	 * @param conn
+	 *            Connection to client
+	 * @param id
+	 *            The id of the acknowledged message
+	 * @param receivedBits
+	 *            The bitmask of the messages received before it
+	 * @see AckMessage#getReceivedBits()
+	 */
+	public void registerAck(Connection conn, short id, int receivedBits) {
+		DiffConnectionHandler<T> diffConnection = diffConnections.get(conn);
+
+		if (diffConnection != null)
+			diffConnection.registerAck(id, receivedBits);
+	}
+
+	/**
+	 * Registers an acknowledgment of regions the client sent as part of an
+	 * application message instead of as a datagram, e.g. by embedding the
+	 * {@linkplain ClientDiffHandler#pollPendingRegionAck() pending
+	 * acknowledgment} in its input messages. Can be called from any thread; it
+	 * never blocks. The acknowledgment is not given back to the pool.
+	 * 
+	 * @param conn
+	 *            Connection to client
+	 * @param ack
+	 *            The acknowledgment of the regions
+	 * @see #registerAck(Connection, short, int)
+	 */
+	public void registerRegionAck(Connection conn, RegionAckMessage ack) {
+		DiffConnectionHandler<T> diffConnection = diffConnections.get(conn);
+
+		if (diffConnection != null)
+			diffConnection.registerRegionAck(ack.getId(),
+					ack.getRegionCount(), ack.getReceivedRegions());
+	}
+
+	/**
+	 * Sets the executor used to dispatch messages in parallel. The
+	 * parallelism of a {@link ForkJoinPool} is adopted; for other executors,
+	 * the number of available processors is used.
+	 * 
+	 * @see #setExecutor(Executor, int)
+	 */
+	public void setExecutor(Executor executor) {
+		setExecutor(executor,
+				executor instanceof ForkJoinPool
+						? ((ForkJoinPool) executor).getParallelism()
+						: Runtime.getRuntime().availableProcessors());
 	}
 
+	/**
+	 * Sets the executor used to generate and send the messages of a dispatch
+	 * in parallel, e.g. a {@link ForkJoinPool} or an executor that starts a
+	 * virtual thread per task. The recipients are distributed among up to
+	 * {@code parallelism} workers, one of which is the dispatching thread; a
+	 * dispatch returns when all of them are done.
+	 * <p>
+	 * The workers do not use Kryo: the messages are serialized once by the
+	 * dispatching thread and the deltas are computed on the serialized bytes.
+	 * However, KryoNet serializes the sent messages under a lock of the
+	 * server's UDP connection, so {@linkplain #setPreEncoding(boolean)
+	 * pre-encoding} should be enabled to keep that part short. The only
+	 * exception are {@linkplain #setFragmentSize(int) fragmented} payloads,
+	 * which the workers serialize with instances of the
+	 * {@linkplain #setKryoPool(KryoPool) Kryo pool}; one has to be set
+	 * before.
+	 * 
+	 * @param executor
+	 *            The executor or <code>null</code> to dispatch on the calling
+	 *            thread only, which is the default.
+	 * @param parallelism
+	 *            The maximum number of workers per dispatch, including the
+	 *            dispatching thread.
+	 * @throws IllegalStateException
+	 *             if fragmentation is enabled, but no Kryo pool is set
+	 */
+	public void setExecutor(Executor executor, int parallelism) {
+		Preconditions.checkArgument(parallelism >= 1);
+
+		synchronized (dispatchLock) {
+			checkKryoPool(executor, fragmentSize, kryoPool);
+			this.executor = executor;
+			this.parallelism = parallelism;
+		}
+	}
+
+	/**
+	 * Enables or disables the pre-encoding of payloads. If enabled, every
+	 * distinct payload of a dispatch is only serialized once: full messages
+	 * reuse the bytes of their snapshot and deltas are encoded once per
+	 * acknowledged snapshot. Sending them to a client then only requires
+	 * copying those bytes, instead of running their serializers again.
+	 * <p>
+	 * Both endpoints have to {@linkplain DiffClassRegistration#registerClasses
+	 * register} the quakemonkey classes. Pre-encoding should not be used if
+	 * Kryo's references are enabled, as the message's serialized form is then
+	 * dependent on its surroundings.
+	 * 
+	 * @param preEncoding
+	 *            Whether payloads should be pre-encoded. Is <code>false</code>
+	 *            by default.
+	 */
+	public void setPreEncoding(boolean preEncoding) {
+		synchronized (dispatchLock) {
+			this.preEncoding = preEncoding;
+			deltaCache.setPreEncoding(preEncoding);
+		}
+	}
+
+	/**
+	 * Sets the codec used to compute the deltas of all connections. The
+	 * clients do not have to be configured; they can decode the deltas of
+	 * every codec.
+	 * 
+	 * @param deltaCodec
+	 *            The codec. Is {@link DeltaCodec#BLOCKS} by default.
+	 */
+	public void setDeltaCodec(DeltaCodec deltaCodec) {
+		Preconditions.checkNotNull(deltaCodec);
+
+		synchronized (dispatchLock) {
+			this.deltaCodec = deltaCodec;
+
+			for (DiffConnectionHandler<T> diffConnection : diffConnections
+					.values()) {
+				diffConnection.setDeltaCodec(deltaCodec);
+			}
+		}
+	}
+
+	/**
+	 * Sets the size of the blocks the block deltas of all connections consist
+	 * of. The clients do not have to be configured.
+	 * 
+	 * @param blockSize
+	 *            One of {@link BlockComparison#BLOCK_SIZES}
+	 *            or {@link DiffConnectionHandler#ADAPTIVE_BLOCK_SIZE} to pick
+	 *            the block size per snapshot. Is
+	 *            {@link DiffMessage#DEFAULT_BLOCK_SIZE} by default.
+	 * @see DiffConnectionHandler#setBlockSize(int)
+	 * @see #getBlockSizeCount(int)
+	 */
+	public void setBlockSize(int blockSize) {
+		Preconditions.checkArgument(
+				DiffConnectionHandler.isValidBlockSize(blockSize),
+				"Unsupported block size: %s", blockSize);
+
+		synchronized (dispatchLock) {
+			this.blockSize = blockSize;
+
+			for (DiffConnectionHandler<T> diffConnection : diffConnections
+					.values()) {
+				diffConnection.setBlockSize(blockSize);
+			}
+		}
+	}
+
+	/**
+	 * Enables the compression of full messages and deltas whose serialized
+	 * form is at least {@code threshold} bytes long. The payloads are
+	 * compressed with a {@link java.util.zip.Deflater}, after the delta was
+	 * computed, and are only sent compressed if that makes them smaller. Each
+	 * distinct payload of a dispatch is compressed once.
+	 * <p>
+	 * Compression pays off for full messages in particular, i.e. for new
+	 * clients and clients that lag behind, and more so with a
+	 * {@linkplain #setCompressionDictionary(byte[]) dictionary}.
+	 * 
+	 * @param threshold
+	 *            The minimum size in bytes or {@link #NO_COMPRESSION}, which
+	 *            is the default.
+	 * @see #getCompressionRatio()
+	 * @see #getAverageCompressionNanos()
+	 */
+	public void setCompressionThreshold(int threshold) {
+		Preconditions.checkArgument(threshold >= NO_COMPRESSION);
+
+		synchronized (dispatchLock) {
+			this.compressionThreshold = threshold;
+			updateCompressor();
+		}
+	}
+
+	/**
+	 * Sets the preset dictionary of the compression. The clients have to use
+	 * the {@linkplain ClientDiffHandler#setCompressionDictionary(byte[]) same
+	 * dictionary}; it can be created from typical messages by
+	 * {@link net.quakemonkey.utils.CompressionDictionary#create(Kryo, Iterable, int)
+	 * CompressionDictionary#create(Kryo, Iterable, int)}.
+	 * 
+	 * @param dictionary
+	 *            The dictionary or <code>null</code> to compress without one,
+	 *            which is the default. Must not be changed afterwards.
+	 */
+	public void setCompressionDictionary(byte[] dictionary) {
+		synchronized (dispatchLock) {
+			this.compressionDictionary = dictionary;
+			updateCompressor();
+		}
+	}
+
+	/**
+	 * Enables the fragmentation of payloads that are longer than
+	 * {@code fragmentSize} bytes. They are split into fragments of about equal
+	 * length, which are sent as separate datagrams and reassembled by the
+	 * client. This avoids relying on IP fragmentation, where the loss of one
+	 * fragment loses the whole datagram without the sender knowing which
+	 * part was missing.
+	 * <p>
+	 * The fragment size should leave room for the headers of IP, UDP, KryoNet
+	 * and the fragment below the MTU, e.g. <code>1200</code> bytes. Payloads
+	 * are fragmented after they were {@linkplain #setCompressionThreshold(int)
+	 * compressed}. If an {@linkplain #setExecutor(Executor, int) executor} is
+	 * used, a {@linkplain #setKryoPool(KryoPool) Kryo pool} has to be set
+	 * before, as the payloads are serialized by the workers.
+	 * 
+	 * @param fragmentSize
+	 *            The maximum number of payload bytes per datagram or
+	 *            {@link #NO_FRAGMENTATION}, which is the default.
+	 * @throws IllegalStateException
+	 *             if an executor, but no Kryo pool is set
+	 */
+	public void setFragmentSize(int fragmentSize) {
+		Preconditions.checkArgument(
+				fragmentSize > 0 || fragmentSize == NO_FRAGMENTATION);
+
+		synchronized (dispatchLock) {
+			checkKryoPool(executor, fragmentSize, kryoPool);
+			this.fragmentSize = fragmentSize;
+		}
+	}
+
+	/**
+	 * Sends every message in regions of {@code regionSize} bytes, each in a
+	 * datagram of its own. Every region is a delta to the same region of an
+	 * older message, namely of the last message of which the client
+	 * acknowledged that region, so the client can decode it independently of
+	 * the other regions. The loss of a datagram therefore only delays the
+	 * message it belongs to: the next message can still be decoded, and only
+	 * the lost region is sent as a delta to an older baseline.
+	 * <p>
+	 * This suits very large messages, which would otherwise have to be
+	 * {@linkplain #setFragmentSize(int) fragmented}. The regions of the
+	 * snapshots are copied once per snapshot and their deltas are shared by
+	 * all connections that acknowledged the same region. Regions are neither
+	 * compressed nor fragmented, so the region size should be below the MTU,
+	 * e.g. <code>1024</code> bytes. The mode should be set before the first
+	 * message is dispatched.
+	 * 
+	 * @param regionSize
+	 *            The size of a region in bytes or {@link #NO_REGIONS}, which
+	 *            is the default.
+	 */
+	public void setRegionSize(int regionSize) {
+		Preconditions
+				.checkArgument(regionSize > 0 || regionSize == NO_REGIONS);
+
+		synchronized (dispatchLock) {
+			this.regionSize = regionSize;
+		}
+	}
+
+	private void updateCompressor() {
+		compressor = compressionThreshold == NO_COMPRESSION ? null
+				: new PayloadCompressor(compressionThreshold,
+						compressionDictionary, statistics);
+	}
+
+	/**
+	 * Sets the pool of the Kryo instances used to serialize the dispatched
+	 * messages. By default, the server's Kryo instance is used, which is not
+	 * thread-safe and is also used by KryoNet's update thread to read the
+	 * received messages.
+	 * <p>
+	 * The factory of the pool has to replay the registrations of the server's
+	 * Kryo instance; this is {@linkplain KryoPool#checkRegistrations(Kryo)
+	 * checked} right away, so the pool should be set after all classes are
+	 * registered.
+	 * 
+	 * @param kryoPool
+	 *            The pool or <code>null</code> to use the server's instance
+	 * @throws IllegalArgumentException
+	 *             if the registrations of the pool's instances differ from the
+	 *             server's
+	 * @throws IllegalStateException
+	 *             if the pool is removed, while fragmented payloads are
+	 *             serialized by the workers of an executor
+	 */
+	public void setKryoPool(KryoPool kryoPool) {
+		if (kryoPool != null)
+			kryoPool.checkRegistrations(server.getKryo());
+
+		synchronized (dispatchLock) {
+			checkKryoPool(executor, fragmentSize, kryoPool);
+			this.kryoPool = kryoPool;
+		}
+	}
+
+	/**
+	 * Checks that the workers of an executor do not share the server's Kryo
+	 * instance, which is not thread-safe, to serialize fragmented payloads.
+	 */
+	private static void checkKryoPool(Executor executor, int fragmentSize,
+			KryoPool kryoPool) {
+		Preconditions.checkState(
+				executor == null || fragmentSize == NO_FRAGMENTATION
+						|| kryoPool != null,
+				"Fragmenting payloads in parallel requires a Kryo pool");
+	}
+
+	/**
+	 * Returns the fraction of deltas that could be reused from another
+	 * connection, because both connections acknowledged the same snapshot.
+	 * 
+	 * @return The hit rate of the delta cache, between <code>0</code> and
+	 *         <code>1</code>.
+	 * @see #getDeltaCacheHits()
+	 */
+	public double getDeltaCacheHitRate() {
+		long lookups = deltaCache.getHits() + deltaCache.getMisses();
+
+		return lookups == 0 ? 0 : deltaCache.getHits() / (double) lookups;
+	}
+
+	/**
+	 * @return The number of deltas that did not have to be computed, because
+	 *         they were already computed for another connection.
+	 */
+	public long getDeltaCacheHits() {
+		return deltaCache.getHits();
+	}
+
+	/**
+	 * @return The number of deltas that had to be computed.
+	 */
+	public long getDeltaCacheMisses() {
+		return deltaCache.getMisses();
+	}
+
+	/**
+	 * Returns how often a block size was used, e.g. to see which one the
+	 * {@linkplain DiffConnectionHandler#ADAPTIVE_BLOCK_SIZE adaptive block
+	 * size} settles on. Deltas that were reused from another connection are
+	 * only counted once.
+	 * 
+	 * @param blockSize
+	 *            One of {@link BlockComparison#BLOCK_SIZES}
+	 * @return The number of computed block deltas with that block size.
+	 */
+	public long getBlockSizeCount(int blockSize) {
+		return statistics.getBlockSizeCount(blockSize);
+	}
+
+	/**
+	 * @return The number of payloads that were compressed. Payloads that were
+	 *         sent to multiple connections are only counted once.
+	 * @see #setCompressionThreshold(int)
+	 */
+	public long getCompressionCount() {
+		return statistics.getCompressionCount();
+	}
+
+	/**
+	 * Returns the size of the compressed payloads relative to their
+	 * uncompressed size. Payloads that did not get smaller are counted with
+	 * their uncompressed size, as they are sent uncompressed.
+	 * 
+	 * @return The ratio, between <code>0</code> and <code>1</code>.
+	 */
+	public double getCompressionRatio() {
+		return statistics.getCompressionRatio();
+	}
+
+	/**
+	 * @return The average time it took to compress a payload in
+	 *         nanoseconds.
+	 */
+	public double getAverageCompressionNanos() {
+		return statistics.getAverageCompressionNanos();
+	}
 }
@@ -0,0 +1,163 @@
+package net.quakemonkey;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Preconditions;
+
+import net.quakemonkey.utils.pool.BufferPool;
+
+/**
+ * A serialized message that can be shared by the snapshot histories of
+ * multiple connections. The underlying buffer is reference counted and given
+ * back to the {@linkplain BufferPool pool} as soon as the last holder
+ * {@linkplain #release() releases} it.
+ * <p>
+ * The buffer of a snapshot must not be modified after its creation and should
+ * only be read via absolute operations, as it is accessed by all connections
+ * the message was broadcast to.
+ *
+ * @see ServerDiffHandler#dispatchMessageToAll(Object)
+ */
+public final class Snapshot {
+	private final ByteBuffer buffer;
+	private final int size;
+	private final AtomicInteger refCount = new AtomicInteger(1);
+	/**
+	 * The regions of this snapshot or <code>null</code> if they were not
+	 * created yet.
+	 *
+	 * @see #getRegion(int, int)
+	 */
+	private Snapshot[] regions;
+	private int regionSize;
+
+	private Snapshot(ByteBuffer buffer) {
+		this.buffer = buffer;
+		this.size = buffer.remaining();
+
+		// the diff is computed in blocks and may therefore read past the end
+		// of the actual message
+		buffer.limit(buffer.capacity());
+	}
+
+	/**
+	 * Creates a new snapshot holding a single reference.
+	 *
+	 * @param buffer
+	 *            A buffer containing a serialized message, positioned at its
+	 *            start. The snapshot takes ownership of the buffer.
+	 * @return The snapshot.
+	 */
+	public static Snapshot wrap(ByteBuffer buffer) {
+		Preconditions.checkNotNull(buffer);
+
+		return new Snapshot(buffer);
+	}
+
+	/**
+	 * @return The buffer containing the serialized message. Its limit is set
+	 *         to the buffer's capacity; the actual message size is returned by
+	 *         {@link #size()}.
+	 */
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * @return The size of the serialized message in bytes.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return The number of regions of the given size the snapshot consists
+	 *         of.
+	 */
+	public int getRegionCount(int regionSize) {
+		return Math.max(1, (size + regionSize - 1) / regionSize);
+	}
+
+	/**
+	 * Returns a region of this snapshot as a snapshot of its own. The regions
+	 * are copied once, when the first of them is requested, and are kept until
+	 * this snapshot is released or regions of another size are requested. Like
+	 * any snapshot, a region is followed by zeros up to the capacity of its
+	 * buffer.
+	 *
+	 * @param index
+	 *            The index of the region
+	 * @param regionSize
+	 *            The size of all but the last region in bytes
+	 * @return The region. It is owned by this snapshot.
+	 */
+	public synchronized Snapshot getRegion(int index, int regionSize) {
+		Preconditions.checkState(refCount.get() > 0,
+				"The snapshot was already released");
+		Preconditions.checkElementIndex(index, getRegionCount(regionSize));
+
+		if (regions == null || this.regionSize != regionSize) {
+			releaseRegions();
+
+			regions = new Snapshot[getRegionCount(regionSize)];
+			this.regionSize = regionSize;
+		}
+
+		if (regions[index] == null) {
+			int offset = index * regionSize;
+			int length = Math.min(regionSize, size - offset);
+			ByteBuffer region = BufferPool.DEFAULT.obtainByteBuffer(length);
+
+			System.arraycopy(buffer.array(), offset, region.array(), 0,
+					length);
+			Arrays.fill(region.array(), length, region.capacity(), (byte) 0);
+			region.clear();
+			region.limit(length);
+			regions[index] = new Snapshot(region);
+		}
+
+		return regions[index];
+	}
+
+	private void releaseRegions() {
+		if (regions != null) {
+			for (Snapshot region : regions) {
+				if (region != null)
+					region.release();
+			}
+			regions = null;
+		}
+	}
+
+	/**
+	 * Acquires an additional reference to this snapshot.
+	 *
+	 * @return This snapshot.
+	 */
+	public Snapshot retain() {
+		Preconditions.checkState(refCount.getAndIncrement() > 0,
+				"The snapshot was already released");
+
+		return this;
+	}
+
+	/**
+	 * Releases a reference to this snapshot. When the last reference is
+	 * released, the buffer is freed.
+	 */
+	public void release() {
+		int count = refCount.decrementAndGet();
+
+		Preconditions.checkState(count >= 0,
+				"The snapshot was released too often");
+
+		if (count == 0) {
+			synchronized (this) {
+				releaseRegions();
+			}
+			BufferPool.DEFAULT.freeByteBuffer(buffer);
+		}
+	}
+}
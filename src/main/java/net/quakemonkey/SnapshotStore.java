@@ -0,0 +1,69 @@
+package net.quakemonkey;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The server-wide history of the {@linkplain Snapshot snapshots} that were
+ * broadcast to all connections. Each snapshot is stored once and identified by
+ * a global id; the connections only keep track of which global id each of
+ * their messages refers to. The memory used for the history therefore does
+ * not depend on the number of connections.
+ * <p>
+ * The store holds the last {@code capacity} snapshots. Older snapshots are
+ * {@linkplain Snapshot#release() released}, so connections whose last
+ * acknowledged snapshot was evicted receive a full message.
+ *
+ * @see ServerDiffHandler#dispatchMessageToAll(Object)
+ */
+class SnapshotStore {
+	/**
+	 * The id that does not refer to any snapshot.
+	 */
+	static final long NO_ID = -1;
+
+	private final Snapshot[] snapshots;
+	private long nextId;
+
+	/**
+	 * @param capacity
+	 *            The number of snapshots to keep
+	 */
+	SnapshotStore(int capacity) {
+		Preconditions.checkArgument(capacity > 0);
+
+		snapshots = new Snapshot[capacity];
+	}
+
+	/**
+	 * Adds a snapshot to the store and evicts the oldest one, if the store is
+	 * full. The snapshot is {@linkplain Snapshot#retain() retained} until it
+	 * is evicted.
+	 *
+	 * @param snapshot
+	 *            The snapshot
+	 * @return The global id of the snapshot.
+	 */
+	long add(Snapshot snapshot) {
+		long id = nextId++;
+		int index = (int) (id % snapshots.length);
+
+		if (snapshots[index] != null)
+			snapshots[index].release();
+		snapshots[index] = snapshot.retain();
+
+		return id;
+	}
+
+	/**
+	 * @param id
+	 *            The global id of a snapshot
+	 * @return The snapshot or <code>null</code> if it was already evicted or
+	 *         the id is unknown.
+	 */
+	Snapshot get(long id) {
+		if (id < 0 || id >= nextId || id < nextId - snapshots.length)
+			return null;
+
+		return snapshots[(int) (id % snapshots.length)];
+	}
+}
@@ -4,7 +4,9 @@ import net.quakemonkey.utils.pool.Pool;
 
 /**
  * An acknowledgment message that is sent from the client to the server. It
- * contains an {@linkplain #id identifier} of the message that was received.
+ * contains an {@linkplain #id identifier} of the newest message that was
+ * received and a {@linkplain #receivedBits bitmask} of the messages received
+ * before it, so a lost acknowledgment is repeated by the following ones.
  * 
  * @author Ben Ruijl
  * 
@@ -20,10 +22,16 @@ public final class AckMessage {
 				@Override
 				public void onFree(AckMessage obj) {
 					obj.id = 0;
+					obj.receivedBits = 0;
 				}
 			});
 
 	private short id;
+	/**
+	 * Bit {@code i} is set if the message {@code id - 1 - i} was received as
+	 * well.
+	 */
+	private int receivedBits;
 
 	public AckMessage() {
 		// default public constructor
@@ -33,6 +41,10 @@ public final class AckMessage {
 		return id;
 	}
 
+	public int getReceivedBits() {
+		return receivedBits;
+	}
+
 	/**
 	 * Sets the properties of this message.
 	 * <p>
@@ -42,13 +54,28 @@ public final class AckMessage {
 	 * @return
 	 */
 	public AckMessage set(short id) {
+		return set(id, 0);
+	}
+
+	/**
+	 * Sets the properties of this message.
+	 * <p>
+	 * Utility method for the {@linkplain #POOL pool}.
+	 * 
+	 * @param id
+	 * @param receivedBits
+	 * @return
+	 */
+	public AckMessage set(short id, int receivedBits) {
 		this.id = id;
+		this.receivedBits = receivedBits;
 
 		return this;
 	}
 
 	@Override
 	public String toString() {
-		return "AckMessage { id: " + id + "}";
+		return "AckMessage { id: " + id + ", receivedBits: "
+				+ Integer.toBinaryString(receivedBits) + "}";
 	}
 }
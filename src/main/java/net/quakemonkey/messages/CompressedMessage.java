@@ -0,0 +1,107 @@
+package net.quakemonkey.messages;
+
+import net.quakemonkey.utils.pool.Pool;
+
+/**
+ * A payload that was compressed with a {@link java.util.zip.Deflater}, possibly
+ * with a preset dictionary. It either holds a full message, serialized by
+ * {@link com.esotericsoftware.kryo.Kryo#writeClassAndObject(com.esotericsoftware.kryo.io.Output, Object)
+ * Kryo#writeClassAndObject(Output, Object)}, or the
+ * {@linkplain DiffMessageSerializer#writeFlagsAndData(com.esotericsoftware.kryo.io.Output, DiffMessage)
+ * flags and data} of a delta message.
+ */
+public final class CompressedMessage {
+	public static final Pool<CompressedMessage> POOL = new Pool<CompressedMessage>(
+			new Pool.ObjectSupplier<CompressedMessage>() {
+				@Override
+				public CompressedMessage newInstance() {
+					return new CompressedMessage();
+				}
+
+				@Override
+				public void onFree(CompressedMessage obj) {
+					obj.delta = false;
+					obj.messageId = 0;
+					obj.bytes = null;
+					obj.length = 0;
+					obj.uncompressedLength = 0;
+				}
+			});
+
+	private boolean delta;
+	/**
+	 * The ID of the message the delta is from.
+	 */
+	private short messageId;
+	private byte[] bytes;
+	private int length;
+	private int uncompressedLength;
+
+	public CompressedMessage() {
+		// default public constructor
+	}
+
+	/**
+	 * @return Whether a delta message or a full message was compressed.
+	 */
+	public boolean isDelta() {
+		return delta;
+	}
+
+	/**
+	 * @return The ID of the message the delta is from. Is only set for
+	 *         deltas.
+	 */
+	public short getMessageId() {
+		return messageId;
+	}
+
+	/**
+	 * @return The compressed bytes. The array may be longer than them.
+	 */
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public int getUncompressedLength() {
+		return uncompressedLength;
+	}
+
+	/**
+	 * Sets the properties of this message.
+	 * <p>
+	 * Utility method for the {@linkplain #POOL pool}.
+	 * 
+	 * @param delta
+	 *            Whether a delta message was compressed
+	 * @param messageId
+	 *            The ID of the message the delta is from
+	 * @param bytes
+	 * @param length
+	 *            The number of compressed bytes
+	 * @param uncompressedLength
+	 *            The number of bytes before the compression
+	 * @return
+	 */
+	public CompressedMessage set(boolean delta, short messageId, byte[] bytes,
+			int length, int uncompressedLength) {
+		this.delta = delta;
+		this.messageId = messageId;
+		this.bytes = bytes;
+		this.length = length;
+		this.uncompressedLength = uncompressedLength;
+
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return "CompressedMessage { " + (delta ? "delta to " + messageId
+				: "full message") + ", " + length + " of "
+				+ uncompressedLength + " bytes}";
+	}
+}
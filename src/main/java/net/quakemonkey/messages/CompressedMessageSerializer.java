@@ -0,0 +1,42 @@
+package net.quakemonkey.messages;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import net.quakemonkey.utils.pool.BufferPool;
+
+/**
+ * Serializes a compressed payload. The compressed bytes of read messages are
+ * obtained from the {@linkplain BufferPool pool}.
+ */
+public class CompressedMessageSerializer
+		extends Serializer<CompressedMessage> {
+
+	@Override
+	public CompressedMessage read(Kryo kryo, Input input,
+			Class<? extends CompressedMessage> type) {
+		boolean delta = input.readBoolean();
+		short messageId = delta ? input.readShort() : 0;
+		int uncompressedLength = input.readVarInt(true);
+		int length = input.readVarInt(true);
+
+		byte[] bytes = BufferPool.DEFAULT.obtainByteArray(length);
+		input.readBytes(bytes, 0, length);
+
+		return CompressedMessage.POOL.obtain().set(delta, messageId, bytes,
+				length, uncompressedLength);
+	}
+
+	@Override
+	public void write(Kryo kryo, Output output, CompressedMessage msg) {
+		output.writeBoolean(msg.isDelta());
+		if (msg.isDelta())
+			output.writeShort(msg.getMessageId());
+		output.writeVarInt(msg.getUncompressedLength(), true);
+		output.writeVarInt(msg.getLength(), true);
+		output.writeBytes(msg.getBytes(), 0, msg.getLength());
+	}
+
+}
@@ -2,11 +2,18 @@ package net.quakemonkey.messages;
 
 import java.util.Arrays;
 
+import com.esotericsoftware.kryo.io.Output;
+
+import net.quakemonkey.utils.BlockComparison;
 import net.quakemonkey.utils.pool.Pool;
 
 /**
  * This message is used to send the byte-level difference of two messages to the
- * client.
+ * client. The difference is either given by the changed blocks of
+ * {@linkplain #getBlockSize() one to 16 bytes} (the {@linkplain #getFlags()
+ * flags} and {@linkplain #getData() data}) or by
+ * the {@linkplain #getInstructions() instructions} of a
+ * {@link net.quakemonkey.utils.RollingHashDelta}.
  * 
  * @author Ben Ruijl
  */
@@ -23,15 +30,46 @@ public final class DiffMessage {
 					obj.messageId = (byte) 0;
 					obj.data = null;
 					obj.flags = null;
+					obj.blockSize = DEFAULT_BLOCK_SIZE;
+					obj.xorData = false;
+					obj.instructions = null;
+					obj.instructionsLength = 0;
+					obj.encodedFlagsAndData = null;
+					obj.encodedFlagsAndDataLength = 0;
 				}
 			});
 
+	/**
+	 * The block size of deltas that do not {@linkplain #setBlockSize(int) set}
+	 * one.
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = BlockComparison.DEFAULT_BLOCK_SIZE;
+
 	/**
 	 * ID of the message the diff is from.
 	 */
 	private short messageId;
 	private byte[] flags;
 	private int[] data;
+	private int blockSize = DEFAULT_BLOCK_SIZE;
+	/**
+	 * @see #isXorData()
+	 */
+	private boolean xorData;
+	/**
+	 * The copy and insert instructions or <code>null</code> if the delta
+	 * consists of blocks.
+	 */
+	private byte[] instructions;
+	private int instructionsLength;
+	/**
+	 * The flags and data as they were already serialized by the sender. Is
+	 * not sent itself.
+	 * 
+	 * @see DiffMessageSerializer
+	 */
+	private transient byte[] encodedFlagsAndData;
+	private transient int encodedFlagsAndDataLength;
 
 	public DiffMessage() {
 		// default public constructor
@@ -44,6 +82,12 @@ public final class DiffMessage {
 		return messageId;
 	}
 
+	/**
+	 * @return The content of the changed blocks, one block after the other.
+	 *         Four bytes are packed into an int in big-endian order; the last
+	 *         int is padded with zeros. For received messages, the array may
+	 *         be longer than needed.
+	 */
 	public int[] getData() {
 		return data;
 	}
@@ -70,10 +114,131 @@ public final class DiffMessage {
 		return this;
 	}
 
+	/**
+	 * @return The size of a block in bytes; one of
+	 *         {@link BlockComparison#BLOCK_SIZES}.
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Sets the size of the blocks the flags refer to.
+	 * 
+	 * @param blockSize
+	 *            The size of a block in bytes. Is {@link #DEFAULT_BLOCK_SIZE}
+	 *            by default.
+	 * @return
+	 */
+	public DiffMessage setBlockSize(int blockSize) {
+		this.blockSize = blockSize;
+
+		return this;
+	}
+
+	/**
+	 * @return Whether the {@linkplain #getData() data} holds the XOR of the
+	 *         new and the old content of the changed blocks instead of the new
+	 *         content.
+	 */
+	public boolean isXorData() {
+		return xorData;
+	}
+
+	/**
+	 * Marks the data as the XOR of the new and the old content of the changed
+	 * blocks.
+	 * 
+	 * @param xorData
+	 * @return
+	 */
+	public DiffMessage setXorData(boolean xorData) {
+		this.xorData = xorData;
+
+		return this;
+	}
+
+	/**
+	 * @return The copy and insert instructions of a
+	 *         {@link net.quakemonkey.utils.RollingHashDelta} or
+	 *         <code>null</code> if the delta consists of blocks. The array may
+	 *         be longer than the instructions.
+	 */
+	public byte[] getInstructions() {
+		return instructions;
+	}
+
+	public int getInstructionsLength() {
+		return instructionsLength;
+	}
+
+	/**
+	 * Sets the copy and insert instructions of a delta that is not based on
+	 * blocks. The flags and data should be <code>null</code> in that case.
+	 * 
+	 * @param instructions
+	 * @param length
+	 *            The length of the instructions
+	 * @return
+	 */
+	public DiffMessage setInstructions(byte[] instructions, int length) {
+		this.instructions = instructions;
+		this.instructionsLength = length;
+
+		return this;
+	}
+
+	/**
+	 * @return the already serialized flags and data or <code>null</code> if
+	 *         they have to be serialized when sending.
+	 */
+	public byte[] getEncodedFlagsAndData() {
+		return encodedFlagsAndData;
+	}
+
+	public int getEncodedFlagsAndDataLength() {
+		return encodedFlagsAndDataLength;
+	}
+
+	/**
+	 * Sets the serialized form of the flags and data, as written by
+	 * {@link DiffMessageSerializer#writeFlagsAndData(Output, DiffMessage)}.
+	 * 
+	 * @param bytes
+	 *            The serialized flags and data. Have to stay unchanged until
+	 *            the message is sent.
+	 * @param length
+	 *            The length of the serialized flags and data.
+	 * @return
+	 */
+	public DiffMessage setEncodedFlagsAndData(byte[] bytes, int length) {
+		this.encodedFlagsAndData = bytes;
+		this.encodedFlagsAndDataLength = length;
+
+		return this;
+	}
+
 	@Override
 	public String toString() {
-		return "DiffMessage { id: " + messageId + ", flags: "
-				+ Arrays.toString(flags) + ", data: " + Arrays.toString(data)
+		if (instructions != null) {
+			return "DiffMessage { id: " + messageId + ", instructions: "
+					+ instructionsLength + " bytes}";
+		}
+
+		// Received data arrays may be longer than the number of set flags
+		int changedBlocks = 0;
+		for (byte flag : flags) {
+			changedBlocks += Integer.bitCount(flag & 0xFF);
+		}
+		int dataLength = (changedBlocks * blockSize + 3) / 4;
+
+		return "DiffMessage { id: " + messageId
+				+ (blockSize == DEFAULT_BLOCK_SIZE ? ""
+						: ", block size: " + blockSize)
+				+ (xorData ? ", xor" : "")
+				+ ", flags: " + Arrays.toString(flags) + ", data: "
+				+ Arrays.toString(Arrays.copyOf(data,
+						Math.min(dataLength, data.length)))
 				+ "}";
 	}
 }
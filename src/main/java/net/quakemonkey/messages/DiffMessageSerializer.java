@@ -1,46 +1,455 @@
 package net.quakemonkey.messages;
 
+import java.util.Arrays;
+
 import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
 import com.esotericsoftware.kryo.Serializer;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
 
+import net.quakemonkey.utils.LeadingZeroCoding;
+import net.quakemonkey.utils.pool.BufferPool;
+
 /**
- * Serializes a delta message efficiently.
+ * Serializes a delta message efficiently. The arrays of read messages are
+ * obtained from the {@linkplain BufferPool pool}.
+ * <p>
+ * The message id is followed by a byte that tells how the delta is encoded:
+ * as {@linkplain #INSTRUCTIONS instructions} or as blocks. For blocks, the
+ * upper four bits of that byte hold the binary logarithm of the block size,
+ * and the flags of the changed blocks are written in whichever of three forms
+ * is the smallest: as a {@linkplain #BLOCKS bitmap}, as a
+ * {@linkplain #BLOCK_INDICES list of indices} or as {@linkplain #BLOCK_RUNS
+ * runs}. The content of the changed blocks is written as ints, except for the
+ * last one to three bytes if the block size is below four. If the content is
+ * the {@linkplain DiffMessage#isXorData() XOR} with the old content, the
+ * {@link #XOR_DATA} bit is set and the ints are written by
+ * {@link LeadingZeroCoding} instead.
  * 
  * @author Ben Ruijl
  */
 public class DiffMessageSerializer extends Serializer<DiffMessage> {
+	/**
+	 * The delta consists of flags and the changed blocks. The flags are
+	 * written as they are: a varint of their length and then the bitmap.
+	 */
+	static final byte BLOCKS = 0;
+	/**
+	 * The delta consists of copy and insert instructions.
+	 */
+	static final byte INSTRUCTIONS = 1;
+	/**
+	 * Like {@link #BLOCKS}, but only the indices of the set flags are written:
+	 * a varint of the length of the bitmap, a varint of the number of indices
+	 * and then for each index a varint of the distance to the previous one,
+	 * minus one. Suits few scattered changes.
+	 */
+	static final byte BLOCK_INDICES = 2;
+	/**
+	 * Like {@link #BLOCKS}, but the set flags are written as runs: a varint of
+	 * the length of the bitmap, a varint of the number of runs and then for
+	 * each run a varint of its distance to the end of the previous run and a
+	 * varint of its length, minus one. Suits few contiguous changes.
+	 */
+	static final byte BLOCK_RUNS = 3;
+	/**
+	 * Set in the encoding byte if the data of a block delta is XORed with the
+	 * old content.
+	 */
+	static final int XOR_DATA = 0x80;
+	/**
+	 * The bits of the encoding byte that tell the encoding.
+	 */
+	private static final int ENCODING_MASK = 0x0F;
+	/**
+	 * The bits of the encoding byte that tell the binary logarithm of the
+	 * block size.
+	 */
+	private static final int BLOCK_SIZE_MASK = 0x70;
+	/**
+	 * The binary logarithm of the largest block size.
+	 */
+	private static final int MAX_BLOCK_SIZE_SHIFT = 4;
 
 	@Override
 	public DiffMessage read(Kryo kryo, Input input,
 			Class<? extends DiffMessage> type) {
-		short messageID = input.readShort();
+		return readFlagsAndData(input, input.readShort());
+	}
+
+	/**
+	 * Reads what {@link #writeFlagsAndData(Output, DiffMessage)} wrote.
+	 * 
+	 * @param input
+	 * @param messageID
+	 *            The ID of the message the delta is from
+	 * @return The delta message, obtained from the pool
+	 */
+	public static DiffMessage readFlagsAndData(Input input, short messageID) {
+		int tag = input.readByte() & 0xFF;
+		int encoding = tag & ENCODING_MASK;
+
+		if (encoding == INSTRUCTIONS) {
+			int length = input.readVarInt(true);
+			byte[] instructions = BufferPool.DEFAULT.obtainByteArray(length);
+			input.readBytes(instructions, 0, length);
+
+			return DiffMessage.POOL.obtain().set(messageID, null, null)
+					.setInstructions(instructions, length);
+		}
+		if (encoding != BLOCKS && encoding != BLOCK_INDICES
+				&& encoding != BLOCK_RUNS)
+			throw new KryoException("Unknown delta encoding: " + encoding);
+
+		int blockSizeShift = (tag & BLOCK_SIZE_MASK) >>> 4;
+		if (blockSizeShift > MAX_BLOCK_SIZE_SHIFT)
+			throw new KryoException(
+					"Invalid block size: " + (1 << blockSizeShift));
+		int blockSize = 1 << blockSizeShift;
+
 		int flagSize = input.readVarInt(true);
 
-		byte[] flags = new byte[flagSize];
-		input.readBytes(flags, 0, flagSize);
+		byte[] flags = BufferPool.DEFAULT.obtainByteArray(flagSize, true);
+		int changedBlocks;
+		if (encoding == BLOCKS) {
+			input.readBytes(flags, 0, flagSize);
 
-		int intCount = 0;
-		for (int i = 0; i < 8 * flagSize; i++) {
-			if ((flags[i / 8] & (1 << (i % 8))) != 0) {
-				intCount++;
+			changedBlocks = 0;
+			for (int i = 0; i < flagSize; i++) {
+				changedBlocks += Integer.bitCount(flags[i] & 0xFF);
 			}
+		} else {
+			Arrays.fill(flags, (byte) 0);
+			changedBlocks = encoding == BLOCK_INDICES
+					? readIndices(input, flags)
+					: readRuns(input, flags);
 		}
+		int byteCount = changedBlocks * blockSize;
+		int intCount = byteCount / 4;
 
-		return DiffMessage.POOL.obtain().set(messageID, flags,
-				input.readInts(intCount));
+		boolean xorData = (tag & XOR_DATA) != 0;
+
+		// the pooled array may be longer than needed
+		int[] data = BufferPool.DEFAULT.obtainIntArray((byteCount + 3) / 4);
+		if (xorData) {
+			LeadingZeroCoding.read(input, data, (byteCount + 3) / 4);
+		} else {
+			for (int i = 0; i < intCount; i++) {
+				data[i] = input.readInt();
+			}
+		}
+		if (!xorData && intCount * 4 < byteCount) {
+			int last = 0;
+			for (int i = 0; i < byteCount - intCount * 4; i++) {
+				last |= (input.readByte() & 0xFF) << (24 - i * 8);
+			}
+			data[intCount] = last;
+		}
+
+		return DiffMessage.POOL.obtain().set(messageID, flags, data)
+				.setBlockSize(blockSize).setXorData(xorData);
+	}
+
+	/**
+	 * Reads the indices of the set flags into the bitmap.
+	 * 
+	 * @return The number of set flags.
+	 */
+	private static int readIndices(Input input, byte[] flags) {
+		int count = input.readVarInt(true);
+		int block = -1;
+
+		for (int i = 0; i < count; i++) {
+			block += input.readVarInt(true) + 1;
+			setFlag(flags, block);
+		}
+
+		return count;
+	}
+
+	/**
+	 * Reads the runs of set flags into the bitmap.
+	 * 
+	 * @return The number of set flags.
+	 */
+	private static int readRuns(Input input, byte[] flags) {
+		int runs = input.readVarInt(true);
+		int block = 0;
+		int count = 0;
+
+		for (int i = 0; i < runs; i++) {
+			block += input.readVarInt(true);
+			int length = input.readVarInt(true) + 1;
+
+			for (int end = block + length; block < end; block++) {
+				setFlag(flags, block);
+			}
+			count += length;
+		}
+
+		return count;
+	}
+
+	private static void setFlag(byte[] flags, int block) {
+		if (block < 0 || block >>> 3 >= flags.length)
+			throw new KryoException("Invalid block index: " + block);
+
+		flags[block >>> 3] |= 1 << (block & 7);
 	}
 
 	@Override
 	public void write(Kryo kryo, Output output, DiffMessage diff) {
 		output.writeShort(diff.getMessageId());
-		output.writeVarInt(diff.getFlags().length, true);
-		output.write(diff.getFlags());
 
-		output.writeInts(diff.getData(), 0, diff.getData().length);
+		if (diff.getEncodedFlagsAndData() != null) {
+			output.writeBytes(diff.getEncodedFlagsAndData(), 0,
+					diff.getEncodedFlagsAndDataLength());
+		} else {
+			writeFlagsAndData(output, diff);
+		}
+	}
+
+	/**
+	 * Writes the encoding and then the flags and the data or the
+	 * instructions of a delta message. Everything but the message id is
+	 * identical for all clients that acknowledged the same snapshot, so this
+	 * part can be {@linkplain DiffMessage#setEncodedFlagsAndData(byte[], int)
+	 * encoded once} for all of them.
+	 * 
+	 * @param output
+	 * @param diff
+	 */
+	public static void writeFlagsAndData(Output output, DiffMessage diff) {
+		if (diff.getInstructions() != null) {
+			output.writeByte(INSTRUCTIONS);
+			output.writeVarInt(diff.getInstructionsLength(), true);
+			output.writeBytes(diff.getInstructions(), 0,
+					diff.getInstructionsLength());
+			return;
+		}
+
+		byte[] flags = diff.getFlags();
+		int blockSize = diff.getBlockSize();
+		int encoding = getFlagEncoding(flags);
+		output.writeByte(encoding
+				| Integer.numberOfTrailingZeros(blockSize) << 4
+				| (diff.isXorData() ? XOR_DATA : 0));
+		output.writeVarInt(flags.length, true);
+
+		if (encoding == BLOCK_INDICES) {
+			writeIndices(output, flags);
+		} else if (encoding == BLOCK_RUNS) {
+			writeRuns(output, flags);
+		} else {
+			output.write(flags);
+		}
+
+		if (blockSize >= 4 && !diff.isXorData()) {
+			output.writeInts(diff.getData(), 0, diff.getData().length);
+		} else {
+			int changedBlocks = 0;
+			for (byte flag : flags) {
+				changedBlocks += Integer.bitCount(flag & 0xFF);
+			}
+			int byteCount = changedBlocks * blockSize;
+			int intCount = byteCount / 4;
+
+			if (diff.isXorData()) {
+				LeadingZeroCoding.write(output, diff.getData(),
+						(byteCount + 3) / 4);
+			} else {
+				output.writeInts(diff.getData(), 0, intCount);
+				for (int i = 0; i < byteCount - intCount * 4; i++) {
+					output.writeByte(
+							diff.getData()[intCount] >>> (24 - i * 8));
+				}
+			}
+		}
 
 		// output.setPosition(output.position() + diff.getData().length * 4);
 	}
 
+	/**
+	 * Computes the size of the three forms of the flags and returns the
+	 * encoding of the smallest one. The bitmap is preferred in case of a tie.
+	 */
+	private static int getFlagEncoding(byte[] flags) {
+		long sizes = getFlagSizes(flags);
+		int indicesSize = (int) (sizes >>> 32);
+		int runsSize = (int) sizes;
+
+		if (indicesSize < flags.length && indicesSize <= runsSize)
+			return BLOCK_INDICES;
+		if (runsSize < flags.length)
+			return BLOCK_RUNS;
+		return BLOCKS;
+	}
+
+	/**
+	 * @return The number of bytes of the flags written as indices in the
+	 *         upper half and as runs in the lower half.
+	 */
+	private static long getFlagSizes(byte[] flags) {
+		int count = 0;
+		int runs = 0;
+		int indicesSize = 0;
+		int runsSize = 0;
+		int previous = -1;
+		int runStart = 0;
+		int runEnd = 0;
+
+		for (int i = 0; i < flags.length; i++) {
+			int bits = flags[i] & 0xFF;
+			while (bits != 0) {
+				int block = i * 8 + Integer.numberOfTrailingZeros(bits);
+				indicesSize += Output.varIntLength(block - previous - 1, true);
+
+				if (count == 0 || block != previous + 1) {
+					if (runs > 0)
+						runsSize += Output.varIntLength(previous - runStart,
+								true);
+					runsSize += Output.varIntLength(block - runEnd, true);
+					runs++;
+					runStart = block;
+				}
+				runEnd = block + 1;
+				previous = block;
+				count++;
+				bits &= bits - 1;
+			}
+		}
+		if (runs > 0)
+			runsSize += Output.varIntLength(previous - runStart, true);
+		indicesSize += Output.varIntLength(count, true);
+		runsSize += Output.varIntLength(runs, true);
+
+		return (long) indicesSize << 32 | runsSize;
+	}
+
+	private static void writeIndices(Output output, byte[] flags) {
+		int count = 0;
+		for (byte flag : flags) {
+			count += Integer.bitCount(flag & 0xFF);
+		}
+		output.writeVarInt(count, true);
+
+		int previous = -1;
+		for (int i = 0; i < flags.length; i++) {
+			int bits = flags[i] & 0xFF;
+			while (bits != 0) {
+				int block = i * 8 + Integer.numberOfTrailingZeros(bits);
+				output.writeVarInt(block - previous - 1, true);
+				previous = block;
+				bits &= bits - 1;
+			}
+		}
+	}
+
+	private static void writeRuns(Output output, byte[] flags) {
+		// A run starts at every set flag whose predecessor is clear
+		int runs = 0;
+		int carry = 0;
+		for (byte flag : flags) {
+			int bits = flag & 0xFF;
+			runs += Integer.bitCount(bits & ~(bits << 1 | carry));
+			carry = bits >>> 7;
+		}
+		output.writeVarInt(runs, true);
+
+		int numBlocks = flags.length * 8;
+		int runEnd = 0;
+		int block = nextSetFlag(flags, 0);
+		while (block < numBlocks) {
+			int end = nextClearFlag(flags, block);
+			output.writeVarInt(block - runEnd, true);
+			output.writeVarInt(end - block - 1, true);
+
+			runEnd = end;
+			block = nextSetFlag(flags, end);
+		}
+	}
+
+	/**
+	 * @return The index of the first set flag at or after {@code block} or
+	 *         the number of flags if there is none.
+	 */
+	private static int nextSetFlag(byte[] flags, int block) {
+		int numBlocks = flags.length * 8;
+
+		while (block < numBlocks) {
+			int bits = (flags[block >>> 3] & 0xFF) >>> (block & 7);
+			if (bits != 0)
+				return block + Integer.numberOfTrailingZeros(bits);
+			block = (block | 7) + 1;
+		}
+		return numBlocks;
+	}
+
+	/**
+	 * @return The index of the first clear flag at or after {@code block} or
+	 *         the number of flags if there is none.
+	 */
+	private static int nextClearFlag(byte[] flags, int block) {
+		int numBlocks = flags.length * 8;
+
+		while (block < numBlocks) {
+			int bits = (~flags[block >>> 3] & 0xFF) >>> (block & 7);
+			if (bits != 0)
+				return block + Integer.numberOfTrailingZeros(bits);
+			block = (block | 7) + 1;
+		}
+		return numBlocks;
+	}
+
+	/**
+	 * Computes the exact number of bytes written by
+	 * {@link #writeFlagsAndData(Output, DiffMessage)}, i.e. including the
+	 * smallest form of the flags. It is used to choose between the deltas of
+	 * different codecs.
+	 * 
+	 * @param diff
+	 * @return the number of bytes.
+	 */
+	public static int getFlagsAndDataLength(DiffMessage diff) {
+		if (diff.getInstructions() != null)
+			return 1 + Output.varIntLength(diff.getInstructionsLength(), true)
+					+ diff.getInstructionsLength();
+
+		byte[] flags = diff.getFlags();
+		long sizes = getFlagSizes(flags);
+		int flagsLength = Math.min(flags.length,
+				Math.min((int) (sizes >>> 32), (int) sizes));
+		int length = 1 + Output.varIntLength(flags.length, true)
+				+ flagsLength;
+
+		int blockSize = diff.getBlockSize();
+		if (blockSize >= 4 && !diff.isXorData())
+			return length + diff.getData().length * 4;
+
+		int changedBlocks = 0;
+		for (byte flag : flags) {
+			changedBlocks += Integer.bitCount(flag & 0xFF);
+		}
+		int byteCount = changedBlocks * blockSize;
+
+		return length + (diff.isXorData()
+				? LeadingZeroCoding.getLength(diff.getData(),
+						(byteCount + 3) / 4)
+				: byteCount);
+	}
+
+	/**
+	 * @param diff
+	 * @return an upper bound for the number of bytes written by
+	 *         {@link #writeFlagsAndData(Output, DiffMessage)}.
+	 */
+	public static int getMaxFlagsAndDataLength(DiffMessage diff) {
+		if (diff.getInstructions() != null)
+			return 6 + diff.getInstructionsLength();
+
+		return 6 + diff.getFlags().length + diff.getData().length * 4
+				+ (diff.isXorData() ? (diff.getData().length + 3) / 4 : 0);
+	}
+
 }
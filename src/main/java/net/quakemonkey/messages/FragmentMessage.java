@@ -0,0 +1,153 @@
+package net.quakemonkey.messages;
+
+import net.quakemonkey.utils.pool.Pool;
+
+/**
+ * A part of the payload of a {@link PayloadMessage} that is too large to be
+ * sent in one datagram. The payload is serialized by
+ * {@link com.esotericsoftware.kryo.Kryo#writeClassAndObject(com.esotericsoftware.kryo.io.Output, Object)
+ * Kryo#writeClassAndObject(Output, Object)} and its {@code totalLength} bytes
+ * are split into {@code count} fragments of
+ * {@linkplain #getFragmentLength(int, int) equal length}; only the last one
+ * may be shorter.
+ *
+ * @see net.quakemonkey.ServerDiffHandler#setFragmentSize(int)
+ */
+public final class FragmentMessage {
+	public static final Pool<FragmentMessage> POOL = new Pool<FragmentMessage>(
+			new Pool.ObjectSupplier<FragmentMessage>() {
+				@Override
+				public FragmentMessage newInstance() {
+					return new FragmentMessage();
+				}
+
+				@Override
+				public void onFree(FragmentMessage obj) {
+					obj.messageId = 0;
+					obj.index = 0;
+					obj.count = 0;
+					obj.totalLength = 0;
+					obj.bytes = null;
+					obj.offset = 0;
+					obj.length = 0;
+				}
+			});
+
+	/**
+	 * The ID of the payload message the fragment belongs to.
+	 */
+	private short messageId;
+	private int index;
+	private int count;
+	/**
+	 * The length of the serialized payload.
+	 */
+	private int totalLength;
+	private byte[] bytes;
+	/**
+	 * The position of the fragment's bytes in {@link #bytes}. Is not sent.
+	 */
+	private transient int offset;
+	private int length;
+
+	public FragmentMessage() {
+		// default public constructor
+	}
+
+	/**
+	 * Returns the length of all but the last fragment of a message.
+	 *
+	 * @param totalLength
+	 *            The length of the serialized payload
+	 * @param count
+	 *            The number of fragments
+	 * @return The length of a fragment in bytes.
+	 */
+	public static int getFragmentLength(int totalLength, int count) {
+		return (totalLength + count - 1) / count;
+	}
+
+	/**
+	 * @return The ID of the payload message the fragment belongs to.
+	 */
+	public short getMessageId() {
+		return messageId;
+	}
+
+	/**
+	 * @return The index of this fragment, starting at <code>0</code>.
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return The number of fragments of the payload message.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return The length of the serialized payload in bytes.
+	 */
+	public int getTotalLength() {
+		return totalLength;
+	}
+
+	/**
+	 * @return The array holding the bytes of this fragment. It may be longer
+	 *         than them.
+	 */
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Sets the properties of this message.
+	 * <p>
+	 * Utility method for the {@linkplain #POOL pool}.
+	 *
+	 * @param messageId
+	 *            The ID of the payload message
+	 * @param index
+	 * @param count
+	 * @param totalLength
+	 *            The length of the serialized payload
+	 * @param bytes
+	 *            The array holding the bytes of the fragment. Has to stay
+	 *            unchanged until the message is sent.
+	 * @param offset
+	 *            The position of the fragment's bytes in the array
+	 * @param length
+	 *            The number of bytes of the fragment
+	 * @return
+	 */
+	public FragmentMessage set(short messageId, int index, int count,
+			int totalLength, byte[] bytes, int offset, int length) {
+		this.messageId = messageId;
+		this.index = index;
+		this.count = count;
+		this.totalLength = totalLength;
+		this.bytes = bytes;
+		this.offset = offset;
+		this.length = length;
+
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return "FragmentMessage { id: " + messageId + ", fragment " + index
+				+ " of " + count + ", " + length + " of " + totalLength
+				+ " bytes}";
+	}
+}
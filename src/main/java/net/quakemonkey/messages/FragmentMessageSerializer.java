@@ -0,0 +1,48 @@
+package net.quakemonkey.messages;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import net.quakemonkey.utils.pool.BufferPool;
+
+/**
+ * Serializes a fragment of a payload message. The bytes of read fragments are
+ * obtained from the {@linkplain BufferPool pool}.
+ */
+public class FragmentMessageSerializer extends Serializer<FragmentMessage> {
+
+	@Override
+	public FragmentMessage read(Kryo kryo, Input input,
+			Class<? extends FragmentMessage> type) {
+		short messageId = input.readShort();
+		int index = input.readVarInt(true);
+		int count = input.readVarInt(true);
+		int totalLength = input.readVarInt(true);
+		int length = input.readVarInt(true);
+
+		if (index >= count || length > totalLength)
+			throw new KryoException("Invalid fragment " + index + " of "
+					+ count + " with " + length + " of " + totalLength
+					+ " bytes");
+
+		byte[] bytes = BufferPool.DEFAULT.obtainByteArray(length);
+		input.readBytes(bytes, 0, length);
+
+		return FragmentMessage.POOL.obtain().set(messageId, index, count,
+				totalLength, bytes, 0, length);
+	}
+
+	@Override
+	public void write(Kryo kryo, Output output, FragmentMessage msg) {
+		output.writeShort(msg.getMessageId());
+		output.writeVarInt(msg.getIndex(), true);
+		output.writeVarInt(msg.getCount(), true);
+		output.writeVarInt(msg.getTotalLength(), true);
+		output.writeVarInt(msg.getLength(), true);
+		output.writeBytes(msg.getBytes(), msg.getOffset(), msg.getLength());
+	}
+
+}
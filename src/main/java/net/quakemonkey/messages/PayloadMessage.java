@@ -19,11 +19,21 @@ public final class PayloadMessage {
 				public void onFree(PayloadMessage obj) {
 					obj.currentId = 0;
 					obj.message = null;
+					obj.encodedPayload = null;
+					obj.encodedPayloadLength = 0;
 				}
 			});
 
 	private short currentId;
 	private Object message;
+	/**
+	 * The payload as it was already serialized by the sender. Is not sent
+	 * itself.
+	 * 
+	 * @see PayloadMessageSerializer
+	 */
+	private transient byte[] encodedPayload;
+	private transient int encodedPayloadLength;
 
 	public PayloadMessage() {
 		// default public constructor
@@ -59,6 +69,38 @@ public final class PayloadMessage {
 		return this;
 	}
 
+	/**
+	 * @return the already serialized payload or <code>null</code> if the
+	 *         payload has to be serialized when sending.
+	 */
+	public byte[] getEncodedPayload() {
+		return encodedPayload;
+	}
+
+	public int getEncodedPayloadLength() {
+		return encodedPayloadLength;
+	}
+
+	/**
+	 * Sets the serialized form of the payload. It has to be created by
+	 * {@link com.esotericsoftware.kryo.Kryo#writeClassAndObject(com.esotericsoftware.kryo.io.Output, Object)
+	 * Kryo#writeClassAndObject(Output, Object)} using the same registrations as
+	 * the endpoint.
+	 * 
+	 * @param bytes
+	 *            The serialized payload. Has to stay unchanged until the
+	 *            message is sent.
+	 * @param length
+	 *            The length of the serialized payload.
+	 * @return
+	 */
+	public PayloadMessage setEncodedPayload(byte[] bytes, int length) {
+		this.encodedPayload = bytes;
+		this.encodedPayloadLength = length;
+
+		return this;
+	}
+
 	@Override
 	public String toString() {
 		return "PayloadMessage { id: " + currentId + ", payload: "
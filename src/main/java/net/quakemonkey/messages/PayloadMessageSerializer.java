@@ -0,0 +1,38 @@
+package net.quakemonkey.messages;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * Serializes a payload message. If the payload was
+ * {@linkplain PayloadMessage#setEncodedPayload(byte[], int) already encoded},
+ * its bytes are copied verbatim instead of serializing the payload again.
+ * 
+ * @author Ben Ruijl
+ */
+public class PayloadMessageSerializer extends Serializer<PayloadMessage> {
+
+	@Override
+	public PayloadMessage read(Kryo kryo, Input input,
+			Class<? extends PayloadMessage> type) {
+		short id = input.readShort();
+
+		return PayloadMessage.POOL.obtain().set(id,
+				kryo.readClassAndObject(input));
+	}
+
+	@Override
+	public void write(Kryo kryo, Output output, PayloadMessage msg) {
+		output.writeShort(msg.getId());
+
+		if (msg.getEncodedPayload() != null) {
+			output.writeBytes(msg.getEncodedPayload(), 0,
+					msg.getEncodedPayloadLength());
+		} else {
+			kryo.writeClassAndObject(output, msg.getPayloadMessage());
+		}
+	}
+
+}
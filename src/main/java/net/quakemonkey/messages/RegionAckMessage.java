@@ -0,0 +1,113 @@
+package net.quakemonkey.messages;
+
+import net.quakemonkey.utils.pool.Pool;
+
+/**
+ * An acknowledgment of the {@linkplain RegionMessage regions} of a message
+ * that is sent from the client to the server. It contains a bitmask of all
+ * regions of the message that were received so far, so one acknowledgment
+ * covers many regions and a lost one is repeated by the next one.
+ */
+public final class RegionAckMessage {
+	public static final Pool<RegionAckMessage> POOL = new Pool<RegionAckMessage>(
+			new Pool.ObjectSupplier<RegionAckMessage>() {
+				@Override
+				public RegionAckMessage newInstance() {
+					return new RegionAckMessage();
+				}
+
+				@Override
+				public void onFree(RegionAckMessage obj) {
+					obj.id = 0;
+					obj.regionCount = 0;
+					obj.receivedRegions = null;
+				}
+			});
+	/**
+	 * The maximum number of regions of a message that can be acknowledged.
+	 */
+	public static final int MAX_REGION_COUNT = 1 << 16;
+
+	private short id;
+	private int regionCount;
+	/**
+	 * Bit {@code i % 8} of byte {@code i / 8} is set if region {@code i} was
+	 * received. The array may be longer than needed.
+	 */
+	private byte[] receivedRegions;
+
+	public RegionAckMessage() {
+		// default public constructor
+	}
+
+	/**
+	 * @return The number of bytes of the bitmask of {@code regionCount}
+	 *         regions.
+	 */
+	public static int getLength(int regionCount) {
+		return (regionCount + 7) / 8;
+	}
+
+	/**
+	 * @return The ID of the message the regions belong to.
+	 */
+	public short getId() {
+		return id;
+	}
+
+	/**
+	 * @return The number of regions of the message.
+	 */
+	public int getRegionCount() {
+		return regionCount;
+	}
+
+	public byte[] getReceivedRegions() {
+		return receivedRegions;
+	}
+
+	public boolean isReceived(int region) {
+		return (receivedRegions[region >>> 3] & (1 << (region & 7))) != 0;
+	}
+
+	/**
+	 * @return Whether all regions of the message were received.
+	 */
+	public boolean isComplete() {
+		for (int i = 0; i < regionCount; i++) {
+			if (!isReceived(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Sets the properties of this message.
+	 * <p>
+	 * Utility method for the {@linkplain #POOL pool}.
+	 *
+	 * @param id
+	 * @param regionCount
+	 * @param receivedRegions
+	 *            The bitmask of the received regions
+	 * @return
+	 */
+	public RegionAckMessage set(short id, int regionCount,
+			byte[] receivedRegions) {
+		this.id = id;
+		this.regionCount = regionCount;
+		this.receivedRegions = receivedRegions;
+
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder regions = new StringBuilder();
+		for (int i = 0; i < regionCount; i++) {
+			regions.append(isReceived(i) ? '1' : '0');
+		}
+
+		return "RegionAckMessage { id: " + id + ", regions: " + regions + "}";
+	}
+}
@@ -0,0 +1,45 @@
+package net.quakemonkey.messages;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import net.quakemonkey.utils.pool.BufferPool;
+
+/**
+ * Serializes an acknowledgment of regions: the message id, a varint of the
+ * number of regions and the bitmask of the received ones. The bitmask of read
+ * acknowledgments is obtained from the {@linkplain BufferPool pool}.
+ */
+public class RegionAckMessageSerializer
+		extends Serializer<RegionAckMessage> {
+
+	@Override
+	public RegionAckMessage read(Kryo kryo, Input input,
+			Class<? extends RegionAckMessage> type) {
+		short id = input.readShort();
+		int regionCount = input.readVarInt(true);
+
+		if (regionCount > RegionAckMessage.MAX_REGION_COUNT)
+			throw new KryoException(
+					"Too many acknowledged regions: " + regionCount);
+
+		int length = RegionAckMessage.getLength(regionCount);
+		byte[] receivedRegions = BufferPool.DEFAULT.obtainByteArray(length);
+		input.readBytes(receivedRegions, 0, length);
+
+		return RegionAckMessage.POOL.obtain().set(id, regionCount,
+				receivedRegions);
+	}
+
+	@Override
+	public void write(Kryo kryo, Output output, RegionAckMessage msg) {
+		output.writeShort(msg.getId());
+		output.writeVarInt(msg.getRegionCount(), true);
+		output.writeBytes(msg.getReceivedRegions(), 0,
+				RegionAckMessage.getLength(msg.getRegionCount()));
+	}
+
+}
@@ -0,0 +1,43 @@
+package net.quakemonkey.messages;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.quakemonkey.utils.pool.Pool;
+
+/**
+ * Multiple {@linkplain RegionMessage regions} that are sent in one datagram,
+ * because they are small, e.g. deltas of regions that barely changed.
+ */
+public final class RegionBatchMessage {
+	public static final Pool<RegionBatchMessage> POOL = new Pool<RegionBatchMessage>(
+			new Pool.ObjectSupplier<RegionBatchMessage>() {
+				@Override
+				public RegionBatchMessage newInstance() {
+					return new RegionBatchMessage();
+				}
+
+				@Override
+				public void onFree(RegionBatchMessage obj) {
+					obj.regions.clear();
+				}
+			});
+
+	private final List<RegionMessage> regions = new ArrayList<>();
+
+	public RegionBatchMessage() {
+		// default public constructor
+	}
+
+	/**
+	 * @return The regions of the batch. The list can be modified.
+	 */
+	public List<RegionMessage> getRegions() {
+		return regions;
+	}
+
+	@Override
+	public String toString() {
+		return "RegionBatchMessage { regions: " + regions + "}";
+	}
+}
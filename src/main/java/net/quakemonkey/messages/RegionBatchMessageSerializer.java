@@ -0,0 +1,42 @@
+package net.quakemonkey.messages;
+
+import java.util.List;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * Serializes a batch of regions: a varint of their number and then the
+ * regions as written by the {@link RegionMessageSerializer}.
+ */
+public class RegionBatchMessageSerializer
+		extends Serializer<RegionBatchMessage> {
+	private final RegionMessageSerializer regionSerializer = new RegionMessageSerializer();
+
+	@Override
+	public RegionBatchMessage read(Kryo kryo, Input input,
+			Class<? extends RegionBatchMessage> type) {
+		int count = input.readVarInt(true);
+		RegionBatchMessage batch = RegionBatchMessage.POOL.obtain();
+
+		for (int i = 0; i < count; i++) {
+			batch.getRegions().add(
+					regionSerializer.read(kryo, input, RegionMessage.class));
+		}
+
+		return batch;
+	}
+
+	@Override
+	public void write(Kryo kryo, Output output, RegionBatchMessage batch) {
+		List<RegionMessage> regions = batch.getRegions();
+
+		output.writeVarInt(regions.size(), true);
+		for (int i = 0; i < regions.size(); i++) {
+			regionSerializer.write(kryo, output, regions.get(i));
+		}
+	}
+
+}
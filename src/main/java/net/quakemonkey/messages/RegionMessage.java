@@ -0,0 +1,181 @@
+package net.quakemonkey.messages;
+
+import net.quakemonkey.utils.pool.Pool;
+
+/**
+ * One region of a message that is sent in independently decodable regions.
+ * The serialized message of {@code size} bytes is divided into regions of
+ * {@code regionSize} bytes; only the last one may be shorter. Each region is
+ * either sent as it is or as a {@linkplain #getDelta() delta} to the same
+ * region of an older message, which may differ from region to region.
+ *
+ * @see net.quakemonkey.ServerDiffHandler#setRegionSize(int)
+ */
+public final class RegionMessage {
+	public static final Pool<RegionMessage> POOL = new Pool<RegionMessage>(
+			new Pool.ObjectSupplier<RegionMessage>() {
+				@Override
+				public RegionMessage newInstance() {
+					return new RegionMessage();
+				}
+
+				@Override
+				public void onFree(RegionMessage obj) {
+					obj.id = 0;
+					obj.region = 0;
+					obj.regionSize = 0;
+					obj.size = 0;
+					obj.delta = null;
+					obj.bytes = null;
+					obj.offset = 0;
+				}
+			});
+
+	/**
+	 * The ID of the message the region belongs to.
+	 */
+	private short id;
+	private int region;
+	private int regionSize;
+	/**
+	 * The size of the serialized message.
+	 */
+	private int size;
+	private DiffMessage delta;
+	private byte[] bytes;
+	/**
+	 * The position of the region's bytes in {@link #bytes}. Is not sent.
+	 */
+	private transient int offset;
+
+	public RegionMessage() {
+		// default public constructor
+	}
+
+	/**
+	 * @return The number of bytes of a region.
+	 */
+	public static int getRegionLength(int size, int regionSize, int region) {
+		return Math.min(regionSize, size - region * regionSize);
+	}
+
+	/**
+	 * @return An upper bound of the serialized size of the region in bytes.
+	 */
+	public int getMaxSerializedLength() {
+		return 13 + (delta != null
+				? 2 + DiffMessageSerializer.getMaxFlagsAndDataLength(delta)
+				: getLength());
+	}
+
+	/**
+	 * @return The ID of the message the region belongs to.
+	 */
+	public short getId() {
+		return id;
+	}
+
+	public int getRegion() {
+		return region;
+	}
+
+	public int getRegionSize() {
+		return regionSize;
+	}
+
+	/**
+	 * @return The size of the serialized message in bytes.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return The number of bytes of this region.
+	 */
+	public int getLength() {
+		return getRegionLength(size, regionSize, region);
+	}
+
+	/**
+	 * @return The delta to the region of the message with the
+	 *         {@linkplain DiffMessage#getMessageId() baseline ID} or
+	 *         <code>null</code> if the region is sent as it is.
+	 */
+	public DiffMessage getDelta() {
+		return delta;
+	}
+
+	/**
+	 * @return The array holding the bytes of the region or <code>null</code>
+	 *         if a delta is sent. It may be longer than them.
+	 */
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Sets the properties of this message.
+	 * <p>
+	 * Utility method for the {@linkplain #POOL pool}.
+	 *
+	 * @param id
+	 *            The ID of the message
+	 * @param region
+	 * @param regionSize
+	 * @param size
+	 *            The size of the serialized message
+	 * @return
+	 */
+	public RegionMessage set(short id, int region, int regionSize, int size) {
+		this.id = id;
+		this.region = region;
+		this.regionSize = regionSize;
+		this.size = size;
+
+		return this;
+	}
+
+	/**
+	 * Sends the region as a delta.
+	 *
+	 * @param delta
+	 * @return
+	 */
+	public RegionMessage setDelta(DiffMessage delta) {
+		this.delta = delta;
+		this.bytes = null;
+		this.offset = 0;
+
+		return this;
+	}
+
+	/**
+	 * Sends the region as it is.
+	 *
+	 * @param bytes
+	 *            The array holding the bytes of the region. Has to stay
+	 *            unchanged until the message is sent.
+	 * @param offset
+	 *            The position of the region's bytes in the array
+	 * @return
+	 */
+	public RegionMessage setBytes(byte[] bytes, int offset) {
+		this.delta = null;
+		this.bytes = bytes;
+		this.offset = offset;
+
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return "RegionMessage { id: " + id + ", region: " + region + ", "
+				+ (delta != null ? "delta: " + delta : getLength() + " bytes")
+				+ "}";
+	}
+}
@@ -0,0 +1,65 @@
+package net.quakemonkey.messages;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import net.quakemonkey.utils.pool.BufferPool;
+
+/**
+ * Serializes a region of a message. A delta is written like by the
+ * {@link DiffMessageSerializer}, including pre-encoded flags and data. The
+ * bytes of read regions are obtained from the {@linkplain BufferPool pool}.
+ */
+public class RegionMessageSerializer extends Serializer<RegionMessage> {
+	private final DiffMessageSerializer diffSerializer = new DiffMessageSerializer();
+
+	@Override
+	public RegionMessage read(Kryo kryo, Input input,
+			Class<? extends RegionMessage> type) {
+		short id = input.readShort();
+		int region = input.readVarInt(true);
+		int regionSize = input.readVarInt(true);
+		int size = input.readVarInt(true);
+
+		if (regionSize <= 0 || size < 0 || region < 0
+				|| (long) region * regionSize >= Math.max(1, size)
+				|| (long) regionSize
+						* RegionAckMessage.MAX_REGION_COUNT < size)
+			throw new KryoException("Invalid region " + region + " of "
+					+ regionSize + " bytes in " + size + " bytes");
+
+		RegionMessage msg = RegionMessage.POOL.obtain().set(id, region,
+				regionSize, size);
+
+		if (input.readBoolean()) {
+			msg.setDelta(diffSerializer.read(kryo, input, DiffMessage.class));
+		} else {
+			byte[] bytes = BufferPool.DEFAULT
+					.obtainByteArray(msg.getLength());
+			input.readBytes(bytes, 0, msg.getLength());
+			msg.setBytes(bytes, 0);
+		}
+
+		return msg;
+	}
+
+	@Override
+	public void write(Kryo kryo, Output output, RegionMessage msg) {
+		output.writeShort(msg.getId());
+		output.writeVarInt(msg.getRegion(), true);
+		output.writeVarInt(msg.getRegionSize(), true);
+		output.writeVarInt(msg.getSize(), true);
+
+		output.writeBoolean(msg.getDelta() != null);
+		if (msg.getDelta() != null) {
+			diffSerializer.write(kryo, output, msg.getDelta());
+		} else {
+			output.writeBytes(msg.getBytes(), msg.getOffset(),
+					msg.getLength());
+		}
+	}
+
+}
@@ -0,0 +1,68 @@
+package net.quakemonkey.messages;
+
+import net.quakemonkey.utils.pool.Pool;
+
+/**
+ * A request for a full message that is sent from the client to the server,
+ * when it received a delta based on a message it does not hold. The server
+ * then sends a full message and no longer bases its deltas on messages sent
+ * before it.
+ */
+public final class ResyncMessage {
+	public static final Pool<ResyncMessage> POOL = new Pool<ResyncMessage>(
+			new Pool.ObjectSupplier<ResyncMessage>() {
+				@Override
+				public ResyncMessage newInstance() {
+					return new ResyncMessage();
+				}
+
+				@Override
+				public void onFree(ResyncMessage obj) {
+					obj.id = 0;
+					obj.baselineId = 0;
+				}
+			});
+
+	private short id;
+	private short baselineId;
+
+	public ResyncMessage() {
+		// default public constructor
+	}
+
+	/**
+	 * @return The ID of the message that could not be decoded.
+	 */
+	public short getId() {
+		return id;
+	}
+
+	/**
+	 * @return The ID of the missing message the delta was based on.
+	 */
+	public short getBaselineId() {
+		return baselineId;
+	}
+
+	/**
+	 * Sets the properties of this message.
+	 * <p>
+	 * Utility method for the {@linkplain #POOL pool}.
+	 *
+	 * @param id
+	 * @param baselineId
+	 * @return
+	 */
+	public ResyncMessage set(short id, short baselineId) {
+		this.id = id;
+		this.baselineId = baselineId;
+
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return "ResyncMessage { id: " + id + ", baselineId: " + baselineId
+				+ "}";
+	}
+}
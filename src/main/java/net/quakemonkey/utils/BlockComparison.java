@@ -0,0 +1,402 @@
+package net.quakemonkey.utils;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Compares two serialized messages in blocks of four bytes (or of another
+ * {@linkplain #BLOCK_SIZES supported size}). Every block that differs is
+ * flagged with one bit and its new content is put into a separate buffer.
+ * <p>
+ * Bytes beyond the capacity of a buffer are treated as zeros, so the limit of
+ * the given buffers has to be set to their capacity. Their content is only
+ * accessed via absolute operations.
+ */
+public class BlockComparison {
+	private static final VarHandle INT_VIEW = MethodHandles
+			.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+	private static final VarHandle LONG_VIEW = MethodHandles
+			.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+	/**
+	 * The number of unchanged words after a change until the rest of the
+	 * buffers is scanned for the next change.
+	 */
+	private static final int UNCHANGED_WORDS_TO_SKIP = 4;
+	/**
+	 * The supported block sizes in bytes.
+	 */
+	public static final int[] BLOCK_SIZES = { 1, 2, 4, 8, 16 };
+	/**
+	 * The block size of {@link #compare(ByteBuffer, ByteBuffer, int, byte[],
+	 * IntBuffer)}.
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 4;
+	/**
+	 * The number of windows compared by
+	 * {@link #estimateBlockSize(ByteBuffer, ByteBuffer, int)}.
+	 */
+	private static final int SAMPLE_WINDOWS = 8;
+	private static final int SAMPLE_WINDOW_SIZE = 256;
+
+	private BlockComparison() {
+		// not used
+	}
+
+	/**
+	 * Compares the blocks of both buffers. Unchanged regions are skipped eight
+	 * bytes (or a whole vector) at a time via
+	 * {@link Arrays#mismatch(byte[], int, int, byte[], int, int)}. Around a
+	 * change, the buffers are compared word by word; only the blocks of words
+	 * that differ are looked at individually.
+	 * <p>
+	 * The result is identical to the one of
+	 * {@link #compareSequentially(ByteBuffer, ByteBuffer, int, byte[], IntBuffer)},
+	 * to which this method falls back if one of the buffers is not backed by
+	 * an accessible array.
+	 *
+	 * @param buffer
+	 *            The new message
+	 * @param previousBuffer
+	 *            The old message
+	 * @param length
+	 *            The number of bytes to compare. Has to be a multiple of four.
+	 * @param flags
+	 *            The flags of the changed blocks are set in this array. It has
+	 *            to be cleared beforehand.
+	 * @param diffInts
+	 *            The content of the changed blocks is put into this buffer.
+	 * @return The number of changed blocks.
+	 */
+	public static int compare(ByteBuffer buffer, ByteBuffer previousBuffer,
+			int length, byte[] flags, IntBuffer diffInts) {
+		if (!buffer.hasArray() || buffer.arrayOffset() != 0
+				|| !previousBuffer.hasArray()
+				|| previousBuffer.arrayOffset() != 0 || !diffInts.hasArray()) {
+			return compareSequentially(buffer, previousBuffer, length, flags,
+					diffInts);
+		}
+
+		byte[] array = buffer.array();
+		byte[] previousArray = previousBuffer.array();
+		int[] diffArray = diffInts.array();
+		int diffPos = diffInts.arrayOffset() + diffInts.position();
+		int arrayEnd = Math.min(length,
+				Math.min(buffer.capacity(), previousBuffer.capacity()) & ~3);
+
+		int offset = 0;
+		while (offset < arrayEnd) {
+			int mismatch = Arrays.mismatch(array, offset, arrayEnd,
+					previousArray, offset, arrayEnd);
+
+			if (mismatch < 0)
+				break;
+
+			offset = ((offset + mismatch) >>> 2) << 2;
+
+			// Changes are usually clustered; compare the following words
+			// directly until a few unchanged words in a row are found
+			int unchangedWords = 0;
+			while (offset + 8 <= arrayEnd
+					&& unchangedWords < UNCHANGED_WORDS_TO_SKIP) {
+				long word = (long) LONG_VIEW.get(array, offset);
+				long previousWord = (long) LONG_VIEW.get(previousArray,
+						offset);
+
+				if (word == previousWord) {
+					unchangedWords++;
+				} else {
+					unchangedWords = 0;
+
+					int block = offset >>> 2;
+					if ((int) (word >>> 32) != (int) (previousWord >>> 32)) {
+						diffArray[diffPos++] = (int) (word >>> 32);
+						flags[block >>> 3] |= 1 << (block & 7);
+					}
+					block++;
+					if ((int) word != (int) previousWord) {
+						diffArray[diffPos++] = (int) word;
+						flags[block >>> 3] |= 1 << (block & 7);
+					}
+				}
+				offset += 8;
+			}
+
+			// A single block is left
+			if (offset + 8 > arrayEnd && offset < arrayEnd) {
+				int val = (int) INT_VIEW.get(array, offset);
+				if (val != (int) INT_VIEW.get(previousArray, offset)) {
+					int block = offset >>> 2;
+					diffArray[diffPos++] = val;
+					flags[block >>> 3] |= 1 << (block & 7);
+				}
+				offset += 4;
+			}
+		}
+
+		int changedBlocks = diffPos - diffInts.arrayOffset()
+				- diffInts.position();
+		diffInts.position(diffPos - diffInts.arrayOffset());
+
+		// The rest of the blocks is (partially) beyond the capacity of one of
+		// the buffers
+		for (offset = arrayEnd; offset < length; offset += 4) {
+			int val = getBlock(buffer, offset);
+			if (val != getBlock(previousBuffer, offset)) {
+				int block = offset >>> 2;
+				diffInts.put(val);
+				flags[block >>> 3] |= 1 << (block & 7);
+				changedBlocks++;
+			}
+		}
+
+		return changedBlocks;
+	}
+
+	/**
+	 * Compares the buffers block by block.
+	 *
+	 * @param buffer
+	 *            The new message
+	 * @param previousBuffer
+	 *            The old message
+	 * @param length
+	 *            The number of bytes to compare. Has to be a multiple of four.
+	 * @param flags
+	 *            The flags of the changed blocks are set in this array. It has
+	 *            to be cleared beforehand.
+	 * @param diffInts
+	 *            The content of the changed blocks is put into this buffer.
+	 * @return The number of changed blocks.
+	 * @see #compare(ByteBuffer, ByteBuffer, int, byte[], IntBuffer)
+	 */
+	public static int compareSequentially(ByteBuffer buffer,
+			ByteBuffer previousBuffer, int length, byte[] flags,
+			IntBuffer diffInts) {
+		int changedBlocks = 0;
+
+		for (int i = 0; i < length / 4; i++) {
+			int val = getBlock(buffer, i * 4);
+			if (val != getBlock(previousBuffer, i * 4)) {
+				// diff detected
+				diffInts.put(val);
+				flags[i / 8] |= 1 << (i % 8);
+				changedBlocks++;
+			}
+		}
+
+		return changedBlocks;
+	}
+
+	/**
+	 * Compares the blocks of both buffers for an arbitrary block size. The
+	 * content of the changed blocks is written to {@code diffBytes}, one
+	 * block after the other.
+	 *
+	 * @param buffer
+	 *            The new message
+	 * @param previousBuffer
+	 *            The old message
+	 * @param length
+	 *            The number of bytes to compare. Has to be a multiple of
+	 *            {@code blockSize}.
+	 * @param blockSize
+	 *            The size of a block in bytes
+	 * @param flags
+	 *            The flags of the changed blocks are set in this array. It has
+	 *            to be cleared beforehand.
+	 * @param diffBytes
+	 *            The content of the changed blocks is put into this array. It
+	 *            has to hold at least {@code length} bytes.
+	 * @return The number of changed blocks.
+	 * @see #compare(ByteBuffer, ByteBuffer, int, byte[], IntBuffer)
+	 */
+	public static int compare(ByteBuffer buffer, ByteBuffer previousBuffer,
+			int length, int blockSize, byte[] flags, byte[] diffBytes) {
+		int changedBlocks = 0;
+		int offset = 0;
+
+		if (buffer.hasArray() && buffer.arrayOffset() == 0
+				&& previousBuffer.hasArray()
+				&& previousBuffer.arrayOffset() == 0) {
+			byte[] array = buffer.array();
+			byte[] previousArray = previousBuffer.array();
+			int arrayEnd = Math.min(length,
+					Math.min(buffer.capacity(), previousBuffer.capacity()));
+			arrayEnd -= arrayEnd % blockSize;
+
+			while (offset < arrayEnd) {
+				int mismatch = Arrays.mismatch(array, offset, arrayEnd,
+						previousArray, offset, arrayEnd);
+
+				if (mismatch < 0)
+					break;
+
+				int block = (offset + mismatch) / blockSize;
+				System.arraycopy(array, block * blockSize, diffBytes,
+						changedBlocks * blockSize, blockSize);
+				flags[block >>> 3] |= 1 << (block & 7);
+				changedBlocks++;
+				offset = (block + 1) * blockSize;
+			}
+			offset = arrayEnd;
+		}
+
+		// The rest of the blocks is (partially) beyond the capacity of one of
+		// the buffers
+		for (; offset < length; offset += blockSize) {
+			boolean changed = false;
+			for (int i = offset; i < offset + blockSize; i++) {
+				if (getByte(buffer, i) != getByte(previousBuffer, i)) {
+					changed = true;
+					break;
+				}
+			}
+
+			if (changed) {
+				int block = offset / blockSize;
+				for (int i = 0; i < blockSize; i++) {
+					diffBytes[changedBlocks * blockSize + i] = getByte(buffer,
+							offset + i);
+				}
+				flags[block >>> 3] |= 1 << (block & 7);
+				changedBlocks++;
+			}
+		}
+
+		return changedBlocks;
+	}
+
+	/**
+	 * Estimates which of the {@linkplain #BLOCK_SIZES block sizes} results in
+	 * the smallest delta, i.e. the fewest bytes for the flags and the changed
+	 * blocks together. Only a sample of the buffers is compared: up to
+	 * {@value #SAMPLE_WINDOWS} windows of {@value #SAMPLE_WINDOW_SIZE} bytes,
+	 * spread evenly over the message.
+	 *
+	 * @param buffer
+	 *            The new message
+	 * @param previousBuffer
+	 *            The old message
+	 * @param length
+	 *            The size of the larger message
+	 * @return The estimated best block size.
+	 */
+	public static int estimateBlockSize(ByteBuffer buffer,
+			ByteBuffer previousBuffer, int length) {
+		int chunks = (length + 15) / 16;
+		int windowChunks = SAMPLE_WINDOW_SIZE / 16;
+		int windows = Math.min(SAMPLE_WINDOWS,
+				(chunks + windowChunks - 1) / windowChunks);
+		// The number of changed blocks in the sample per block size
+		int[] changedBlocks = new int[BLOCK_SIZES.length];
+		int sampledChunks = 0;
+
+		for (int w = 0; w < windows; w++) {
+			int firstChunk = windows == 1 ? 0
+					: (int) ((long) (chunks - windowChunks) * w
+							/ (windows - 1));
+			int lastChunk = Math.min(chunks, firstChunk + windowChunks);
+
+			for (int chunk = firstChunk; chunk < lastChunk; chunk++) {
+				int mask = getChangedBytes(buffer, previousBuffer, chunk * 16);
+				sampledChunks++;
+
+				for (int i = 0; i < BLOCK_SIZES.length; i++) {
+					changedBlocks[i] += countChangedBlocks(mask,
+							BLOCK_SIZES[i]);
+				}
+			}
+		}
+
+		int bestBlockSize = DEFAULT_BLOCK_SIZE;
+		int bestSize = Integer.MAX_VALUE;
+		for (int i = 0; i < BLOCK_SIZES.length; i++) {
+			int blockSize = BLOCK_SIZES[i];
+			int size = changedBlocks[i] * blockSize
+					+ sampledChunks * 16 / blockSize / 8;
+
+			if (size < bestSize || (size == bestSize
+					&& blockSize == DEFAULT_BLOCK_SIZE)) {
+				bestSize = size;
+				bestBlockSize = blockSize;
+			}
+		}
+
+		return bestBlockSize;
+	}
+
+	/**
+	 * @return A mask with a bit for each byte of the chunk of 16 bytes at
+	 *         {@code offset} that differs.
+	 */
+	private static int getChangedBytes(ByteBuffer buffer,
+			ByteBuffer previousBuffer, int offset) {
+		int mask = 0;
+
+		if (offset + 16 <= buffer.capacity()
+				&& offset + 16 <= previousBuffer.capacity()) {
+			if (buffer.getLong(offset) == previousBuffer.getLong(offset)
+					&& buffer.getLong(offset + 8) == previousBuffer
+							.getLong(offset + 8))
+				return 0;
+
+			for (int i = 0; i < 16; i++) {
+				if (buffer.get(offset + i) != previousBuffer.get(offset + i))
+					mask |= 1 << i;
+			}
+		} else {
+			for (int i = 0; i < 16; i++) {
+				if (getByte(buffer, offset + i) != getByte(previousBuffer,
+						offset + i))
+					mask |= 1 << i;
+			}
+		}
+
+		return mask;
+	}
+
+	/**
+	 * @return The number of blocks of the given size in a chunk of 16 bytes
+	 *         that contain a changed byte.
+	 */
+	private static int countChangedBlocks(int mask, int blockSize) {
+		int count = 0;
+		int blockMask = (1 << blockSize) - 1;
+
+		for (int i = 0; i < 16; i += blockSize) {
+			if ((mask >>> i & blockMask) != 0)
+				count++;
+		}
+
+		return count;
+	}
+
+	/**
+	 * Reads the byte at {@code offset}. Bytes beyond the capacity of the
+	 * buffer are treated as zeros.
+	 */
+	private static byte getByte(ByteBuffer buffer, int offset) {
+		return offset < buffer.capacity() ? buffer.get(offset) : 0;
+	}
+
+	/**
+	 * Reads the block of four bytes starting at {@code offset}. Bytes beyond
+	 * the capacity of the buffer are treated as zeros.
+	 */
+	private static int getBlock(ByteBuffer buffer, int offset) {
+		if (offset + 4 <= buffer.capacity())
+			return buffer.getInt(offset);
+
+		int val = 0;
+		for (int i = 0; i < 4; i++) {
+			val <<= 8;
+			if (offset + i < buffer.capacity())
+				val |= buffer.get(offset + i) & 0xFF;
+		}
+		return val;
+	}
+}
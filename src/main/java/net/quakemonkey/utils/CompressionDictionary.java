@@ -0,0 +1,72 @@
+package net.quakemonkey.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Output;
+import com.google.common.base.Preconditions;
+
+/**
+ * Creates preset dictionaries for the compression of payloads from typical
+ * messages, e.g. snapshots recorded during an earlier session. The
+ * compression can then refer to the bytes of those messages, which helps
+ * small payloads in particular, as they contain too little repetition by
+ * themselves.
+ *
+ * @see net.quakemonkey.ServerDiffHandler#setCompressionDictionary(byte[])
+ * @see net.quakemonkey.ClientDiffHandler#setCompressionDictionary(byte[])
+ */
+public class CompressionDictionary {
+	/**
+	 * The size of the window of a {@link java.util.zip.Deflater}; bytes of
+	 * the dictionary before it cannot be referred to.
+	 */
+	public static final int MAX_SIZE = 32 * 1024;
+
+	private CompressionDictionary() {
+		// not used
+	}
+
+	/**
+	 * Creates a dictionary from the serialized forms of the given messages.
+	 * The most recent messages are placed at the end of the dictionary, where
+	 * references are the cheapest; older ones are dropped if the dictionary
+	 * would get too large.
+	 *
+	 * @param kryoSerializer
+	 *            The Kryo instance with the registrations of the endpoints
+	 * @param messages
+	 *            Sample messages, from the oldest to the most recent one
+	 * @param maxSize
+	 *            The maximum size of the dictionary, at most
+	 *            {@link #MAX_SIZE}
+	 * @return The dictionary
+	 */
+	public static byte[] create(Kryo kryoSerializer, Iterable<?> messages,
+			int maxSize) {
+		Preconditions.checkArgument(maxSize > 0 && maxSize <= MAX_SIZE);
+
+		List<byte[]> samples = new ArrayList<>();
+		Output output = new Output(4096, -1);
+		for (Object message : messages) {
+			output.reset();
+			kryoSerializer.writeClassAndObject(output, message);
+			samples.add(output.toBytes());
+		}
+
+		byte[] dictionary = new byte[maxSize];
+		int start = maxSize;
+		for (int i = samples.size() - 1; i >= 0 && start > 0; i--) {
+			byte[] sample = samples.get(i);
+			int length = Math.min(start, sample.length);
+
+			start -= length;
+			System.arraycopy(sample, sample.length - length, dictionary, start,
+					length);
+		}
+
+		return Arrays.copyOfRange(dictionary, start, maxSize);
+	}
+}
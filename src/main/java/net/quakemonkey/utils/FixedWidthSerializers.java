@@ -0,0 +1,309 @@
+package net.quakemonkey.utils;
+
+import java.util.Collection;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.google.common.base.Preconditions;
+
+/**
+ * Serializers that always write the same number of bytes for a type, no
+ * matter its value. If all fields of a message are serialized by them, every
+ * field stays at the same offset from one message to the next, so the
+ * {@linkplain BlockComparison block comparison} only flags the blocks whose
+ * values actually changed.
+ * <p>
+ * Primitives are written with their natural width. Strings and collections
+ * are written into a slot of a fixed width; the remainder of the slot is
+ * padded with zeros. Values that do not fit into their slot cause a
+ * {@link KryoException}.
+ *
+ * @see net.quakemonkey.FixedWidthRegistration
+ */
+public class FixedWidthSerializers {
+	private static final byte[] PADDING = new byte[256];
+
+	private FixedWidthSerializers() {
+		// not used
+	}
+
+	/**
+	 * Pads the slot that started at {@code start} to {@code width} bytes.
+	 */
+	static void pad(Output output, long start, int width) {
+		long written = output.total() - start;
+
+		if (written > width)
+			throw new KryoException("The value needs " + written
+					+ " bytes, but its slot is only " + width + " bytes wide");
+
+		for (long remaining = width - written; remaining > 0;) {
+			int length = (int) Math.min(remaining, PADDING.length);
+			output.writeBytes(PADDING, 0, length);
+			remaining -= length;
+		}
+	}
+
+	/**
+	 * Skips the padding of the slot that started at {@code start}.
+	 */
+	static void skipPadding(Input input, long start, int width) {
+		long read = input.total() - start;
+
+		if (read > width)
+			throw new KryoException("The value exceeds its slot");
+
+		input.skip(width - read);
+	}
+
+	public static class BooleanSerializer extends Serializer<Boolean> {
+		public BooleanSerializer() {
+			setImmutable(true);
+		}
+
+		@Override
+		public void write(Kryo kryo, Output output, Boolean object) {
+			output.writeBoolean(object);
+		}
+
+		@Override
+		public Boolean read(Kryo kryo, Input input,
+				Class<? extends Boolean> type) {
+			return input.readBoolean();
+		}
+	}
+
+	public static class ByteSerializer extends Serializer<Byte> {
+		public ByteSerializer() {
+			setImmutable(true);
+		}
+
+		@Override
+		public void write(Kryo kryo, Output output, Byte object) {
+			output.writeByte(object);
+		}
+
+		@Override
+		public Byte read(Kryo kryo, Input input, Class<? extends Byte> type) {
+			return input.readByte();
+		}
+	}
+
+	public static class CharSerializer extends Serializer<Character> {
+		public CharSerializer() {
+			setImmutable(true);
+		}
+
+		@Override
+		public void write(Kryo kryo, Output output, Character object) {
+			output.writeChar(object);
+		}
+
+		@Override
+		public Character read(Kryo kryo, Input input,
+				Class<? extends Character> type) {
+			return input.readChar();
+		}
+	}
+
+	public static class ShortSerializer extends Serializer<Short> {
+		public ShortSerializer() {
+			setImmutable(true);
+		}
+
+		@Override
+		public void write(Kryo kryo, Output output, Short object) {
+			output.writeShort(object);
+		}
+
+		@Override
+		public Short read(Kryo kryo, Input input,
+				Class<? extends Short> type) {
+			return input.readShort();
+		}
+	}
+
+	public static class IntSerializer extends Serializer<Integer> {
+		public IntSerializer() {
+			setImmutable(true);
+		}
+
+		@Override
+		public void write(Kryo kryo, Output output, Integer object) {
+			output.writeInt(object);
+		}
+
+		@Override
+		public Integer read(Kryo kryo, Input input,
+				Class<? extends Integer> type) {
+			return input.readInt();
+		}
+	}
+
+	public static class LongSerializer extends Serializer<Long> {
+		public LongSerializer() {
+			setImmutable(true);
+		}
+
+		@Override
+		public void write(Kryo kryo, Output output, Long object) {
+			output.writeLong(object);
+		}
+
+		@Override
+		public Long read(Kryo kryo, Input input, Class<? extends Long> type) {
+			return input.readLong();
+		}
+	}
+
+	public static class FloatSerializer extends Serializer<Float> {
+		public FloatSerializer() {
+			setImmutable(true);
+		}
+
+		@Override
+		public void write(Kryo kryo, Output output, Float object) {
+			output.writeFloat(object);
+		}
+
+		@Override
+		public Float read(Kryo kryo, Input input,
+				Class<? extends Float> type) {
+			return input.readFloat();
+		}
+	}
+
+	public static class DoubleSerializer extends Serializer<Double> {
+		public DoubleSerializer() {
+			setImmutable(true);
+		}
+
+		@Override
+		public void write(Kryo kryo, Output output, Double object) {
+			output.writeDouble(object);
+		}
+
+		@Override
+		public Double read(Kryo kryo, Input input,
+				Class<? extends Double> type) {
+			return input.readDouble();
+		}
+	}
+
+	/**
+	 * Writes strings into a slot of a fixed number of bytes. Kryo's string
+	 * encoding is used within the slot, so ASCII strings can be up to
+	 * {@code width - 1} characters long. <code>null</code> is supported.
+	 */
+	public static class StringSerializer extends Serializer<String> {
+		private final int width;
+
+		/**
+		 * @param width
+		 *            The width of the slot in bytes
+		 */
+		public StringSerializer(int width) {
+			Preconditions.checkArgument(width > 0);
+
+			this.width = width;
+			setImmutable(true);
+			setAcceptsNull(true);
+		}
+
+		@Override
+		public void write(Kryo kryo, Output output, String object) {
+			long start = output.total();
+			output.writeString(object);
+			pad(output, start, width);
+		}
+
+		@Override
+		public String read(Kryo kryo, Input input,
+				Class<? extends String> type) {
+			long start = input.total();
+			String string = input.readString();
+			skipPadding(input, start, width);
+
+			return string;
+		}
+	}
+
+	/**
+	 * Writes collections of up to {@code maxLength} elements of a single
+	 * class. The size is written as an int, followed by a slot of
+	 * {@code elementWidth} bytes for each of the {@code maxLength} possible
+	 * elements. Removing an element therefore only changes the slots after
+	 * it, not the rest of the message.
+	 *
+	 * @param <T>
+	 *            The type of the collection
+	 */
+	@SuppressWarnings("rawtypes")
+	public static class CollectionSerializer<T extends Collection>
+			extends Serializer<T> {
+		private final Class<?> elementClass;
+		private final int maxLength;
+		private final int elementWidth;
+
+		/**
+		 * @param elementClass
+		 *            The class of all elements. Elements may not be
+		 *            <code>null</code>.
+		 * @param maxLength
+		 *            The maximum size of a collection
+		 * @param elementWidth
+		 *            The width of the slot of each element in bytes
+		 */
+		public CollectionSerializer(Class<?> elementClass, int maxLength,
+				int elementWidth) {
+			Preconditions.checkNotNull(elementClass);
+			Preconditions.checkArgument(maxLength >= 0);
+			Preconditions.checkArgument(elementWidth > 0);
+
+			this.elementClass = elementClass;
+			this.maxLength = maxLength;
+			this.elementWidth = elementWidth;
+		}
+
+		@Override
+		public void write(Kryo kryo, Output output, T collection) {
+			int size = collection.size();
+
+			if (size > maxLength)
+				throw new KryoException("The collection has " + size
+						+ " elements, but at most " + maxLength
+						+ " are supported");
+
+			output.writeInt(size);
+			for (Object element : collection) {
+				long start = output.total();
+				kryo.writeObject(output, element);
+				pad(output, start, elementWidth);
+			}
+			pad(output, output.total(), (maxLength - size) * elementWidth);
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public T read(Kryo kryo, Input input, Class<? extends T> type) {
+			int size = input.readInt();
+
+			if (size < 0 || size > maxLength)
+				throw new KryoException("Invalid collection size: " + size);
+
+			T collection = kryo.newInstance(type);
+			kryo.reference(collection);
+			for (int i = 0; i < size; i++) {
+				long start = input.total();
+				collection.add(kryo.readObject(input, elementClass));
+				skipPadding(input, start, elementWidth);
+			}
+			input.skip((long) (maxLength - size) * elementWidth);
+
+			return collection;
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package net.quakemonkey.utils;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * Packs ints without their leading zero bytes, similar to the compression of
+ * the XORed values in Gorilla. It suits the XOR of an old and a new value
+ * that differ only slightly, like a position that moved a bit or a counter
+ * that was incremented: their high bytes are equal, so the XOR starts with
+ * zero bytes.
+ * <p>
+ * The ints are written in groups of four. Each group starts with a control
+ * byte that holds the number of leading zero bytes of each int in two bits
+ * (at most three, so zero is written as one byte), followed by the remaining
+ * bytes of the ints in big-endian order.
+ */
+public class LeadingZeroCoding {
+	private LeadingZeroCoding() {
+		// not used
+	}
+
+	/**
+	 * Writes the first {@code count} ints of the array.
+	 */
+	public static void write(Output output, int[] values, int count) {
+		for (int group = 0; group < count; group += 4) {
+			int end = Math.min(count, group + 4);
+
+			int control = 0;
+			for (int i = group; i < end; i++) {
+				control |= getLeadingZeroBytes(values[i]) << ((i - group) * 2);
+			}
+			output.writeByte(control);
+
+			for (int i = group; i < end; i++) {
+				int value = values[i];
+				int shift = (3 - getLeadingZeroBytes(value)) * 8;
+				for (; shift >= 0; shift -= 8) {
+					output.writeByte(value >>> shift);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads {@code count} ints into the array.
+	 */
+	public static void read(Input input, int[] values, int count) {
+		for (int group = 0; group < count; group += 4) {
+			int end = Math.min(count, group + 4);
+			int control = input.readByte() & 0xFF;
+
+			for (int i = group; i < end; i++) {
+				int length = 4 - (control >>> ((i - group) * 2) & 3);
+				int value = 0;
+				for (int j = 0; j < length; j++) {
+					value = value << 8 | (input.readByte() & 0xFF);
+				}
+				values[i] = value;
+			}
+		}
+	}
+
+	/**
+	 * @return The number of bytes {@link #write(Output, int[], int)} writes
+	 *         for the first {@code count} ints of the array.
+	 */
+	public static int getLength(int[] values, int count) {
+		int length = (count + 3) / 4;
+
+		for (int i = 0; i < count; i++) {
+			length += 4 - getLeadingZeroBytes(values[i]);
+		}
+
+		return length;
+	}
+
+	private static int getLeadingZeroBytes(int value) {
+		return Math.min(3, Integer.numberOfLeadingZeros(value) >>> 3);
+	}
+}
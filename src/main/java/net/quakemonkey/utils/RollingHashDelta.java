@@ -0,0 +1,237 @@
+package net.quakemonkey.utils;
+
+import java.util.Arrays;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.google.common.base.Preconditions;
+
+import net.quakemonkey.utils.pool.BufferPool;
+
+/**
+ * Computes the delta between two serialized messages as a sequence of copy and
+ * insert instructions, similar to rsync. Unlike the {@linkplain BlockComparison
+ * block comparison}, this finds unchanged regions that were shifted, e.g. by
+ * a variable-length integer or a string that became longer or shorter.
+ * <p>
+ * The old message is split into windows of {@value #WINDOW_SIZE} bytes, which
+ * are indexed by their hash. A rolling hash of the new message is then looked
+ * up at every offset; matches are extended in both directions and emitted as
+ * copies from the old message. Everything in between is inserted verbatim.
+ * <p>
+ * The instructions are encoded as follows:
+ * <ul>
+ * <li>the size of the new message as a varint, followed by</li>
+ * <li>an arbitrary number of instructions, each starting with a varint
+ * {@code length << 1 | isCopy}. An insert is followed by {@code length}
+ * bytes; a copy is followed by the zig-zag encoded difference between its
+ * source offset and the offset predicted from the previous copy.</li>
+ * </ul>
+ * The offset of a copy that continues with the same shift as its predecessor
+ * therefore takes a single byte.
+ */
+public class RollingHashDelta {
+	/**
+	 * The number of bytes that have to match before a copy is emitted.
+	 */
+	public static final int WINDOW_SIZE = 8;
+	private static final int MULTIPLIER = 0x01000193;
+	/**
+	 * {@code MULTIPLIER^(WINDOW_SIZE - 1)}, used to remove the first byte of
+	 * a window from its hash.
+	 */
+	private static final int OUTGOING_FACTOR;
+
+	static {
+		int factor = 1;
+		for (int i = 1; i < WINDOW_SIZE; i++) {
+			factor *= MULTIPLIER;
+		}
+		OUTGOING_FACTOR = factor;
+	}
+
+	private RollingHashDelta() {
+		// not used
+	}
+
+	/**
+	 * Writes the instructions that turn the old message into the new one.
+	 *
+	 * @param message
+	 *            The new message
+	 * @param size
+	 *            The size of the new message
+	 * @param previousMessage
+	 *            The old message
+	 * @param previousSize
+	 *            The size of the old message
+	 * @param output
+	 *            The instructions are written to this output
+	 */
+	public static void encode(byte[] message, int size, byte[] previousMessage,
+			int previousSize, Output output) {
+		output.writeVarInt(size, true);
+
+		if (size < WINDOW_SIZE || previousSize < WINDOW_SIZE) {
+			writeInsert(output, message, 0, size);
+			return;
+		}
+
+		int tableBits = 32 - Integer.numberOfLeadingZeros(
+				Math.max(16, previousSize / WINDOW_SIZE * 2) - 1);
+		int[] table = BufferPool.DEFAULT.obtainIntArray(1 << tableBits, true);
+		Arrays.fill(table, 0);
+
+		// Index the windows of the old message; the first one wins
+		for (int offset = 0; offset + WINDOW_SIZE <= previousSize;
+				offset += WINDOW_SIZE) {
+			int slot = slot(hash(previousMessage, offset), tableBits);
+			if (table[slot] == 0)
+				table[slot] = offset + 1;
+		}
+
+		int pos = 0;
+		int literalStart = 0;
+		// The difference between source and target offset of the last copy
+		int shift = 0;
+		int hash = hash(message, 0);
+
+		while (pos + WINDOW_SIZE <= size) {
+			int match = -1;
+
+			// The data usually continues with the same shift after a change
+			int predicted = pos + shift;
+			if (predicted >= 0 && predicted + WINDOW_SIZE <= previousSize
+					&& matches(message, pos, previousMessage, predicted)) {
+				match = predicted;
+			} else {
+				int candidate = table[slot(hash, tableBits)] - 1;
+				if (candidate >= 0
+						&& matches(message, pos, previousMessage, candidate))
+					match = candidate;
+			}
+
+			if (match < 0) {
+				if (pos + WINDOW_SIZE < size) {
+					hash = (hash - (message[pos] & 0xFF) * OUTGOING_FACTOR)
+							* MULTIPLIER + (message[pos + WINDOW_SIZE] & 0xFF);
+				}
+				pos++;
+				continue;
+			}
+
+			// Extend the match into the pending literal bytes and forwards
+			while (pos > literalStart && match > 0
+					&& message[pos - 1] == previousMessage[match - 1]) {
+				pos--;
+				match--;
+			}
+			int length = WINDOW_SIZE;
+			while (pos + length < size && match + length < previousSize
+					&& message[pos + length] == previousMessage[match
+							+ length]) {
+				length++;
+			}
+
+			writeInsert(output, message, literalStart, pos - literalStart);
+			output.writeVarInt(length << 1 | 1, true);
+			output.writeVarInt(match - (pos + shift), false);
+
+			shift = match - pos;
+			pos += length;
+			literalStart = pos;
+			if (pos + WINDOW_SIZE <= size)
+				hash = hash(message, pos);
+		}
+
+		writeInsert(output, message, literalStart, size - literalStart);
+
+		BufferPool.DEFAULT.freeIntArray(table);
+	}
+
+	/**
+	 * Reads the size of the new message, which precedes the instructions.
+	 *
+	 * @param instructions
+	 *            The encoded instructions
+	 * @return The size of the new message.
+	 */
+	public static int readSize(Input instructions) {
+		return instructions.readVarInt(true);
+	}
+
+	/**
+	 * Applies the instructions to the old message. The size of the new
+	 * message has to be {@linkplain #readSize(Input) read} beforehand.
+	 *
+	 * @param instructions
+	 *            The encoded instructions, positioned after the size
+	 * @param previousMessage
+	 *            The old message
+	 * @param previousSize
+	 *            The size of the old message
+	 * @param message
+	 *            The new message is written to this array. It may not be the
+	 *            same as {@code previousMessage}.
+	 * @param size
+	 *            The size of the new message
+	 */
+	public static void apply(Input instructions, byte[] previousMessage,
+			int previousSize, byte[] message, int size) {
+		Preconditions.checkArgument(message != previousMessage);
+
+		int pos = 0;
+		int shift = 0;
+
+		while (pos < size) {
+			int header = instructions.readVarInt(true);
+			int length = header >>> 1;
+
+			Preconditions.checkArgument(pos + length <= size,
+					"The instruction exceeds the message");
+
+			if ((header & 1) == 0) {
+				instructions.readBytes(message, pos, length);
+			} else {
+				int source = pos + shift + instructions.readVarInt(false);
+
+				Preconditions.checkArgument(
+						source >= 0 && source + length <= previousSize,
+						"The copy exceeds the previous message");
+
+				System.arraycopy(previousMessage, source, message, pos,
+						length);
+				shift = source - pos;
+			}
+			pos += length;
+		}
+	}
+
+	private static void writeInsert(Output output, byte[] message, int offset,
+			int length) {
+		if (length == 0)
+			return;
+
+		output.writeVarInt(length << 1, true);
+		output.writeBytes(message, offset, length);
+	}
+
+	private static int hash(byte[] array, int offset) {
+		int hash = 0;
+		for (int i = 0; i < WINDOW_SIZE; i++) {
+			hash = hash * MULTIPLIER + (array[offset + i] & 0xFF);
+		}
+		return hash;
+	}
+
+	private static int slot(int hash, int tableBits) {
+		return (hash * 0x9E3779B9) >>> (32 - tableBits);
+	}
+
+	private static boolean matches(byte[] message, int offset,
+			byte[] previousMessage, int previousOffset) {
+		return Arrays.equals(message, offset, offset + WINDOW_SIZE,
+				previousMessage, previousOffset,
+				previousOffset + WINDOW_SIZE);
+	}
+}
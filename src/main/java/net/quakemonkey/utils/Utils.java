@@ -1,6 +1,7 @@
 package net.quakemonkey.utils;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.io.Output;
@@ -13,6 +14,13 @@ public class Utils {
 		// not used
 	}
 
+	/**
+	 * The initial size of the scratch outputs; they grow as needed.
+	 */
+	private static final int SCRATCH_OUTPUT_SIZE = 4096;
+	private static final ThreadLocal<Output> SCRATCH_OUTPUT = ThreadLocal
+			.withInitial(() -> new Output(SCRATCH_OUTPUT_SIZE, -1));
+
 	/**
 	 * Packs a message into a buffer.
 	 * 
@@ -21,25 +29,46 @@ public class Utils {
 	 * @param kryoSerializer
 	 *            The kryo instance used to serialize the message.
 	 * @return A buffer containing the serialized message.
+	 * @see #messageToBuffer(Object, ByteBuffer, Kryo)
 	 */
 	public static ByteBuffer messageToBuffer(Object message,
-			/* @Nullable ByteBuffer target, */ Kryo kryoSerializer) {
-		/*
-		 * ByteBuffer buffer = target == null ?
-		 * BufferPool.DEFAULT.obtainByteBuffer(Short.MAX_VALUE) : target;
-		 */
-		ByteBuffer buffer = BufferPool.DEFAULT
-				.obtainByteBuffer(Short.MAX_VALUE);
-
-		Output output = new Output(buffer.array());
+			Kryo kryoSerializer) {
+		return messageToBuffer(message, null, kryoSerializer);
+	}
 
-		// output.setPosition(2);
+	/**
+	 * Packs a message into a buffer. The message is serialized into a growable
+	 * scratch output first and then copied into a buffer that is only as big
+	 * as the message's size class. The bytes between the end of the message
+	 * and the capacity of the buffer are set to zero.
+	 * 
+	 * @param message
+	 *            The actual message.
+	 * @param target
+	 *            The buffer that is reused if it is big enough. Otherwise it
+	 *            is freed and a new buffer is obtained from the pool. Can be
+	 *            <code>null</code>.
+	 * @param kryoSerializer
+	 *            The kryo instance used to serialize the message.
+	 * @return A buffer containing the serialized message.
+	 */
+	public static ByteBuffer messageToBuffer(Object message,
+			/* @Nullable */ ByteBuffer target, Kryo kryoSerializer) {
+		Output output = SCRATCH_OUTPUT.get();
+		output.reset();
 		kryoSerializer.writeClassAndObject(output, message);
-		buffer.position(output.position());
-		buffer.flip();
-		// short dataLength = (short) (buffer.remaining() - 2);
-		// buffer.putShort(dataLength);
-		// buffer.position(0);
+		int size = output.position();
+
+		ByteBuffer buffer = target;
+		if (buffer == null || buffer.capacity() < size) {
+			BufferPool.DEFAULT.freeByteBuffer(target);
+			buffer = BufferPool.DEFAULT.obtainByteBuffer(size);
+		}
+
+		System.arraycopy(output.getBuffer(), 0, buffer.array(), 0, size);
+		Arrays.fill(buffer.array(), size, buffer.capacity(), (byte) 0);
+		buffer.clear();
+		buffer.limit(size);
 
 		return buffer;
 	}
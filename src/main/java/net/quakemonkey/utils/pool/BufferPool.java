@@ -2,57 +2,80 @@ package net.quakemonkey.utils.pool;
 
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
-import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.base.Preconditions;
 
 /**
  * A pool for byte and integer arrays as well as buffers.
  * <p>
+ * The pool can be used by multiple threads concurrently. Each thread caches a
+ * few arrays and buffers of every size class, so obtaining and freeing them
+ * usually requires no synchronization at all.
+ * <p>
+ * The amount of memory held by the pool is bounded per size class. Arrays and
+ * buffers that were not needed for a while can be released by calling
+ * {@link #trim()} periodically. Hits, misses and the number of bytes in use
+ * are counted; the {@linkplain #setLeakDetection(boolean) leak detection} can
+ * be enabled to find arrays and buffers that are never freed.
+ * <p>
  * Beware that the obtained buffers and arrays may still contain data!
+ *
+ * @see SizeClassPool
  */
 public class BufferPool {
+	protected static final Logger LOG = Logger
+			.getLogger(BufferPool.class.getName());
+	/**
+	 * The default maximum number of bytes pooled per size class and type.
+	 */
+	public static final long DEFAULT_MAX_POOLED_BYTES_PER_CLASS = 4 * 1024
+			* 1024;
 	public static final BufferPool DEFAULT = new BufferPool();
 
-	private final DuplicatedKeysTreeMap<Integer, byte[]> byteArrayPool = new DuplicatedKeysTreeMap<Integer, byte[]>(
-			true, new Comparator<byte[]>() {
-				public int compare(byte[] o1, byte[] o2) {
-					return Integer.compare(o1.length, o2.length);
-				};
-			});
-	private final DuplicatedKeysTreeMap<Integer, int[]> intArrayPool = new DuplicatedKeysTreeMap<Integer, int[]>(
-			true, new Comparator<int[]>() {
-				public int compare(int[] o1, int[] o2) {
-					return Integer.compare(o1.length, o2.length);
-				};
-			});
-	private final DuplicatedKeysTreeMap<Integer, ByteBuffer> byteBufferPool = new DuplicatedKeysTreeMap<Integer, ByteBuffer>(
-			false);
-	private final DuplicatedKeysTreeMap<Integer, IntBuffer> intBufferPool = new DuplicatedKeysTreeMap<Integer, IntBuffer>(
-			false);
+	private final PoolStatistics statistics = new PoolStatistics();
+	private final SizeClassPool<byte[]> byteArrayPool;
+	private final SizeClassPool<int[]> intArrayPool;
+	private final SizeClassPool<ByteBuffer> byteBufferPool;
+	private final SizeClassPool<IntBuffer> intBufferPool;
+
+	public BufferPool() {
+		this(DEFAULT_MAX_POOLED_BYTES_PER_CLASS);
+	}
+
+	/**
+	 * @param maxPooledBytesPerClass
+	 *            The maximum number of bytes that are kept in the shared
+	 *            depot of each size class, separately for each of the four
+	 *            pooled types. Additionally, every thread caches up to an
+	 *            eighth of it per size class.
+	 */
+	public BufferPool(long maxPooledBytesPerClass) {
+		byteArrayPool = new SizeClassPool<>(byte[]::new,
+				array -> array.length, 1, maxPooledBytesPerClass, statistics);
+		intArrayPool = new SizeClassPool<>(int[]::new, array -> array.length,
+				4, maxPooledBytesPerClass, statistics);
+		byteBufferPool = new SizeClassPool<>(ByteBuffer::allocate,
+				ByteBuffer::capacity, 1, maxPooledBytesPerClass, statistics);
+		intBufferPool = new SizeClassPool<>(IntBuffer::allocate,
+				IntBuffer::capacity, 4, maxPooledBytesPerClass, statistics);
+	}
 
 	public byte[] obtainByteArray(int minimumSize) {
 		return obtainByteArray(minimumSize, false);
 	}
 
 	public byte[] obtainByteArray(int size, boolean exactSize) {
-		synchronized (byteArrayPool) {
-			byte[] array = exactSize ? byteArrayPool.poll(size)
-					: byteArrayPool.pollCeiling(size);
-
-			if (array == null) {
-				array = new byte[size];
-			}
-
-			return array;
-		}
+		return byteArrayPool.obtain(size, exactSize);
 	}
 
 	public void freeByteArray(byte[] array) {
 		if (array == null)
 			return;
 
-		synchronized (byteArrayPool) {
-			byteArrayPool.put(array.length, array);
-		}
+		byteArrayPool.free(array);
 	}
 
 	public int[] obtainIntArray(int size) {
@@ -60,25 +83,14 @@ public class BufferPool {
 	}
 
 	public int[] obtainIntArray(int size, boolean exactSize) {
-		synchronized (intArrayPool) {
-			int[] array = exactSize ? intArrayPool.poll(size)
-					: intArrayPool.pollCeiling(size);
-
-			if (array == null) {
-				array = new int[size];
-			}
-
-			return array;
-		}
+		return intArrayPool.obtain(size, exactSize);
 	}
 
 	public void freeIntArray(int[] array) {
 		if (array == null)
 			return;
 
-		synchronized (intArrayPool) {
-			intArrayPool.put(array.length, array);
-		}
+		intArrayPool.free(array);
 	}
 
 	public ByteBuffer obtainByteBuffer(int minimumSize) {
@@ -86,25 +98,15 @@ public class BufferPool {
 	}
 
 	public ByteBuffer obtainByteBuffer(int size, boolean exactSize) {
-		synchronized (byteBufferPool) {
-			ByteBuffer buffer = exactSize ? byteBufferPool.poll(size)
-					: byteBufferPool.pollCeiling(size);
-
-			if (buffer == null) {
-				buffer = ByteBuffer.allocate(size);
-			}
-
-			return buffer;
-		}
+		return byteBufferPool.obtain(size, exactSize);
 	}
 
 	public void freeByteBuffer(ByteBuffer buffer) {
 		if (buffer == null)
 			return;
-		synchronized (byteBufferPool) {
-			buffer.clear();
-			byteBufferPool.put(buffer.capacity(), buffer);
-		}
+
+		buffer.clear();
+		byteBufferPool.free(buffer);
 	}
 
 	public IntBuffer obtainIntBuffer(int minimumSize) {
@@ -112,25 +114,99 @@ public class BufferPool {
 	}
 
 	public IntBuffer obtainIntBuffer(int size, boolean exactSize) {
-		synchronized (intBufferPool) {
-			IntBuffer buffer = exactSize ? intBufferPool.poll(size)
-					: intBufferPool.pollCeiling(size);
-
-			if (buffer == null) {
-				buffer = IntBuffer.allocate(size);
-			}
-
-			return buffer;
-		}
+		return intBufferPool.obtain(size, exactSize);
 	}
 
 	public void freeIntBuffer(IntBuffer buffer) {
 		if (buffer == null)
 			return;
 
-		synchronized (intBufferPool) {
-			buffer.clear();
-			intBufferPool.put(buffer.capacity(), buffer);
+		buffer.clear();
+		intBufferPool.free(buffer);
+	}
+
+	/**
+	 * Releases the arrays and buffers that were not obtained since the last
+	 * call of this method. Should be called periodically, e.g. every few
+	 * seconds, to give memory back after a burst.
+	 */
+	public void trim() {
+		byteArrayPool.trim();
+		intArrayPool.trim();
+		byteBufferPool.trim();
+		intBufferPool.trim();
+	}
+
+	/**
+	 * @return The number of obtains that were served from the pool.
+	 */
+	public long getHits() {
+		return statistics.getHits();
+	}
+
+	/**
+	 * @return The number of obtains that required a new array or buffer.
+	 */
+	public long getMisses() {
+		return statistics.getMisses();
+	}
+
+	/**
+	 * @return The number of bytes that were obtained and not freed yet.
+	 *         Freeing arrays or buffers that were not obtained from this pool
+	 *         decreases this value as well.
+	 */
+	public long getOutstandingBytes() {
+		return statistics.getOutstandingBytes();
+	}
+
+	/**
+	 * @return The high-water mark of the bytes that were allocated by this
+	 *         pool and not dropped yet, regardless of whether they are in use
+	 *         or pooled.
+	 */
+	public long getPeakBytes() {
+		return statistics.getPeakBytes();
+	}
+
+	/**
+	 * @return The number of bytes that were dropped, because the pool was
+	 *         full or {@linkplain #trim() trimmed}.
+	 */
+	public long getDroppedBytes() {
+		return statistics.getDroppedBytes();
+	}
+
+	/**
+	 * Enables or disables the leak detection. While it is enabled, the stack
+	 * trace of every obtain is recorded until the array or buffer is freed.
+	 * This is expensive and should only be used for debugging.
+	 * 
+	 * @param leakDetection
+	 *            Whether leaks should be detected
+	 * @see #reportLeaks()
+	 */
+	public void setLeakDetection(boolean leakDetection) {
+		statistics.setLeakDetection(leakDetection);
+	}
+
+	/**
+	 * Logs where the arrays and buffers that are currently in use were
+	 * obtained. Note that this includes the ones that are still legitimately
+	 * in use, e.g. as part of a snapshot history.
+	 * 
+	 * @return The number of arrays and buffers that were obtained since the
+	 *         leak detection was enabled and are not freed yet.
+	 */
+	public int reportLeaks() {
+		Preconditions.checkState(statistics.isLeakDetection(),
+				"The leak detection is disabled");
+
+		List<Throwable> traces = statistics.getObtainTraces();
+		for (Throwable trace : traces) {
+			LOG.log(Level.WARNING, "Not freed", trace);
 		}
+
+		return traces.size();
 	}
 }
@@ -0,0 +1,141 @@
+package net.quakemonkey.utils.pool;
+
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Registration;
+import com.google.common.base.Preconditions;
+
+import net.quakemonkey.utils.pool.Pool.ObjectSupplier;
+
+/**
+ * A pool of {@link Kryo} instances. Kryo instances are not thread-safe, so
+ * every thread that serializes messages has to use an instance of its own,
+ * instead of the one of the KryoNet endpoint, which is also used by KryoNet's
+ * update thread.
+ * <p>
+ * All instances are created by a factory that has to replay the registrations
+ * of the endpoint, i.e. register the same classes in the same order, including
+ * the ones of {@link net.quakemonkey.DiffClassRegistration#registerClasses(Kryo)
+ * DiffClassRegistration}. Otherwise the class ids written by the instances do
+ * not match the ones expected by the client. Whether they match can be checked
+ * via {@link #checkRegistrations(Kryo)}.
+ *
+ * @see net.quakemonkey.ServerDiffHandler#setKryoPool(KryoPool)
+ */
+public class KryoPool {
+	private final Pool<Kryo> pool;
+
+	/**
+	 * @param factory
+	 *            Creates a new, fully registered Kryo instance
+	 * @param size
+	 *            The maximum number of idle instances kept by the pool
+	 */
+	public KryoPool(Supplier<Kryo> factory, int size) {
+		Preconditions.checkNotNull(factory);
+		Preconditions.checkArgument(size > 0);
+
+		pool = new Pool<>(new ObjectSupplier<Kryo>() {
+			@Override
+			public Kryo newInstance() {
+				return factory.get();
+			}
+
+			@Override
+			public void onFree(Kryo kryo) {
+				// Kryo resets its state after every serialized object
+			}
+		}, size);
+	}
+
+	/**
+	 * Creates a pool that keeps up to one idle instance per available
+	 * processor.
+	 *
+	 * @param factory
+	 *            Creates a new, fully registered Kryo instance
+	 */
+	public KryoPool(Supplier<Kryo> factory) {
+		this(factory, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @return A Kryo instance that is exclusively used by the caller until it
+	 *         is {@linkplain #free(Kryo) freed}.
+	 */
+	public Kryo obtain() {
+		return pool.obtain();
+	}
+
+	/**
+	 * Gives an instance back to the pool.
+	 *
+	 * @param kryo
+	 *            An instance obtained from this pool
+	 */
+	public void free(Kryo kryo) {
+		pool.free(kryo);
+	}
+
+	/**
+	 * Runs the given function with an instance of the pool.
+	 *
+	 * @param function
+	 *            The function. May not keep a reference to the instance.
+	 * @return The result of the function.
+	 */
+	public <R> R run(Function<Kryo, R> function) {
+		Kryo kryo = obtain();
+		try {
+			return function.apply(kryo);
+		} finally {
+			free(kryo);
+		}
+	}
+
+	/**
+	 * Checks whether the instances of this pool use the same class ids as the
+	 * given one.
+	 *
+	 * @param expected
+	 *            The Kryo instance of the endpoint
+	 * @throws IllegalArgumentException
+	 *             if a class id is registered for a different class or only
+	 *             by one of the instances
+	 */
+	public void checkRegistrations(Kryo expected) {
+		Kryo kryo = obtain();
+
+		try {
+			int idCount = Math.max(expected.getNextRegistrationId(),
+					kryo.getNextRegistrationId());
+
+			for (int id = 0; id < idCount; id++) {
+				Registration expectedRegistration = expected
+						.getRegistration(id);
+				Registration registration = kryo.getRegistration(id);
+				Class<?> expectedType = expectedRegistration == null ? null
+						: expectedRegistration.getType();
+				Class<?> type = registration == null ? null
+						: registration.getType();
+
+				Preconditions.checkArgument(expectedType == type,
+						"The class id %s is registered for %s instead of %s; "
+								+ "the factory has to replay the registrations "
+								+ "of the endpoint",
+						id, type, expectedType);
+			}
+		} finally {
+			free(kryo);
+		}
+	}
+
+	/**
+	 * @return The number of obtains that required a new instance.
+	 */
+	public long getCreatedInstances() {
+		return pool.getMisses();
+	}
+}
@@ -2,11 +2,13 @@ package net.quakemonkey.utils.pool;
 
 import java.util.Queue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
 
 import com.google.common.base.Preconditions;
 
 /**
- * A simple pool implementation for objects.
+ * A simple pool implementation for objects. The pool holds at most
+ * {@code size} objects; objects freed beyond that are dropped.
  *
  * @param <T>
  * @see ObjectSupplier
@@ -14,6 +16,9 @@ import com.google.common.base.Preconditions;
 public class Pool<T> {
 	private final Queue<T> objPool;
 	private final ObjectSupplier<T> objSupplier;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
 
 	public Pool(ObjectSupplier<T> objSupplier, int size) {
 		objPool = new LinkedBlockingQueue<T>(size);
@@ -33,6 +38,9 @@ public class Pool<T> {
 
 		if (item == null) {
 			item = objSupplier.newInstance();
+			misses.increment();
+		} else {
+			hits.increment();
 		}
 		// _objServicer.onGet(item);
 
@@ -40,7 +48,8 @@ public class Pool<T> {
 	}
 
 	/**
-	 * Frees the given object to be used by {@link #obtain()} again.
+	 * Frees the given object to be used by {@link #obtain()} again. If the
+	 * pool is full, the object is dropped.
 	 * 
 	 * @param obj
 	 */
@@ -48,7 +57,31 @@ public class Pool<T> {
 		Preconditions.checkNotNull(obj);
 
 		objSupplier.onFree(obj);
-		objPool.add(obj);
+		if (!objPool.offer(obj)) {
+			dropped.increment();
+		}
+	}
+
+	/**
+	 * @return The number of obtains that were served from the pool.
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return The number of obtains that required a new object.
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return The number of freed objects that were dropped, because the pool
+	 *         was full.
+	 */
+	public long getDropped() {
+		return dropped.sum();
 	}
 
 	/**
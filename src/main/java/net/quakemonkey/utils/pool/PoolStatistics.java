@@ -0,0 +1,106 @@
+package net.quakemonkey.utils.pool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the activity of the {@link SizeClassPool}s of a {@link BufferPool}.
+ * The counters that are updated on every obtain and free are striped, so they
+ * do not introduce contention between threads.
+ * <p>
+ * If leak detection is enabled, the stack trace of every obtain is recorded
+ * until the object is freed again.
+ */
+final class PoolStatistics {
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder outstandingBytes = new LongAdder();
+	/**
+	 * The bytes of all objects created by the pool that were not dropped yet.
+	 */
+	private final AtomicLong allocatedBytes = new AtomicLong();
+	private final AtomicLong peakBytes = new AtomicLong();
+	private final LongAdder droppedBytes = new LongAdder();
+	private volatile boolean leakDetection;
+	private final Map<Object, Throwable> obtainTraces = Collections
+			.synchronizedMap(new IdentityHashMap<>());
+
+	void obtained(Object obj, int bytes, boolean hit) {
+		if (hit) {
+			hits.increment();
+		} else {
+			misses.increment();
+			peakBytes.accumulateAndGet(allocatedBytes.addAndGet(bytes),
+					Math::max);
+		}
+		outstandingBytes.add(bytes);
+
+		if (leakDetection) {
+			obtainTraces.put(obj, new Throwable("Obtained here"));
+		}
+	}
+
+	void freed(Object obj, int bytes) {
+		outstandingBytes.add(-bytes);
+
+		if (leakDetection) {
+			obtainTraces.remove(obj);
+		}
+	}
+
+	/**
+	 * Called when a pooled object is discarded, because the pool is full or
+	 * was trimmed.
+	 */
+	void dropped(int bytes) {
+		allocatedBytes.addAndGet(-bytes);
+		droppedBytes.add(bytes);
+	}
+
+	long getHits() {
+		return hits.sum();
+	}
+
+	long getMisses() {
+		return misses.sum();
+	}
+
+	long getOutstandingBytes() {
+		return outstandingBytes.sum();
+	}
+
+	long getPeakBytes() {
+		return peakBytes.get();
+	}
+
+	long getDroppedBytes() {
+		return droppedBytes.sum();
+	}
+
+	void setLeakDetection(boolean leakDetection) {
+		this.leakDetection = leakDetection;
+
+		if (!leakDetection) {
+			obtainTraces.clear();
+		}
+	}
+
+	boolean isLeakDetection() {
+		return leakDetection;
+	}
+
+	/**
+	 * @return The stack traces of the obtains of all objects that were not
+	 *         freed yet.
+	 */
+	List<Throwable> getObtainTraces() {
+		synchronized (obtainTraces) {
+			return new ArrayList<>(obtainTraces.values());
+		}
+	}
+}
@@ -0,0 +1,405 @@
+package net.quakemonkey.utils.pool;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A pool for arrays or buffers of varying sizes. The pooled objects are sorted
+ * into power-of-two size classes; an object of size {@code n} belongs to the
+ * class {@code floor(log2(n))}.
+ * <p>
+ * Every thread caches a few objects per size class in a magazine, which is
+ * accessed without any synchronization. If a magazine overflows, half of it is
+ * moved to the global depot of the size class, a lock-free queue that is
+ * shared by all threads. Objects obtained on one thread and freed on another
+ * thread therefore find their way back via the depot. The magazines of threads
+ * that terminated are moved to the depots once another thread starts using the
+ * pool or the pool is trimmed, so short-lived threads do not lose their
+ * objects.
+ * <p>
+ * The depots are bounded: once a depot holds {@code maxPooledBytesPerClass}
+ * bytes, further objects are dropped and left to the garbage collector. The
+ * magazine of a thread holds at most an eighth of that limit per size class,
+ * so the large size classes are not cached by the threads at all. Objects
+ * that stayed in a depot since the last {@linkplain #trim() trim} are dropped
+ * as well when the pool is trimmed.
+ *
+ * @param <T>
+ *            The type of the pooled objects
+ * @see BufferPool
+ */
+final class SizeClassPool<T> {
+	private static final int CLASS_COUNT = 32;
+	/**
+	 * The maximum number of objects cached per size class and thread.
+	 */
+	static final int MAGAZINE_SIZE = 16;
+	/**
+	 * The magazine of a size class holds at most this fraction of the
+	 * objects its depot can hold.
+	 */
+	private static final int MAGAZINE_SHARE = 8;
+	/**
+	 * The maximum number of objects that are taken from a depot when looking
+	 * for an object of a specific size.
+	 */
+	private static final int DEPOT_SCAN_LIMIT = 4;
+
+	private final IntFunction<T> allocator;
+	private final ToIntFunction<T> sizeFunction;
+	private final int bytesPerElement;
+	private final PoolStatistics statistics;
+	private final ConcurrentLinkedQueue<T>[] depots;
+	private final AtomicIntegerArray depotSizes = new AtomicIntegerArray(
+			CLASS_COUNT);
+	/**
+	 * The minimum size of each depot since the last trim.
+	 */
+	private final AtomicIntegerArray depotLowWaterMarks = new AtomicIntegerArray(
+			CLASS_COUNT);
+	private final int[] maxDepotSizes = new int[CLASS_COUNT];
+	/**
+	 * The number of objects the magazine of each size class can hold. Is 0
+	 * for the size classes that are only pooled in the depot.
+	 */
+	private final int[] magazineSizes = new int[CLASS_COUNT];
+	private final ThreadLocal<Magazine[]> magazines = ThreadLocal
+			.withInitial(this::registerMagazines);
+	/**
+	 * The magazines of all threads that used the pool and did not terminate
+	 * or were not drained yet.
+	 */
+	private final ConcurrentLinkedQueue<ThreadMagazines> threadMagazines = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * @param allocator
+	 *            Creates a new object of the given size
+	 * @param sizeFunction
+	 *            Returns the size of an object in elements
+	 * @param bytesPerElement
+	 *            The size of an element in bytes
+	 * @param maxPooledBytesPerClass
+	 *            The maximum number of bytes held by the depot of each size
+	 *            class. The magazine of each thread holds at most an eighth
+	 *            of it.
+	 * @param statistics
+	 *            Counts the obtained and freed objects
+	 */
+	SizeClassPool(IntFunction<T> allocator, ToIntFunction<T> sizeFunction,
+			int bytesPerElement, long maxPooledBytesPerClass,
+			PoolStatistics statistics) {
+		Preconditions.checkArgument(bytesPerElement > 0);
+		Preconditions.checkArgument(maxPooledBytesPerClass >= 0);
+		Preconditions.checkNotNull(statistics);
+
+		this.allocator = allocator;
+		this.sizeFunction = sizeFunction;
+		this.bytesPerElement = bytesPerElement;
+		this.statistics = statistics;
+		@SuppressWarnings("unchecked")
+		ConcurrentLinkedQueue<T>[] depots = (ConcurrentLinkedQueue<T>[]) new ConcurrentLinkedQueue<?>[CLASS_COUNT];
+		this.depots = depots;
+		for (int i = 0; i < CLASS_COUNT; i++) {
+			depots[i] = new ConcurrentLinkedQueue<>();
+			maxDepotSizes[i] = (int) Math.min(Integer.MAX_VALUE,
+					maxPooledBytesPerClass / ((1L << i) * bytesPerElement));
+			magazineSizes[i] = Math.min(MAGAZINE_SIZE,
+					maxDepotSizes[i] / MAGAZINE_SHARE);
+		}
+	}
+
+	/**
+	 * Obtains a pooled object or creates a new one if none is available.
+	 *
+	 * @param size
+	 *            The (minimum) size of the object
+	 * @param exactSize
+	 *            Whether the object has to have exactly the given size
+	 * @return The object.
+	 */
+	T obtain(int size, boolean exactSize) {
+		Preconditions.checkArgument(size >= 0);
+
+		int sizeClass = getSizeClass(size);
+		T obj;
+
+		if (!exactSize && size > 1 && Integer.bitCount(size) == 1) {
+			// Every object of the size class is big enough; the first class
+			// also holds empty objects, though
+			obj = poll(sizeClass);
+		} else {
+			obj = find(sizeClass, size, exactSize);
+
+			if (obj == null && !exactSize && sizeClass + 1 < CLASS_COUNT) {
+				obj = poll(sizeClass + 1);
+			}
+		}
+
+		boolean hit = obj != null;
+		if (!hit) {
+			obj = allocator.apply(size);
+		}
+		statistics.obtained(obj, getBytes(obj), hit);
+
+		return obj;
+	}
+
+	/**
+	 * Gives an object back to the pool.
+	 *
+	 * @param obj
+	 *            The object. May not be <code>null</code>.
+	 */
+	void free(T obj) {
+		statistics.freed(obj, getBytes(obj));
+		cache(obj);
+	}
+
+	/**
+	 * Puts an object into the magazine of the current thread.
+	 */
+	private void cache(T obj) {
+		int sizeClass = getSizeClass(sizeFunction.applyAsInt(obj));
+		int size = magazineSizes[sizeClass];
+
+		if (size == 0) {
+			offerToDepot(sizeClass, obj);
+			return;
+		}
+
+		Magazine magazine = getMagazine(sizeClass);
+		if (magazine.count == size) {
+			// Move the least recently freed half to the depot
+			int half = (size + 1) / 2;
+			for (int i = 0; i < half; i++) {
+				offerToDepot(sizeClass, magazine.<T> get(i));
+			}
+			System.arraycopy(magazine.items, half, magazine.items, 0,
+					size - half);
+			magazine.count -= half;
+			Arrays.fill(magazine.items, magazine.count, size, null);
+		}
+
+		magazine.items[magazine.count++] = obj;
+	}
+
+	/**
+	 * Takes the most recently freed object of a size class.
+	 */
+	private T poll(int sizeClass) {
+		Magazine magazine = getMagazine(sizeClass);
+
+		if (magazine != null && magazine.count > 0) {
+			return magazine.remove(magazine.count - 1);
+		}
+
+		return pollDepot(sizeClass);
+	}
+
+	private void offerToDepot(int sizeClass, T obj) {
+		if (depotSizes.incrementAndGet(sizeClass) > maxDepotSizes[sizeClass]) {
+			depotSizes.decrementAndGet(sizeClass);
+			statistics.dropped(getBytes(obj));
+		} else {
+			depots[sizeClass].offer(obj);
+		}
+	}
+
+	private T pollDepot(int sizeClass) {
+		T obj = depots[sizeClass].poll();
+
+		if (obj != null) {
+			int size = depotSizes.decrementAndGet(sizeClass);
+			depotLowWaterMarks.accumulateAndGet(sizeClass, size, Math::min);
+		}
+
+		return obj;
+	}
+
+	/**
+	 * Drops the objects that stayed in the depots since the last trim, i.e.
+	 * as many objects as the smallest size of a depot in the meantime. The
+	 * magazine of the calling thread is moved to the depots first, so its
+	 * objects are dropped by the next trim, if they are not needed until
+	 * then. The magazines of other threads are not affected; they are
+	 * bounded, though.
+	 */
+	void trim() {
+		flushMagazines(magazines.get());
+		drainTerminatedThreads();
+
+		for (int i = 0; i < CLASS_COUNT; i++) {
+			int idle = depotLowWaterMarks.get(i);
+
+			for (int j = 0; j < idle; j++) {
+				T obj = depots[i].poll();
+
+				if (obj == null)
+					break;
+
+				depotSizes.decrementAndGet(i);
+				statistics.dropped(getBytes(obj));
+			}
+
+			depotLowWaterMarks.set(i, depotSizes.get(i));
+		}
+	}
+
+	/**
+	 * Creates the magazines of the current thread. The magazines of threads
+	 * that terminated in the meantime are moved to the depots.
+	 */
+	private Magazine[] registerMagazines() {
+		drainTerminatedThreads();
+
+		Magazine[] cache = new Magazine[CLASS_COUNT];
+		threadMagazines
+				.offer(new ThreadMagazines(Thread.currentThread(), cache));
+
+		return cache;
+	}
+
+	/**
+	 * Moves the magazines of the threads that terminated to the depots.
+	 */
+	private void drainTerminatedThreads() {
+		for (ThreadMagazines entry : threadMagazines) {
+			// The termination of a thread happens-before isAlive() returns
+			// false, so its magazines can be accessed safely; remove() makes
+			// sure only one thread drains them
+			if (!entry.thread.isAlive() && threadMagazines.remove(entry)) {
+				flushMagazines(entry.magazines);
+			}
+		}
+	}
+
+	/**
+	 * Moves the objects in the magazines of a thread to the depots.
+	 */
+	private void flushMagazines(Magazine[] cache) {
+		for (int i = 0; i < CLASS_COUNT; i++) {
+			Magazine magazine = cache[i];
+			if (magazine == null)
+				continue;
+
+			for (int j = 0; j < magazine.count; j++) {
+				offerToDepot(i, magazine.<T> get(j));
+			}
+			Arrays.fill(magazine.items, 0, magazine.count, null);
+			magazine.count = 0;
+		}
+	}
+
+	/**
+	 * Looks for an object of the given size class that is big enough (or of
+	 * exactly the right size). Objects taken from the depot that do not match
+	 * are moved to the magazine of the current thread.
+	 */
+	private T find(int sizeClass, int size, boolean exactSize) {
+		Magazine magazine = getMagazine(sizeClass);
+
+		if (magazine != null) {
+			for (int i = magazine.count - 1; i >= 0; i--) {
+				if (matches(magazine.<T> get(i), size, exactSize)) {
+					return magazine.remove(i);
+				}
+			}
+		}
+
+		for (int i = 0; i < DEPOT_SCAN_LIMIT; i++) {
+			T obj = pollDepot(sizeClass);
+
+			if (obj == null)
+				return null;
+			if (matches(obj, size, exactSize))
+				return obj;
+
+			cache(obj);
+		}
+
+		return null;
+	}
+
+	private boolean matches(T obj, int size, boolean exactSize) {
+		int objSize = sizeFunction.applyAsInt(obj);
+		return exactSize ? objSize == size : objSize >= size;
+	}
+
+	private int getBytes(T obj) {
+		return sizeFunction.applyAsInt(obj) * bytesPerElement;
+	}
+
+	/**
+	 * @return The magazine of the current thread or <code>null</code>, if the
+	 *         size class is not cached by the threads.
+	 */
+	private Magazine getMagazine(int sizeClass) {
+		if (magazineSizes[sizeClass] == 0)
+			return null;
+
+		Magazine[] cache = magazines.get();
+		Magazine magazine = cache[sizeClass];
+
+		if (magazine == null) {
+			magazine = new Magazine(magazineSizes[sizeClass]);
+			cache[sizeClass] = magazine;
+		}
+
+		return magazine;
+	}
+
+	/**
+	 * @return The size class of an object of the given size, i.e.
+	 *         {@code floor(log2(size))}. Sizes of zero belong to the first
+	 *         class.
+	 */
+	static int getSizeClass(int size) {
+		return size <= 1 ? 0 : 31 - Integer.numberOfLeadingZeros(size);
+	}
+
+	/**
+	 * The magazines of a thread.
+	 */
+	private static final class ThreadMagazines {
+		private final Thread thread;
+		private final Magazine[] magazines;
+
+		ThreadMagazines(Thread thread, Magazine[] magazines) {
+			this.thread = thread;
+			this.magazines = magazines;
+		}
+	}
+
+	/**
+	 * The objects of one size class cached by a thread. The most recently
+	 * freed object is at the end.
+	 */
+	private static final class Magazine {
+		private final Object[] items;
+		private int count;
+
+		Magazine(int size) {
+			items = new Object[size];
+		}
+
+		@SuppressWarnings("unchecked")
+		<T> T get(int index) {
+			return (T) items[index];
+		}
+
+		<T> T remove(int index) {
+			T obj = get(index);
+
+			count--;
+			System.arraycopy(items, index + 1, items, index, count - index);
+			items[count] = null;
+
+			return obj;
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package net.quakemonkey;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class AckHistoryTest {
+
+	@Test
+	public void testMerge() {
+		long history = AckHistory.of((short) 10, 0);
+
+		history = AckHistory.merge(history, (short) 12, 0);
+		assertEquals((short) 12, AckHistory.getId(history));
+		assertEquals(0b10, AckHistory.getReceivedBits(history));
+
+		// An older acknowledgment that arrives late is merged, too
+		history = AckHistory.merge(history, (short) 11, 0b100);
+		assertEquals((short) 12, AckHistory.getId(history));
+		assertEquals(0b1011, AckHistory.getReceivedBits(history));
+
+		history = AckHistory.merge(history, (short) 13, 0b1);
+		assertEquals(0b10111, AckHistory.getReceivedBits(history));
+
+		// Unchanged
+		assertEquals(history, AckHistory.merge(history, (short) 10, 0));
+	}
+
+	@Test
+	public void testOverflow() {
+		long history = AckHistory.of((short) 32766, -1);
+
+		history = AckHistory.merge(history, (short) -32768, 0);
+		assertEquals((short) -32768, AckHistory.getId(history));
+		assertEquals(0xFFFFFFFE, AckHistory.getReceivedBits(history));
+
+		// Too old for the bitmask
+		history = AckHistory.merge(history, (short) -32735, 0);
+		assertEquals(0, AckHistory.getReceivedBits(history));
+		assertEquals(history, AckHistory.merge(history, (short) 32767, -1));
+	}
+}
@@ -0,0 +1,101 @@
+package net.quakemonkey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ComputeOnceMapTest {
+
+	@Test(timeout = 10000)
+	public void testCollidingKeysAreNotBlocked() throws Exception {
+		ComputeOnceMap<Object, String> map = new ComputeOnceMap<>();
+		Object slowKey = new CollidingKey();
+		Object fastKey = new CollidingKey();
+		CountDownLatch computing = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger computations = new AtomicInteger();
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<String> slow = executor
+					.submit(() -> map.computeIfAbsent(slowKey, key -> {
+						computations.incrementAndGet();
+						computing.countDown();
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							throw new IllegalStateException(e);
+						}
+						return "slow";
+					}));
+			computing.await();
+
+			// The other key is in the same bin, but can still be computed
+			assertEquals("fast", map.computeIfAbsent(fastKey, key -> "fast"));
+
+			// Waits for the running computation instead of starting another
+			Future<String> waiting = executor
+					.submit(() -> map.computeIfAbsent(slowKey, key -> {
+						computations.incrementAndGet();
+						return "again";
+					}));
+			release.countDown();
+
+			assertEquals("slow", slow.get(10, TimeUnit.SECONDS));
+			assertEquals("slow", waiting.get(10, TimeUnit.SECONDS));
+			assertEquals(1, computations.get());
+		} finally {
+			executor.shutdownNow();
+		}
+
+		assertEquals(2, map.clear().size());
+		assertNull(map.get(slowKey));
+	}
+
+	@Test
+	public void testFailedComputation() {
+		ComputeOnceMap<Object, String> map = new ComputeOnceMap<>();
+		IllegalStateException exception = new IllegalStateException();
+
+		try {
+			map.computeIfAbsent("key", key -> {
+				throw exception;
+			});
+			fail();
+		} catch (IllegalStateException e) {
+			assertSame(exception, e);
+		}
+
+		// Later lookups get the same exception
+		try {
+			map.get("key");
+			fail();
+		} catch (IllegalStateException e) {
+			assertSame(exception, e);
+		}
+
+		// Failed computations have no value to free
+		assertEquals(0, map.clear().size());
+	}
+
+	/**
+	 * A key whose instances all have the same hash code.
+	 */
+	private static final class CollidingKey {
+		@Override
+		public int hashCode() {
+			return 42;
+		}
+	}
+
+}
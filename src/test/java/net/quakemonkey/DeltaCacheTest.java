@@ -0,0 +1,65 @@
+package net.quakemonkey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.esotericsoftware.kryo.Kryo;
+
+import net.quakemonkey.messages.DiffMessage;
+import net.quakemonkey.utils.Utils;
+
+public class DeltaCacheTest {
+
+	@Test
+	public void testSameAcknowledgment() {
+		Kryo kryo = new Kryo();
+		kryo.register(GameStateMessage2.class,
+				new GameStateMessage2.GameState2Serializer(false));
+		DeltaCache cache = new DeltaCache();
+
+		DiffConnectionHandler<GameStateMessage2> con1 = new DiffConnectionHandler<>(
+				kryo, (short) 4);
+		DiffConnectionHandler<GameStateMessage2> con2 = new DiffConnectionHandler<>(
+				kryo, (short) 4);
+
+		// First message; both clients acknowledge it
+		GameStateMessage2 first = new GameStateMessage2(
+				Arrays.asList(new Integer[] { 1, 2, 3, 4, 5, 6 }),
+				Arrays.asList(new Integer[] { 1, 2, 3 }));
+		Snapshot snapshot = Snapshot.wrap(Utils.messageToBuffer(first, kryo));
+		con1.registerAck(
+				con1.generateSnapshot(first, snapshot, cache).getId());
+		con2.registerAck(
+				con2.generateSnapshot(first, snapshot, cache).getId());
+		snapshot.release();
+		cache.clear();
+
+		// The acknowledgment was too old, so no delta was looked up
+		assertEquals(0, cache.getHits() + cache.getMisses());
+
+		// Second message; the delta is only computed once
+		GameStateMessage2 second = new GameStateMessage2(
+				Arrays.asList(new Integer[] { 1, 2, 3, 4, 5, 7 }),
+				Arrays.asList(new Integer[] { 1, 2, 3 }));
+		snapshot = Snapshot.wrap(Utils.messageToBuffer(second, kryo));
+		DiffMessage delta1 = (DiffMessage) con1
+				.generateSnapshot(second, snapshot, cache).getPayloadMessage();
+		DiffMessage delta2 = (DiffMessage) con2
+				.generateSnapshot(second, snapshot, cache).getPayloadMessage();
+		snapshot.release();
+
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertNotSame(delta1, delta2);
+		assertSame(delta1.getFlags(), delta2.getFlags());
+		assertSame(delta1.getData(), delta2.getData());
+
+		cache.clear();
+	}
+
+}
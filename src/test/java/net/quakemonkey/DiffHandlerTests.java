@@ -1,12 +1,24 @@
 package net.quakemonkey;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.BiConsumer;
 
 import org.junit.Test;
 
 import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryonet.Client;
 import com.esotericsoftware.kryonet.Connection;
 import com.esotericsoftware.kryonet.Server;
@@ -14,7 +26,17 @@ import com.esotericsoftware.kryonet.Server;
 import net.quakemonkey.ClientDiffHandler;
 import net.quakemonkey.DiffConnectionHandler;
 import net.quakemonkey.ServerDiffHandler;
+import net.quakemonkey.messages.AckMessage;
+import net.quakemonkey.messages.CompressedMessage;
+import net.quakemonkey.messages.DiffMessage;
+import net.quakemonkey.messages.FragmentMessage;
 import net.quakemonkey.messages.PayloadMessage;
+import net.quakemonkey.messages.RegionAckMessage;
+import net.quakemonkey.messages.RegionBatchMessage;
+import net.quakemonkey.messages.RegionMessage;
+import net.quakemonkey.messages.ResyncMessage;
+import net.quakemonkey.utils.CompressionDictionary;
+import net.quakemonkey.utils.pool.KryoPool;
 
 public class DiffHandlerTests {
 
@@ -53,4 +75,694 @@ public class DiffHandlerTests {
 		diff.processPackage(new FakeClient(), q);
 	}
 
+	/**
+	 * Acknowledgments and disconnects arrive on another thread while
+	 * messages are dispatched.
+	 */
+	@Test
+	public void testConcurrentAcks() throws InterruptedException {
+		FakeServer server = new FakeServer();
+		DiffClassRegistration.registerClasses(server.getKryo());
+		ServerDiffHandler<String> handler = new ServerDiffHandler<>(server,
+				(short) 16);
+
+		List<Connection> connections = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			connections.add(server.connect(i));
+		}
+		handler.dispatchMessageToAll("first");
+
+		AtomicBoolean running = new AtomicBoolean(true);
+		Thread network = new Thread(() -> {
+			short id = 0;
+			while (running.get()) {
+				for (Connection connection : connections) {
+					server.receive(connection,
+							AckMessage.POOL.obtain().set(id));
+				}
+				id++;
+
+				if (id % 100 == 0 && connections.size() > 10) {
+					server.disconnect(connections.remove(0));
+				}
+			}
+		});
+		network.start();
+
+		for (int i = 0; i < 2000; i++) {
+			handler.dispatchMessageToAll("message " + i);
+		}
+
+		running.set(false);
+		network.join();
+
+		for (Connection connection : server.getConnections()) {
+			assertTrue(handler.getLag(connection) >= 0);
+		}
+	}
+
+	/**
+	 * Dispatching in parallel yields the same messages as dispatching on the
+	 * calling thread.
+	 */
+	@Test
+	public void testParallelDispatch() {
+		FakeServer sequentialServer = createRecordingServer();
+		FakeServer parallelServer = createRecordingServer();
+		ServerDiffHandler<GameStateMessage> sequential = new ServerDiffHandler<>(
+				sequentialServer, (short) 8);
+		ServerDiffHandler<GameStateMessage> parallel = new ServerDiffHandler<>(
+				parallelServer, (short) 8);
+		ForkJoinPool executor = new ForkJoinPool(4);
+		parallel.setExecutor(executor);
+		parallel.setKryoPool(new KryoPool(DiffHandlerTests::createKryo));
+		sequential.setPreEncoding(true);
+		parallel.setPreEncoding(true);
+
+		List<Connection> sequentialConnections = new ArrayList<>();
+		List<Connection> parallelConnections = new ArrayList<>();
+		for (int i = 0; i < 40; i++) {
+			sequentialConnections.add(sequentialServer.connect(i));
+			parallelConnections.add(parallelServer.connect(i));
+		}
+
+		List<Float> orientation = Arrays.asList(new Float[] { 0f, 0f, 1f });
+		for (short tick = 0; tick < 30; tick++) {
+			GameStateMessage message = new GameStateMessage("abc",
+					Arrays.asList(new Float[] { 1f, tick / 3f, 3f }),
+					orientation, (byte) (tick / 2));
+			sequential.dispatchMessageToAll(message);
+			parallel.dispatchMessageToAll(message);
+
+			// Every connection acknowledges a different subset
+			for (int i = 0; i < 40; i++) {
+				if ((tick + i) % (i % 4 + 2) == 0) {
+					sequentialServer.receive(sequentialConnections.get(i),
+							new AckMessage().set(tick));
+					parallelServer.receive(parallelConnections.get(i),
+							new AckMessage().set(tick));
+				}
+			}
+		}
+		executor.shutdown();
+
+		assertTrue(parallel.getDeltaCacheHits() > 0);
+		assertEquals(sequential.getDeltaCacheMisses(),
+				parallel.getDeltaCacheMisses());
+
+		for (int i = 0; i < 40; i++) {
+			List<byte[]> expected = sequentialServer.getSentMessages(i);
+			List<byte[]> actual = parallelServer.getSentMessages(i);
+
+			assertEquals(30, actual.size());
+			for (int j = 0; j < expected.size(); j++) {
+				assertArrayEquals(expected.get(j), actual.get(j));
+			}
+		}
+	}
+
+	/**
+	 * Full messages and deltas are compressed with a dictionary and
+	 * decompressed by the client.
+	 */
+	@Test
+	public void testCompression() {
+		FakeServer server = createRecordingServer();
+		ServerDiffHandler<GameStateMessage> handler = new ServerDiffHandler<>(
+				server, (short) 8);
+		List<GameStateMessage> messages = new ArrayList<>();
+		for (int tick = 0; tick < 10; tick++) {
+			messages.add(createLargeMessage(tick));
+		}
+		byte[] dictionary = CompressionDictionary.create(createKryo(),
+				messages.subList(0, 2), 4096);
+		handler.setCompressionThreshold(64);
+		handler.setCompressionDictionary(dictionary);
+
+		Connection connection = server.connect(0);
+		for (short tick = 0; tick < messages.size(); tick++) {
+			handler.dispatchMessageToAll(messages.get(tick));
+			if (tick % 3 != 1)
+				server.receive(connection, new AckMessage().set(tick));
+		}
+
+		assertEquals(messages.size(), handler.getCompressionCount());
+		assertTrue(handler.getCompressionRatio() < 0.5);
+
+		FakeClient client = new FakeClient();
+		registerClasses(client.getKryo());
+		ClientDiffHandler<GameStateMessage> clientHandler = new ClientDiffHandler<>(
+				client, GameStateMessage.class, (short) 8);
+		clientHandler.setCompressionDictionary(dictionary);
+		List<GameStateMessage> received = new ArrayList<>();
+		clientHandler.addListener((con, msg) -> received.add(msg));
+
+		int deltas = 0;
+		for (byte[] bytes : server.getSentMessages(0)) {
+			PayloadMessage msg = (PayloadMessage) client.getKryo()
+					.readClassAndObject(new Input(bytes));
+			assertTrue(msg.getPayloadMessage() instanceof CompressedMessage);
+			if (((CompressedMessage) msg.getPayloadMessage()).isDelta())
+				deltas++;
+			clientHandler.processPackage(client, msg);
+		}
+
+		assertTrue(deltas > 0);
+		assertEquals(messages, received);
+	}
+
+	@Test(expected = KryoException.class)
+	public void testCompressionWithoutDictionary() {
+		FakeServer server = createRecordingServer();
+		ServerDiffHandler<GameStateMessage> handler = new ServerDiffHandler<>(
+				server);
+		handler.setCompressionThreshold(0);
+		handler.setCompressionDictionary(
+				CompressionDictionary.create(createKryo(),
+						Arrays.asList(createLargeMessage(0)), 1024));
+		handler.dispatchMessageToAll(createLargeMessage(1));
+		server.connect(0);
+		handler.dispatchMessageToAll(createLargeMessage(1));
+
+		FakeClient client = new FakeClient();
+		registerClasses(client.getKryo());
+		ClientDiffHandler<GameStateMessage> clientHandler = new ClientDiffHandler<>(
+				client, GameStateMessage.class, (short) 8);
+		clientHandler.processPackage(client,
+				(PayloadMessage) client.getKryo().readClassAndObject(
+						new Input(server.getSentMessages(0).get(0))));
+	}
+
+	/**
+	 * Payloads above the fragment size are split and reassembled by the
+	 * client, even if the fragments arrive in reverse order.
+	 */
+	@Test
+	public void testFragmentation() {
+		FakeServer server = createRecordingServer();
+		ServerDiffHandler<GameStateMessage> handler = new ServerDiffHandler<>(
+				server, (short) 8);
+		handler.setFragmentSize(100);
+
+		Connection connection = server.connect(0);
+		List<GameStateMessage> messages = new ArrayList<>();
+		for (short tick = 0; tick < 10; tick++) {
+			messages.add(createLargeMessage(tick));
+			handler.dispatchMessageToAll(messages.get(tick));
+			if (tick % 3 != 1)
+				server.receive(connection, new AckMessage().set(tick));
+		}
+
+		FakeClient client = new FakeClient();
+		registerClasses(client.getKryo());
+		ClientDiffHandler<GameStateMessage> clientHandler = new ClientDiffHandler<>(
+				client, GameStateMessage.class, (short) 8);
+		List<GameStateMessage> received = new ArrayList<>();
+		clientHandler.addListener((con, msg) -> received.add(msg));
+
+		List<FragmentMessage> fragments = new ArrayList<>();
+		for (byte[] bytes : server.getSentMessages(0)) {
+			Object msg = client.getKryo().readClassAndObject(new Input(bytes));
+			assertTrue(bytes.length <= 120);
+
+			if (msg instanceof FragmentMessage) {
+				FragmentMessage fragment = (FragmentMessage) msg;
+				fragments.add(0, fragment);
+
+				if (fragments.size() == fragment.getCount()) {
+					for (FragmentMessage f : fragments) {
+						clientHandler.processFragment(client, f);
+					}
+					fragments.clear();
+				}
+			} else {
+				clientHandler.processPackage(client, (PayloadMessage) msg);
+			}
+		}
+
+		assertTrue(server.getSentMessages(0).size() > messages.size());
+		assertEquals(messages, received);
+	}
+
+	/**
+	 * The workers of an executor must not share the server's Kryo instance
+	 * to serialize fragmented payloads.
+	 */
+	@Test
+	public void testFragmentationInParallel() {
+		ServerDiffHandler<GameStateMessage> handler = new ServerDiffHandler<>(
+				createRecordingServer(), (short) 8);
+		handler.setExecutor(ForkJoinPool.commonPool());
+
+		try {
+			handler.setFragmentSize(100);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		handler.setKryoPool(new KryoPool(DiffHandlerTests::createKryo));
+		handler.setFragmentSize(100);
+
+		try {
+			handler.setKryoPool(null);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Coalesced acknowledgments still let the server send deltas.
+	 */
+	@Test
+	public void testCoalescedAcks() {
+		FakeServer server = createRecordingServer();
+		ServerDiffHandler<GameStateMessage> handler = new ServerDiffHandler<>(
+				server, (short) 8);
+		Connection connection = server.connect(0);
+
+		List<AckMessage> acks = new ArrayList<>();
+		FakeClient client = new FakeClient() {
+			@Override
+			public int sendUDP(Object object) {
+				AckMessage ack = (AckMessage) object;
+				acks.add(new AckMessage().set(ack.getId(),
+						ack.getReceivedBits()));
+				server.receive(connection, object);
+				return 0;
+			}
+		};
+		registerClasses(client.getKryo());
+		ClientDiffHandler<GameStateMessage> clientHandler = new ClientDiffHandler<>(
+				client, GameStateMessage.class, (short) 8);
+		clientHandler.setAckInterval(3, 0);
+		List<GameStateMessage> received = new ArrayList<>();
+		clientHandler.addListener((con, msg) -> received.add(msg));
+
+		int deltas = 0;
+		for (short tick = 0; tick < 21; tick++) {
+			GameStateMessage message = createLargeMessage(tick);
+			handler.dispatchMessageToAll(message);
+
+			List<byte[]> sent = server.getSentMessages(0);
+			PayloadMessage payload = (PayloadMessage) client.getKryo()
+					.readClassAndObject(new Input(sent.get(sent.size() - 1)));
+			if (payload.getPayloadMessage() instanceof DiffMessage)
+				deltas++;
+
+			// Every fourth message is lost
+			if (tick % 4 != 3) {
+				clientHandler.processPackage(client, payload);
+				assertEquals(message, received.get(received.size() - 1));
+			}
+		}
+
+		assertEquals(5, acks.size());
+		assertEquals((short) 6, acks.get(1).getId());
+		assertEquals(0b111011, acks.get(1).getReceivedBits());
+		assertTrue(deltas > 10);
+
+		clientHandler.sendPendingAck(client);
+		assertEquals(6, acks.size());
+		assertEquals((short) 20, acks.get(5).getId());
+		clientHandler.sendPendingAck(client);
+		assertEquals(6, acks.size());
+	}
+
+	/**
+	 * Acknowledgments embedded in application messages replace the
+	 * {@link AckMessage}s.
+	 */
+	@Test
+	public void testPiggybackedAcks() {
+		FakeServer server = createRecordingServer();
+		ServerDiffHandler<GameStateMessage> handler = new ServerDiffHandler<>(
+				server, (short) 8);
+		Connection connection = server.connect(0);
+
+		FakeClient client = new FakeClient() {
+			@Override
+			public int sendUDP(Object object) {
+				fail("No datagrams are sent by the handler");
+				return 0;
+			}
+		};
+		registerClasses(client.getKryo());
+		ClientDiffHandler<GameStateMessage> clientHandler = new ClientDiffHandler<>(
+				client, GameStateMessage.class, (short) 8);
+		clientHandler.setPiggybackAcks(true);
+		assertNull(clientHandler.pollPendingAck());
+
+		int deltas = 0;
+		for (short tick = 0; tick < 20; tick++) {
+			handler.dispatchMessageToAll(createLargeMessage(tick));
+
+			List<byte[]> sent = server.getSentMessages(0);
+			PayloadMessage payload = (PayloadMessage) client.getKryo()
+					.readClassAndObject(new Input(sent.get(sent.size() - 1)));
+			if (payload.getPayloadMessage() instanceof DiffMessage)
+				deltas++;
+			clientHandler.processPackage(client, payload);
+
+			// The input commands are sent at half the rate
+			if (tick % 2 == 1) {
+				AckMessage ack = clientHandler.pollPendingAck();
+				assertEquals(tick, ack.getId());
+				assertEquals(0b1, ack.getReceivedBits() & 0b1);
+				handler.registerAck(connection, ack.getId(),
+						ack.getReceivedBits());
+				AckMessage.POOL.free(ack);
+
+				assertNull(clientHandler.pollPendingAck());
+			}
+		}
+
+		assertTrue(deltas > 10);
+		assertEquals(1, handler.getLag(connection));
+	}
+
+	/**
+	 * A client that does not hold the baseline of a delta drops it and gets a
+	 * full message next.
+	 */
+	@Test
+	public void testResync() {
+		FakeServer server = createRecordingServer();
+		ServerDiffHandler<GameStateMessage> handler = new ServerDiffHandler<>(
+				server, (short) 8);
+		Connection connection = server.connect(0);
+
+		List<String> upstream = new ArrayList<>();
+		FakeClient client = new FakeClient() {
+			@Override
+			public int sendUDP(Object object) {
+				upstream.add(object.toString());
+				server.receive(connection, object);
+				return 0;
+			}
+		};
+		registerClasses(client.getKryo());
+		List<GameStateMessage> received = new ArrayList<>();
+		ClientDiffHandler<GameStateMessage> clientHandler = new ClientDiffHandler<>(
+				client, GameStateMessage.class, (short) 8);
+		clientHandler.processPackage(client,
+				dispatch(handler, server, client, createLargeMessage(0)));
+
+		// The client restarts and loses its snapshots
+		clientHandler = new ClientDiffHandler<>(client,
+				GameStateMessage.class, (short) 8);
+		clientHandler.addListener((con, msg) -> received.add(msg));
+
+		PayloadMessage delta = dispatch(handler, server, client,
+				createLargeMessage(1));
+		assertTrue(delta.getPayloadMessage() instanceof DiffMessage);
+		clientHandler.processPackage(client, delta);
+		assertTrue(received.isEmpty());
+		assertEquals("ResyncMessage { id: 1, baselineId: 0}",
+				upstream.get(upstream.size() - 1));
+
+		// A late acknowledgment of an older message is ignored
+		server.receive(connection, new AckMessage().set((short) 0));
+
+		GameStateMessage message = createLargeMessage(2);
+		PayloadMessage full = dispatch(handler, server, client, message);
+		assertEquals(message, full.getPayloadMessage());
+		clientHandler.processPackage(client, full);
+		assertEquals(message, received.get(0));
+
+		message = createLargeMessage(3);
+		delta = dispatch(handler, server, client, message);
+		assertTrue(delta.getPayloadMessage() instanceof DiffMessage);
+		clientHandler.processPackage(client, delta);
+		assertEquals(message, received.get(1));
+	}
+
+	/**
+	 * The deltas that are on their way while a resync is requested only lead
+	 * to a single request and a single full message.
+	 */
+	@Test
+	public void testResyncOfSeveralDeltas() {
+		FakeServer server = createRecordingServer();
+		ServerDiffHandler<GameStateMessage> handler = new ServerDiffHandler<>(
+				server, (short) 8);
+		handler.setCompressionThreshold(64);
+		Connection connection = server.connect(0);
+
+		List<ResyncMessage> resyncs = new ArrayList<>();
+		FakeClient client = new FakeClient() {
+			@Override
+			public int sendUDP(Object object) {
+				if (object instanceof ResyncMessage) {
+					ResyncMessage resync = (ResyncMessage) object;
+					resyncs.add(new ResyncMessage().set(resync.getId(),
+							resync.getBaselineId()));
+				}
+				server.receive(connection, object);
+				return 0;
+			}
+		};
+		registerClasses(client.getKryo());
+		ClientDiffHandler<GameStateMessage> clientHandler = new ClientDiffHandler<>(
+				client, GameStateMessage.class, (short) 8);
+		for (int tick = 0; tick < 2; tick++) {
+			clientHandler.processPackage(client, dispatch(handler, server,
+					client, createLargeMessage(tick)));
+		}
+
+		// The client restarts while three deltas are on their way
+		clientHandler = new ClientDiffHandler<>(client,
+				GameStateMessage.class, (short) 8);
+		List<GameStateMessage> received = new ArrayList<>();
+		clientHandler.addListener((con, msg) -> received.add(msg));
+		List<PayloadMessage> deltas = new ArrayList<>();
+		for (int tick = 2; tick < 5; tick++) {
+			deltas.add(dispatch(handler, server, client,
+					createLargeMessage(tick)));
+		}
+		for (PayloadMessage delta : deltas) {
+			assertTrue(isDelta(delta));
+			clientHandler.processPackage(client, delta);
+		}
+		assertTrue(received.isEmpty());
+		assertEquals(1, resyncs.size());
+		assertEquals(2, resyncs.get(0).getId());
+		assertEquals(1, resyncs.get(0).getBaselineId());
+
+		GameStateMessage message = createLargeMessage(5);
+		PayloadMessage full = dispatch(handler, server, client, message);
+		assertFalse(isDelta(full));
+		clientHandler.processPackage(client, full);
+		assertEquals(message, received.get(0));
+
+		// A late resync of a message sent before the keyframe is ignored
+		server.receive(connection,
+				new ResyncMessage().set((short) 4, (short) 1));
+
+		message = createLargeMessage(6);
+		PayloadMessage delta = dispatch(handler, server, client, message);
+		assertTrue(isDelta(delta));
+		clientHandler.processPackage(client, delta);
+		assertEquals(message, received.get(1));
+		assertEquals(1, resyncs.size());
+	}
+
+	private static boolean isDelta(PayloadMessage msg) {
+		return ((CompressedMessage) msg.getPayloadMessage()).isDelta();
+	}
+
+	/**
+	 * Dispatches the message and decodes the sent payload.
+	 */
+	private static PayloadMessage dispatch(
+			ServerDiffHandler<GameStateMessage> handler, FakeServer server,
+			Client client, GameStateMessage message) {
+		handler.dispatchMessageToAll(message);
+
+		List<byte[]> sent = server.getSentMessages(0);
+		return (PayloadMessage) client.getKryo()
+				.readClassAndObject(new Input(sent.get(sent.size() - 1)));
+	}
+
+	/**
+	 * The regions of a message are decoded independently, so a lost datagram
+	 * only loses the message it belongs to.
+	 */
+	@Test
+	public void testRegions() {
+		FakeServer server = createRecordingServer();
+		ServerDiffHandler<GameStateMessage> handler = new ServerDiffHandler<>(
+				server, (short) 8);
+		handler.setRegionSize(64);
+		Connection connection = server.connect(0);
+
+		List<RegionAckMessage> acks = new ArrayList<>();
+		FakeClient client = new FakeClient() {
+			@Override
+			public int sendUDP(Object object) {
+				RegionAckMessage ack = (RegionAckMessage) object;
+				acks.add(new RegionAckMessage().set(ack.getId(),
+						ack.getRegionCount(),
+						ack.getReceivedRegions().clone()));
+				server.receiveSerialized(connection, object);
+				return 0;
+			}
+		};
+		registerClasses(client.getKryo());
+		ClientDiffHandler<GameStateMessage> clientHandler = new ClientDiffHandler<>(
+				client, GameStateMessage.class, (short) 8);
+		List<GameStateMessage> received = new ArrayList<>();
+		clientHandler.addListener((con, msg) -> received.add(msg));
+
+		List<GameStateMessage> messages = new ArrayList<>();
+		int datagrams = 0;
+		int lost = 0;
+		for (int tick = 0; tick < 20; tick++) {
+			messages.add(createLargeMessage(tick));
+			handler.dispatchMessageToAll(messages.get(tick));
+
+			List<byte[]> sent = server.getSentMessages(0);
+			for (; datagrams < sent.size(); datagrams++) {
+				Object msg = client.getKryo()
+						.readClassAndObject(new Input(sent.get(datagrams)));
+
+				if (datagrams % 5 == 2) {
+					lost++;
+				} else if (msg instanceof RegionMessage) {
+					clientHandler.processRegion(client, (RegionMessage) msg);
+				} else {
+					for (RegionMessage region : ((RegionBatchMessage) msg)
+							.getRegions()) {
+						clientHandler.processRegion(client, region);
+					}
+				}
+			}
+		}
+
+		assertTrue(lost > 0);
+		assertTrue(received.size() >= messages.size() - lost);
+		assertTrue(messages.containsAll(received));
+		assertTrue(handler.getDeltaCacheMisses() > 0);
+
+		// The regions of a message are acknowledged together
+		assertTrue(datagrams > 2 * messages.size());
+		assertTrue(acks.size() <= messages.size());
+		for (RegionAckMessage ack : acks) {
+			assertEquals(received.contains(messages.get(ack.getId())),
+					ack.isComplete());
+		}
+	}
+
+	/**
+	 * The acknowledgments of regions can be embedded in application messages
+	 * as well.
+	 */
+	@Test
+	public void testPiggybackedRegionAcks() {
+		FakeServer server = createRecordingServer();
+		ServerDiffHandler<GameStateMessage> handler = new ServerDiffHandler<>(
+				server, (short) 8);
+		handler.setRegionSize(64);
+		Connection connection = server.connect(0);
+
+		FakeClient client = new FakeClient() {
+			@Override
+			public int sendUDP(Object object) {
+				fail("No datagrams are sent by the handler");
+				return 0;
+			}
+		};
+		registerClasses(client.getKryo());
+		ClientDiffHandler<GameStateMessage> clientHandler = new ClientDiffHandler<>(
+				client, GameStateMessage.class, (short) 8);
+		clientHandler.setPiggybackAcks(true);
+		List<GameStateMessage> received = new ArrayList<>();
+		clientHandler.addListener((con, msg) -> received.add(msg));
+		assertNull(clientHandler.pollPendingRegionAck());
+
+		int deltas = 0;
+		int datagrams = 0;
+		for (short tick = 0; tick < 20; tick++) {
+			GameStateMessage message = createLargeMessage(tick);
+			handler.dispatchMessageToAll(message);
+
+			List<byte[]> sent = server.getSentMessages(0);
+			for (; datagrams < sent.size(); datagrams++) {
+				Object msg = client.getKryo()
+						.readClassAndObject(new Input(sent.get(datagrams)));
+				List<RegionMessage> regions = msg instanceof RegionMessage
+						? Arrays.asList((RegionMessage) msg)
+						: ((RegionBatchMessage) msg).getRegions();
+
+				for (RegionMessage region : regions) {
+					if (region.getDelta() != null)
+						deltas++;
+					clientHandler.processRegion(client, region);
+				}
+			}
+			assertEquals(message, received.get(received.size() - 1));
+
+			// The input commands are sent at half the rate
+			if (tick % 2 == 1) {
+				RegionAckMessage ack = clientHandler.pollPendingRegionAck();
+				assertEquals(tick, ack.getId());
+				assertTrue(ack.isComplete());
+				handler.registerRegionAck(connection, ack);
+				RegionAckMessage.POOL.free(ack);
+
+				assertNull(clientHandler.pollPendingRegionAck());
+			}
+		}
+
+		assertTrue(deltas > 10);
+		assertEquals(1, handler.getLag(connection));
+	}
+
+	private static GameStateMessage createLargeMessage(int tick) {
+		List<Float> position = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			position.add((float) (i % 10) + (i < 80 ? tick : 0));
+		}
+
+		return new GameStateMessage("player", position,
+				Arrays.asList(new Float[] { 0f, 0f, 1f }), (byte) tick);
+	}
+
+	private static FakeServer createRecordingServer() {
+		FakeServer server = new FakeServer();
+		registerClasses(server.getKryo());
+		server.record();
+
+		return server;
+	}
+
+	private static Kryo createKryo() {
+		Kryo kryo = new Kryo();
+		registerClasses(kryo);
+
+		return kryo;
+	}
+
+	private static void registerClasses(Kryo kryo) {
+		DiffClassRegistration.registerClasses(kryo);
+		kryo.register(GameStateMessage.class,
+				new GameStateMessage.GameStateSerializer());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testKryoPoolRegistrations() {
+		FakeServer server = createRecordingServer();
+		ServerDiffHandler<GameStateMessage> handler = new ServerDiffHandler<>(
+				server);
+
+		// The quakemonkey classes are missing
+		handler.setKryoPool(new KryoPool(() -> {
+			Kryo kryo = new Kryo();
+			kryo.register(GameStateMessage.class,
+					new GameStateMessage.GameStateSerializer());
+			return kryo;
+		}));
+	}
+
 }
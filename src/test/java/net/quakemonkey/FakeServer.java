@@ -0,0 +1,92 @@
+package net.quakemonkey;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryonet.Connection;
+import com.esotericsoftware.kryonet.Listener;
+import com.esotericsoftware.kryonet.Server;
+
+public class FakeServer extends Server {
+	private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+	private final List<Connection> connections = new CopyOnWriteArrayList<>();
+	private Map<Integer, List<byte[]>> sentMessages;
+
+	/**
+	 * Records the serialized form of all sent messages from now on.
+	 */
+	public void record() {
+		sentMessages = new ConcurrentHashMap<>();
+	}
+
+	public List<byte[]> getSentMessages(int connectionID) {
+		return sentMessages.getOrDefault(connectionID,
+				Collections.emptyList());
+	}
+
+	@Override
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	@Override
+	public Collection<Connection> getConnections() {
+		return new ArrayList<>(connections);
+	}
+
+	@Override
+	public void sendToUDP(int connectionID, Object object) {
+		if (sentMessages != null) {
+			Output output = new Output(256, -1);
+			synchronized (this) {
+				getKryo().writeClassAndObject(output, object);
+			}
+			sentMessages.computeIfAbsent(connectionID, id -> new ArrayList<>())
+					.add(output.toBytes());
+		}
+	}
+
+	public Connection connect(int id) {
+		Connection connection = new Connection() {
+			@Override
+			public int getID() {
+				return id;
+			}
+		};
+		connections.add(connection);
+
+		return connection;
+	}
+
+	public void disconnect(Connection connection) {
+		connections.remove(connection);
+		for (Listener listener : listeners) {
+			listener.disconnected(connection);
+		}
+	}
+
+	public void receive(Connection connection, Object object) {
+		for (Listener listener : listeners) {
+			listener.received(connection, object);
+		}
+	}
+
+	/**
+	 * Serializes the object and lets the listeners receive the deserialized
+	 * copy, like a real server. The sender keeps ownership of the object.
+	 */
+	public void receiveSerialized(Connection connection, Object object) {
+		Output output = new Output(256, -1);
+		getKryo().writeClassAndObject(output, object);
+
+		receive(connection,
+				getKryo().readClassAndObject(new Input(output.toBytes())));
+	}
+}
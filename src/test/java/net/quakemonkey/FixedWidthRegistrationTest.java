@@ -0,0 +1,111 @@
+package net.quakemonkey;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import net.quakemonkey.utils.FixedWidthSerializers;
+
+public class FixedWidthRegistrationTest {
+
+	public static class Player {
+		private String name;
+		private int score;
+		private long time;
+		private float x;
+		private ArrayList<Integer> items = new ArrayList<>();
+
+		public Player() {
+			// default public constructor
+		}
+
+		Player(String name, int score, long time, float x, Integer... items) {
+			this.name = name;
+			this.score = score;
+			this.time = time;
+			this.x = x;
+			this.items.addAll(Arrays.asList(items));
+		}
+	}
+
+	private static Kryo createKryo() {
+		Kryo kryo = new Kryo();
+		FixedWidthRegistration.registerSerializers(kryo, 16);
+		DiffClassRegistration.registerClasses(kryo);
+		kryo.register(ArrayList.class,
+				new FixedWidthSerializers.CollectionSerializer<>(
+						Integer.class, 4, 4));
+		kryo.register(Player.class);
+
+		return kryo;
+	}
+
+	private static byte[] serialize(Kryo kryo, Object obj) {
+		Output output = new Output(64, -1);
+		kryo.writeClassAndObject(output, obj);
+
+		return output.toBytes();
+	}
+
+	@Test
+	public void testStableOffsets() {
+		Kryo kryo = createKryo();
+
+		byte[] first = serialize(kryo, new Player("a", 1, 1, 1f, 1));
+		byte[] second = serialize(kryo,
+				new Player("abcdef", 100000, 1L << 40, 1f, 1, 2, 3));
+		assertEquals(first.length, second.length);
+
+		// Only the name, the score, the time and the items differ; the
+		// position stays where it was
+		Player player = new Player("abcdef", 100000, 1L << 40, 2f, 1, 2, 3);
+		byte[] third = serialize(kryo, player);
+		int differences = 0;
+		for (int i = 0; i < second.length; i++) {
+			if (second[i] != third[i])
+				differences++;
+		}
+		assertEquals(2, differences);
+
+		Player read = (Player) kryo.readClassAndObject(new Input(third));
+		assertEquals("abcdef", read.name);
+		assertEquals(100000, read.score);
+		assertEquals(1L << 40, read.time);
+		assertEquals(2f, read.x, 0f);
+		assertEquals(Arrays.asList(1, 2, 3), read.items);
+	}
+
+	@Test
+	public void testPrimitives() {
+		Kryo kryo = createKryo();
+
+		assertEquals(5, serialize(kryo, 1).length);
+		assertEquals(5, serialize(kryo, Integer.MAX_VALUE).length);
+		assertEquals(9, serialize(kryo, 1L).length);
+		assertEquals(3, serialize(kryo, (short) 1).length);
+		// class, not-null marker and slot
+		assertEquals(18, serialize(kryo, "a").length);
+		assertEquals(18, serialize(kryo, "abcdefgh").length);
+		assertEquals("abc",
+				kryo.readClassAndObject(new Input(serialize(kryo, "abc"))));
+	}
+
+	@Test(expected = KryoException.class)
+	public void testStringTooLong() {
+		serialize(createKryo(), "0123456789abcdefg");
+	}
+
+	@Test(expected = KryoException.class)
+	public void testCollectionTooLong() {
+		serialize(createKryo(), new Player("a", 1, 1, 1f, 1, 2, 3, 4, 5));
+	}
+
+}
@@ -0,0 +1,89 @@
+package net.quakemonkey;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import net.quakemonkey.messages.FragmentMessage;
+
+public class FragmentAssemblerTest {
+
+	@Test
+	public void testReassembly() {
+		FragmentAssembler assembler = new FragmentAssembler(2, 1024);
+		byte[] bytes = new byte[10];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) i;
+		}
+
+		// Out of order and with a duplicate
+		assertNull(assembler.add(fragment(1, 2, 3, bytes), (short) 0));
+		assertNull(assembler.add(fragment(1, 0, 3, bytes), (short) 0));
+		assertNull(assembler.add(fragment(1, 2, 3, bytes), (short) 0));
+		assertEquals(1, assembler.getPartialMessageCount());
+
+		byte[] message = assembler.add(fragment(1, 1, 3, bytes), (short) 0);
+		assertNotNull(message);
+		assertArrayEquals(bytes, Arrays.copyOf(message, bytes.length));
+		assertEquals(0, assembler.getPartialMessageCount());
+	}
+
+	@Test
+	public void testEviction() {
+		FragmentAssembler assembler = new FragmentAssembler(2, 1024);
+		byte[] bytes = new byte[10];
+
+		assembler.add(fragment(1, 0, 2, bytes), (short) 0);
+		assembler.add(fragment(2, 0, 2, bytes), (short) 0);
+		// The oldest message is evicted to make room
+		assembler.add(fragment(3, 0, 2, bytes), (short) 0);
+		assertEquals(2, assembler.getPartialMessageCount());
+		assertNotNull(assembler.add(fragment(2, 1, 2, bytes), (short) 0));
+		assertEquals(1, assembler.getPartialMessageCount());
+
+		// Fragments of messages older than the newest one are dropped
+		assertNull(assembler.add(fragment(1, 1, 2, bytes), (short) 2));
+		assertEquals(1, assembler.getPartialMessageCount());
+
+		// The completion of a message evicts the older partial messages
+		assembler.add(fragment(4, 0, 2, bytes), (short) 2);
+		assembler.add(fragment(5, 0, 1, bytes), (short) 2);
+		assertEquals(0, assembler.getPartialMessageCount());
+	}
+
+	@Test
+	public void testInvalidFragments() {
+		FragmentAssembler assembler = new FragmentAssembler(2, 1024);
+		byte[] bytes = new byte[10];
+
+		assembler.add(fragment(1, 0, 2, bytes), (short) 0);
+		// Another number of fragments
+		assertNull(assembler.add(fragment(1, 1, 3, bytes), (short) 0));
+		// A wrong length
+		assertNull(assembler.add(FragmentMessage.POOL.obtain().set((short) 1,
+				1, 2, 10, bytes, 0, 4), (short) 0));
+		// Too long
+		assertNull(assembler.add(FragmentMessage.POOL.obtain().set((short) 2,
+				0, 2, 2048, new byte[1024], 0, 1024), (short) 0));
+		assertEquals(1, assembler.getPartialMessageCount());
+	}
+
+	/**
+	 * Creates the fragment with the given index of a message.
+	 */
+	private static FragmentMessage fragment(int messageId, int index,
+			int count, byte[] message) {
+		int fragmentLength = FragmentMessage.getFragmentLength(message.length,
+				count);
+		int offset = index * fragmentLength;
+
+		return FragmentMessage.POOL.obtain().set((short) messageId, index,
+				count, message.length, message, offset,
+				Math.min(fragmentLength, message.length - offset));
+	}
+}
@@ -0,0 +1,172 @@
+package net.quakemonkey;
+
+import java.util.List;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.google.common.primitives.Floats;
+
+/**
+ * A message that can be decoded into an existing instance without
+ * allocating, as long as its arrays are big enough.
+ *
+ * @see ReusableStateSerializer
+ */
+public class ReusableStateMessage {
+	private String name;
+	/**
+	 * Scratch space to compare a received name with the current one.
+	 */
+	private char[] nameChars = new char[0];
+	private float[] position = new float[0];
+	private int positionCount;
+	private byte id;
+
+	public ReusableStateMessage() {
+		// default public constructor
+	}
+
+	public ReusableStateMessage(String name, List<Float> position, byte id) {
+		this.name = name;
+		this.position = Floats.toArray(position);
+		this.positionCount = this.position.length;
+		this.id = id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public List<Float> getPosition() {
+		return Floats.asList(position).subList(0, positionCount);
+	}
+
+	public byte getId() {
+		return id;
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + id;
+		result = prime * result + ((name == null) ? 0 : name.hashCode());
+		result = prime * result + getPosition().hashCode();
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		ReusableStateMessage other = (ReusableStateMessage) obj;
+		if (id != other.id)
+			return false;
+		if (name == null) {
+			if (other.name != null)
+				return false;
+		} else if (!name.equals(other.name))
+			return false;
+		if (!getPosition().equals(other.getPosition()))
+			return false;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "ReusableStateMessage { name: " + name + ", pos: "
+				+ getPosition() + ", id: " + id + "}";
+	}
+
+	/**
+	 * Writes the name char by char, so {@link #readInto} can compare it with
+	 * the previous name without creating a string. The serializer is
+	 * stateless; the scratch space belongs to the decoded instance.
+	 */
+	public static class ReusableStateSerializer
+			extends Serializer<ReusableStateMessage>
+			implements InPlaceDeserializer<ReusableStateMessage> {
+		@Override
+		public ReusableStateMessage read(Kryo kryo, Input input,
+				Class<? extends ReusableStateMessage> cls) {
+			ReusableStateMessage message = create();
+			readInto(kryo, input, message);
+
+			return message;
+		}
+
+		@Override
+		public ReusableStateMessage create() {
+			return new ReusableStateMessage();
+		}
+
+		@Override
+		public void readInto(Kryo kryo, Input input,
+				ReusableStateMessage message) {
+			readName(input, message);
+
+			int n = input.readShort();
+			if (message.position.length < n)
+				message.position = new float[n];
+			for (int i = 0; i < n; ++i) {
+				message.position[i] = input.readFloat();
+			}
+			message.positionCount = n;
+
+			message.id = input.readByte();
+		}
+
+		/**
+		 * Replaces the name of the message by a new string, if it changed.
+		 */
+		private static void readName(Input input,
+				ReusableStateMessage message) {
+			int length = input.readVarInt(true) - 1;
+			if (length < 0) {
+				message.name = null;
+				return;
+			}
+
+			if (message.nameChars.length < length)
+				message.nameChars = new char[length];
+			char[] chars = message.nameChars;
+			String previous = message.name;
+			boolean changed = previous == null || previous.length() != length;
+			for (int i = 0; i < length; i++) {
+				chars[i] = (char) input.readVarInt(true);
+				if (!changed && previous.charAt(i) != chars[i])
+					changed = true;
+			}
+
+			if (changed)
+				message.name = new String(chars, 0, length);
+		}
+
+		@Override
+		public void write(Kryo kryo, Output output,
+				ReusableStateMessage object) {
+			if (object.name == null) {
+				output.writeVarInt(0, true);
+			} else {
+				output.writeVarInt(object.name.length() + 1, true);
+				for (int i = 0; i < object.name.length(); i++) {
+					output.writeVarInt(object.name.charAt(i), true);
+				}
+			}
+
+			int n = object.positionCount;
+			output.writeShort(n);
+			for (int i = 0; i < n; ++i) {
+				output.writeFloat(object.position[i]);
+			}
+
+			output.writeByte(object.id);
+		}
+	}
+}
@@ -1,7 +1,11 @@
 package net.quakemonkey;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -11,6 +15,9 @@ import java.util.function.BiConsumer;
 import org.junit.Test;
 
 import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
 import com.esotericsoftware.kryonet.Client;
 import com.esotericsoftware.kryonet.Connection;
 
@@ -18,6 +25,7 @@ import net.quakemonkey.ClientDiffHandler;
 import net.quakemonkey.DiffClassRegistration;
 import net.quakemonkey.DiffConnectionHandler;
 import net.quakemonkey.messages.DiffMessage;
+import net.quakemonkey.messages.DiffMessageSerializer;
 import net.quakemonkey.messages.PayloadMessage;
 
 public class SerializationTests {
@@ -30,6 +38,8 @@ public class SerializationTests {
 				new GameStateMessage.GameStateSerializer());
 		kryoSerializer.register(GameStateMessage2.class,
 				new GameStateMessage2.GameState2Serializer());
+		kryoSerializer.register(ReusableStateMessage.class,
+				new ReusableStateMessage.ReusableStateSerializer());
 
 		return fakeClient;
 	}
@@ -282,4 +292,372 @@ public class SerializationTests {
 						.getPayloadMessage().getClass());
 	}
 
+	/**
+	 * The client receives two diffs that are based on the same snapshot,
+	 * because its acknowledgment got lost.
+	 */
+	@Test
+	public void testDiffsWithSameBase() {
+		Client client = createTestClient();
+		DiffConnectionHandler<GameStateMessage> severDiffConnection = new DiffConnectionHandler<>(
+				client.getKryo(), (short) 4, true);
+		ClientDiffHandler<GameStateMessage> clientDiffHandler = new ClientDiffHandler<>(
+				client, GameStateMessage.class, (short) 4);
+		List<GameStateMessage> received = new ArrayList<>();
+		clientDiffHandler.addListener((con, msg) -> received.add(msg));
+
+		List<Float> orientation = Arrays.asList(new Float[] { 0f, 0f, 1f });
+		GameStateMessage first = new GameStateMessage("abc",
+				Arrays.asList(new Float[] { 1f, 2f }), orientation, (byte) 1);
+		PayloadMessage firstPackage = severDiffConnection
+				.generateSnapshot(first);
+		clientDiffHandler.processPackage(client, firstPackage);
+		severDiffConnection.registerAck(firstPackage.getId());
+
+		GameStateMessage second = new GameStateMessage("abc",
+				Arrays.asList(new Float[] { 1f, 3f }), orientation, (byte) 2);
+		clientDiffHandler.processPackage(client,
+				severDiffConnection.generateSnapshot(second));
+
+		GameStateMessage third = new GameStateMessage("abc",
+				Arrays.asList(new Float[] { 4f, 2f }), orientation, (byte) 3);
+		clientDiffHandler.processPackage(client,
+				severDiffConnection.generateSnapshot(third));
+
+		assertEquals(Arrays.asList(first, second, third), received);
+	}
+
+	/**
+	 * The snapshot acknowledged last is overwritten by the new message, so a
+	 * full message has to be sent.
+	 */
+	@Test
+	public void testAckOverwritten() {
+		Client client = createTestClient();
+		DiffConnectionHandler<GameStateMessage2> severDiffConnection = new DiffConnectionHandler<GameStateMessage2>(
+				client.getKryo(), (short) 4, true);
+
+		List<Integer> position = Arrays.asList(new Integer[] { 1, 1, 1 });
+		List<Integer> orientation = Arrays.asList(new Integer[] { 1, 1, 1 });
+		final GameStateMessage2 gameStateMessage = new GameStateMessage2(
+				position, orientation);
+
+		severDiffConnection.registerAck(
+				severDiffConnection.generateSnapshot(gameStateMessage).getId());
+
+		// Packages 2-4
+		for (int i = 0; i < 3; i++) {
+			assertEquals(DiffMessage.class,
+					severDiffConnection.generateSnapshot(gameStateMessage)
+							.getPayloadMessage().getClass());
+		}
+
+		// Package 5 uses the slot of the first package
+		assertEquals(GameStateMessage2.class,
+				severDiffConnection.generateSnapshot(gameStateMessage)
+						.getPayloadMessage().getClass());
+	}
+
+	/**
+	 * The name becomes longer, so all following bytes are shifted. The
+	 * rolling hash codec still sends a small delta.
+	 */
+	@Test
+	public void testRollingHashDelta() {
+		Client client = createTestClient();
+		DiffConnectionHandler<GameStateMessage> severDiffConnection = new DiffConnectionHandler<>(
+				client.getKryo(), (short) 4);
+		severDiffConnection.setDeltaCodec(DeltaCodec.ROLLING_HASH);
+		ClientDiffHandler<GameStateMessage> clientDiffHandler = new ClientDiffHandler<>(
+				client, GameStateMessage.class, (short) 4);
+		List<GameStateMessage> received = new ArrayList<>();
+		clientDiffHandler.addListener((con, msg) -> received.add(msg));
+
+		List<Float> position = new ArrayList<>();
+		for (int i = 0; i < 64; i++) {
+			position.add((float) i);
+		}
+		List<Float> orientation = Arrays.asList(new Float[] { 0f, 0f, 1f });
+		GameStateMessage first = new GameStateMessage("player", position,
+				orientation, (byte) 1);
+		PayloadMessage firstPackage = severDiffConnection
+				.generateSnapshot(first);
+		clientDiffHandler.processPackage(client, firstPackage);
+		severDiffConnection.registerAck(firstPackage.getId());
+
+		GameStateMessage second = new GameStateMessage("player2", position,
+				orientation, (byte) 2);
+		PayloadMessage secondPackage = severDiffConnection
+				.generateSnapshot(second);
+
+		DiffMessage diffMessage = (DiffMessage) secondPackage
+				.getPayloadMessage();
+		assertTrue(diffMessage.getInstructionsLength() < 32);
+
+		// Send it over the wire
+		Output output = new Output(64, -1);
+		client.getKryo().writeClassAndObject(output, secondPackage);
+		clientDiffHandler.processPackage(client, (PayloadMessage) client
+				.getKryo().readClassAndObject(new Input(output.toBytes())));
+
+		assertEquals(Arrays.asList(first, second), received);
+	}
+
+	@Test
+	public void testBlockSizes() {
+		for (int blockSize : new int[] { 1, 2, 4, 8, 16,
+				DiffConnectionHandler.ADAPTIVE_BLOCK_SIZE }) {
+			DiffMessage diffMessage = sendGrowingDelta(DeltaCodec.BLOCKS,
+					blockSize);
+
+			if (blockSize != DiffConnectionHandler.ADAPTIVE_BLOCK_SIZE)
+				assertEquals(blockSize, diffMessage.getBlockSize());
+		}
+	}
+
+	@Test
+	public void testXorBlocks() {
+		for (int blockSize : new int[] { 1, 2, 4, 8, 16 }) {
+			DiffMessage diffMessage = sendGrowingDelta(DeltaCodec.XOR_BLOCKS,
+					blockSize);
+
+			assertEquals(blockSize, diffMessage.getBlockSize());
+			assertTrue(diffMessage.isXorData());
+		}
+	}
+
+	/**
+	 * The XOR delta is the smallest for slightly changed floats.
+	 */
+	@Test
+	public void testSmallestCodec() {
+		DiffMessage diffMessage = sendGrowingDelta(DeltaCodec.SMALLEST, 4);
+
+		assertTrue(diffMessage.isXorData());
+	}
+
+	/**
+	 * The codec with the smallest serialized delta is chosen, including the
+	 * encoding of the flags, which dominates for a large message with sparse
+	 * changes.
+	 */
+	@Test
+	public void testSmallestCodecOfSparseChanges() {
+		Client client = createTestClient();
+		List<Float> position = new ArrayList<>();
+		for (int i = 0; i < 2000; i++) {
+			position.add((float) i);
+		}
+		List<Float> orientation = Arrays.asList(new Float[] { 0f, 0f, 1f });
+		GameStateMessage first = new GameStateMessage("player", position,
+				orientation, (byte) 1);
+		List<Float> secondPosition = new ArrayList<>(position);
+		for (int i = 0; i < secondPosition.size(); i += 150) {
+			secondPosition.set(i, -1f);
+		}
+		GameStateMessage second = new GameStateMessage("player",
+				secondPosition, orientation, (byte) 2);
+
+		int smallest = Integer.MAX_VALUE;
+		for (DeltaCodec codec : DeltaCodec.values()) {
+			DiffConnectionHandler<GameStateMessage> severDiffConnection = new DiffConnectionHandler<>(
+					client.getKryo(), (short) 4, true);
+			severDiffConnection.setDeltaCodec(codec);
+			severDiffConnection.registerAck(
+					severDiffConnection.generateSnapshot(first).getId());
+			DiffMessage diffMessage = (DiffMessage) severDiffConnection
+					.generateSnapshot(second).getPayloadMessage();
+			int size = DiffMessageSerializer
+					.getFlagsAndDataLength(diffMessage);
+
+			if (codec != DeltaCodec.SMALLEST)
+				smallest = Math.min(smallest, size);
+			else
+				assertEquals(smallest, size);
+		}
+	}
+
+	/**
+	 * Sends a message and then a delta to a longer one over the wire.
+	 * 
+	 * @return The delta message generated by the server.
+	 */
+	private DiffMessage sendGrowingDelta(DeltaCodec codec, int blockSize) {
+		Client client = createTestClient();
+		DiffConnectionHandler<GameStateMessage> severDiffConnection = new DiffConnectionHandler<>(
+				client.getKryo(), (short) 4, true);
+		severDiffConnection.setDeltaCodec(codec);
+		severDiffConnection.setBlockSize(blockSize);
+		ClientDiffHandler<GameStateMessage> clientDiffHandler = new ClientDiffHandler<>(
+				client, GameStateMessage.class, (short) 4);
+		List<GameStateMessage> received = new ArrayList<>();
+		clientDiffHandler.addListener((con, msg) -> received.add(msg));
+
+		List<Float> position = new ArrayList<>();
+		for (int i = 0; i < 63; i++) {
+			position.add((float) i);
+		}
+		List<Float> orientation = Arrays.asList(new Float[] { 0f, 0f, 1f });
+		GameStateMessage first = new GameStateMessage("player", position,
+				orientation, (byte) 1);
+		PayloadMessage firstPackage = severDiffConnection
+				.generateSnapshot(first);
+		clientDiffHandler.processPackage(client, firstPackage);
+		severDiffConnection.registerAck(firstPackage.getId());
+
+		// One more element and some changed ones; the message grows
+		List<Float> secondPosition = new ArrayList<>(position);
+		secondPosition.set(3, 100f);
+		secondPosition.set(40, 40.01f);
+		secondPosition.add(5f);
+		GameStateMessage second = new GameStateMessage("player",
+				secondPosition, orientation, (byte) 2);
+		PayloadMessage secondPackage = severDiffConnection
+				.generateSnapshot(second);
+
+		DiffMessage diffMessage = (DiffMessage) secondPackage
+				.getPayloadMessage();
+		assertEquals(1, severDiffConnection.getStatistics()
+				.getBlockSizeCount(diffMessage.getBlockSize()));
+
+		// Send it over the wire
+		Output output = new Output(64, -1);
+		client.getKryo().writeClassAndObject(output, secondPackage);
+		clientDiffHandler.processPackage(client, (PayloadMessage) client
+				.getKryo().readClassAndObject(new Input(output.toBytes())));
+
+		assertEquals(Arrays.asList(first, second), received);
+
+		return diffMessage;
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnsupportedBlockSize() {
+		new DiffConnectionHandler<>(createTestClient().getKryo(), (short) 4)
+				.setBlockSize(3);
+	}
+
+	/**
+	 * A diff is merged into the buffer that is reused by the client.
+	 */
+	@Test
+	public void testMergeInPlace() {
+		Client client = createTestClient();
+		ClientDiffHandler<GameStateMessage> clientDiffHandler = new ClientDiffHandler<>(
+				client, GameStateMessage.class, (short) 4);
+
+		ByteBuffer oldMessage = ByteBuffer.allocate(16);
+		oldMessage.putInt(1).putInt(2).putInt(3).flip();
+		ByteBuffer target = ByteBuffer.allocate(64);
+
+		DiffMessage diffMessage = new DiffMessage().set((short) 0,
+				new byte[] { 0b101 }, new int[] { 7, 9, 0, 0 });
+
+		ByteBuffer merged = clientDiffHandler.mergeMessage(oldMessage,
+				diffMessage, target);
+		assertSame(target, merged);
+		assertEquals(32, merged.limit());
+		assertEquals(7, merged.getInt(0));
+		assertEquals(2, merged.getInt(4));
+		assertEquals(9, merged.getInt(8));
+		assertEquals(0, merged.getInt(12));
+		assertEquals(1, oldMessage.getInt(0));
+		assertEquals(0, oldMessage.position());
+
+		// merge into the old message itself
+		merged = clientDiffHandler.mergeMessage(merged,
+				new DiffMessage().set((short) 1, new byte[] { 0b10 },
+						new int[] { 5 }),
+				merged);
+		assertSame(target, merged);
+		assertEquals(7, merged.getInt(0));
+		assertEquals(5, merged.getInt(4));
+
+		// the target is too small
+		merged = clientDiffHandler.mergeMessage(oldMessage, diffMessage,
+				ByteBuffer.allocate(8));
+		assertEquals(32, merged.limit());
+		assertEquals(9, merged.getInt(8));
+	}
+
+	/**
+	 * The received messages are decoded into two alternately reused
+	 * instances.
+	 */
+	@Test
+	public void testInPlaceDecoding() {
+		Client client = createTestClient();
+		DiffConnectionHandler<ReusableStateMessage> severDiffConnection = new DiffConnectionHandler<>(
+				client.getKryo(), (short) 4, true);
+		ClientDiffHandler<ReusableStateMessage> clientDiffHandler = new ClientDiffHandler<>(
+				client, ReusableStateMessage.class, (short) 4);
+		clientDiffHandler.setInPlaceDeserializer(
+				new ReusableStateMessage.ReusableStateSerializer());
+		List<ReusableStateMessage> received = new ArrayList<>();
+		List<String> receivedContent = new ArrayList<>();
+		List<String> receivedNames = new ArrayList<>();
+		clientDiffHandler.addListener((con, msg) -> {
+			received.add(msg);
+			receivedContent.add(msg.toString());
+			receivedNames.add(msg.getName());
+		});
+
+		List<ReusableStateMessage> messages = Arrays.asList(
+				new ReusableStateMessage("abc",
+						Arrays.asList(new Float[] { 1f, 2f }), (byte) 1),
+				new ReusableStateMessage("abc",
+						Arrays.asList(new Float[] { 1f, 3f }), (byte) 2),
+				new ReusableStateMessage("abcd",
+						Arrays.asList(new Float[] { 4f, 2f, 5f }), (byte) 3),
+				new ReusableStateMessage("abc",
+						Arrays.asList(new Float[] { 1f, 3f }), (byte) 4));
+
+		for (ReusableStateMessage message : messages) {
+			PayloadMessage payload = severDiffConnection
+					.generateSnapshot(message);
+			clientDiffHandler.processPackage(client, payload);
+			severDiffConnection.registerAck(payload.getId());
+		}
+
+		for (int i = 0; i < messages.size(); i++) {
+			assertEquals(messages.get(i).toString(), receivedContent.get(i));
+		}
+		assertSame(received.get(0), received.get(2));
+		assertSame(received.get(1), received.get(3));
+		assertEquals(messages.get(3), received.get(1));
+		// An unchanged name is not decoded into a new string
+		assertSame(receivedNames.get(1), receivedNames.get(3));
+	}
+
+	/**
+	 * A message of another type is not decoded in place.
+	 */
+	@Test
+	public void testInPlaceDecodingOfOtherType() {
+		Client client = createTestClient();
+		DiffConnectionHandler<Object> severDiffConnection = new DiffConnectionHandler<>(
+				client.getKryo(), (short) 4, true);
+		ClientDiffHandler<ReusableStateMessage> clientDiffHandler = new ClientDiffHandler<>(
+				client, ReusableStateMessage.class, (short) 4);
+		clientDiffHandler.setInPlaceDeserializer(
+				new ReusableStateMessage.ReusableStateSerializer());
+
+		PayloadMessage payload = severDiffConnection
+				.generateSnapshot(new ReusableStateMessage("abc",
+						Arrays.asList(new Float[] { 1f, 2f }), (byte) 1));
+		clientDiffHandler.processPackage(client, payload);
+		severDiffConnection.registerAck(payload.getId());
+
+		// A delta to a message of another type
+		payload = severDiffConnection.generateSnapshot(new GameStateMessage2(
+				Arrays.asList(new Integer[] { 1, 2 }),
+				Arrays.asList(new Integer[] { 3 })));
+		try {
+			clientDiffHandler.processPackage(client, payload);
+			fail();
+		} catch (KryoException e) {
+			assertTrue(e.getMessage().contains("GameStateMessage2"));
+		}
+	}
+
 }
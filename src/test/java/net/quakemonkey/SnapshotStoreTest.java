@@ -0,0 +1,92 @@
+package net.quakemonkey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.esotericsoftware.kryo.Kryo;
+
+import net.quakemonkey.messages.DiffMessage;
+import net.quakemonkey.messages.PayloadMessage;
+import net.quakemonkey.utils.Utils;
+import net.quakemonkey.utils.pool.BufferPool;
+
+public class SnapshotStoreTest {
+
+	@Test
+	public void testEviction() {
+		SnapshotStore store = new SnapshotStore(2);
+		ByteBuffer buffer = ByteBuffer.allocate(1019);
+		Snapshot first = Snapshot.wrap(buffer);
+		Snapshot second = Snapshot.wrap(ByteBuffer.allocate(4));
+		Snapshot third = Snapshot.wrap(ByteBuffer.allocate(4));
+
+		assertEquals(0, store.add(first));
+		first.release();
+		assertEquals(1, store.add(second));
+		assertSame(first, store.get(0));
+		assertSame(second, store.get(1));
+		assertNull(store.get(2));
+		assertNull(store.get(SnapshotStore.NO_ID));
+
+		// The first snapshot is evicted and released
+		assertEquals(2, store.add(third));
+		assertNull(store.get(0));
+		assertSame(third, store.get(2));
+		assertSame(buffer, BufferPool.DEFAULT.obtainByteBuffer(1019, true));
+	}
+
+	/**
+	 * A connection mixes snapshots of the store with private ones.
+	 */
+	@Test
+	public void testPrivateSnapshots() {
+		Kryo kryo = new Kryo();
+		kryo.register(GameStateMessage.class,
+				new GameStateMessage.GameStateSerializer());
+		SnapshotStore store = new SnapshotStore(4);
+		DiffConnectionHandler<GameStateMessage> con = new DiffConnectionHandler<>(
+				kryo, (short) 4, true, store);
+
+		List<Float> orientation = Arrays.asList(new Float[] { 0f, 0f, 1f });
+		GameStateMessage first = new GameStateMessage("abc",
+				Arrays.asList(new Float[] { 1f, 2f, 3f }), orientation,
+				(byte) 1);
+		GameStateMessage second = new GameStateMessage("abc",
+				Arrays.asList(new Float[] { 1f, 5f, 3f }), orientation,
+				(byte) 2);
+
+		// Broadcast message
+		Snapshot snapshot = Snapshot.wrap(Utils.messageToBuffer(first, kryo));
+		long id = store.add(snapshot);
+		snapshot.release();
+		PayloadMessage payload = con.generateSnapshot(first, id, null);
+		assertSame(first, payload.getPayloadMessage());
+		con.registerAck(payload.getId());
+
+		// Private message based on the broadcast one
+		snapshot = Snapshot.wrap(Utils.messageToBuffer(second, kryo));
+		payload = con.generateSnapshot(second, snapshot, null);
+		snapshot.release();
+		assertEquals(DiffMessage.class,
+				payload.getPayloadMessage().getClass());
+		con.registerAck(payload.getId());
+
+		// Broadcast message based on the private one
+		snapshot = Snapshot.wrap(Utils.messageToBuffer(first, kryo));
+		id = store.add(snapshot);
+		snapshot.release();
+		payload = con.generateSnapshot(first, id, null);
+		DiffMessage diff = (DiffMessage) payload.getPayloadMessage();
+		assertEquals(1, diff.getMessageId());
+
+		con.dispose();
+	}
+
+}
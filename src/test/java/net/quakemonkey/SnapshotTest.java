@@ -0,0 +1,133 @@
+package net.quakemonkey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.esotericsoftware.kryo.Kryo;
+
+import net.quakemonkey.messages.DiffMessage;
+import net.quakemonkey.messages.PayloadMessage;
+import net.quakemonkey.utils.Utils;
+import net.quakemonkey.utils.pool.BufferPool;
+
+public class SnapshotTest {
+
+	@Test
+	public void testReferenceCounting() {
+		ByteBuffer buffer = ByteBuffer.allocate(1021);
+		buffer.put(new byte[] { 1, 2, 3 });
+		buffer.flip();
+
+		Snapshot snapshot = Snapshot.wrap(buffer);
+		assertEquals(3, snapshot.size());
+		assertEquals(buffer.capacity(), snapshot.getBuffer().limit());
+
+		snapshot.retain();
+		snapshot.release();
+		snapshot.release();
+
+		// The buffer was given back to the pool
+		assertSame(buffer, BufferPool.DEFAULT.obtainByteBuffer(1021, true));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testRetainAfterRelease() {
+		Snapshot snapshot = Snapshot.wrap(ByteBuffer.allocate(4));
+		snapshot.release();
+		snapshot.retain();
+	}
+
+	/**
+	 * One snapshot is shared by two connections with different
+	 * acknowledgments.
+	 */
+	@Test
+	public void testSharedSnapshot() {
+		Kryo kryo = new Kryo();
+		kryo.register(GameStateMessage.class,
+				new GameStateMessage.GameStateSerializer());
+
+		DiffConnectionHandler<GameStateMessage> con1 = new DiffConnectionHandler<>(
+				kryo, (short) 4);
+		DiffConnectionHandler<GameStateMessage> con2 = new DiffConnectionHandler<>(
+				kryo, (short) 4);
+
+		List<Float> orientation = Arrays.asList(new Float[] { 0f, 0f, 1f });
+		GameStateMessage first = new GameStateMessage("abc",
+				Arrays.asList(new Float[] { 1f, 2f, 3f }), orientation,
+				(byte) 1);
+		GameStateMessage second = new GameStateMessage("abc",
+				Arrays.asList(new Float[] { 1f, 5f, 3f }), orientation,
+				(byte) 1);
+
+		Snapshot firstSnapshot = Snapshot
+				.wrap(Utils.messageToBuffer(first, kryo));
+		con1.registerAck(
+				con1.generateSnapshot(first, firstSnapshot, null).getId());
+		con2.generateSnapshot(first, firstSnapshot, null);
+		firstSnapshot.release();
+
+		Snapshot secondSnapshot = Snapshot
+				.wrap(Utils.messageToBuffer(second, kryo));
+		PayloadMessage msg1 = con1.generateSnapshot(second, secondSnapshot,
+				null);
+		PayloadMessage msg2 = con2.generateSnapshot(second, secondSnapshot,
+				null);
+		secondSnapshot.release();
+
+		assertEquals(DiffMessage.class, msg1.getPayloadMessage().getClass());
+		assertSame(second, msg2.getPayloadMessage());
+	}
+
+	/**
+	 * The snapshot histories of 500 connections only retain memory
+	 * proportional to the actual size of the messages.
+	 */
+	@Test
+	public void testRetainedMemory() {
+		Kryo kryo = new Kryo();
+		kryo.register(GameStateMessage.class,
+				new GameStateMessage.GameStateSerializer());
+
+		List<Float> position = new ArrayList<>();
+		for (int i = 0; i < 140; i++) {
+			position.add((float) i);
+		}
+		GameStateMessage message = new GameStateMessage("abc", position,
+				Arrays.asList(new Float[] { 0f, 0f, 1f }), (byte) 1);
+		ByteBuffer buffer = Utils.messageToBuffer(message, kryo);
+		int messageSize = buffer.remaining();
+		BufferPool.DEFAULT.freeByteBuffer(buffer);
+
+		long outstandingBytes = BufferPool.DEFAULT.getOutstandingBytes();
+
+		List<DiffConnectionHandler<GameStateMessage>> connections = new ArrayList<>();
+		for (int i = 0; i < 500; i++) {
+			DiffConnectionHandler<GameStateMessage> connection = new DiffConnectionHandler<>(
+					kryo, (short) 32);
+			connections.add(connection);
+
+			// Fill the whole history
+			for (int j = 0; j < 40; j++) {
+				PayloadMessage.POOL.free(connection.generateSnapshot(message));
+			}
+		}
+
+		long retainedBytes = BufferPool.DEFAULT.getOutstandingBytes()
+				- outstandingBytes;
+		assertTrue(messageSize > 500 && messageSize < 1000);
+		// At most the size class of each message per slot
+		assertTrue(retainedBytes <= 500 * 32 * 2 * messageSize);
+		assertTrue(retainedBytes >= 500 * 32 * messageSize);
+		assertEquals(500, connections.size());
+	}
+
+}
@@ -1,9 +1,20 @@
 package net.quakemonkey.messages;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
 
 import org.junit.Test;
 
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import net.quakemonkey.DiffClassRegistration;
+
 public class MessagesTests {
 
 	@Test
@@ -11,17 +22,25 @@ public class MessagesTests {
 		// AckMessage
 		AckMessage ackMessage = new AckMessage();
 		ackMessage.set((short) 3);
-		assertEquals("AckMessage { id: 3}", ackMessage.toString());
+		assertEquals("AckMessage { id: 3, receivedBits: 0}",
+				ackMessage.toString());
 
 		// Test onFree()
 		AckMessage.POOL.free(ackMessage);
 		assertEquals((short) 0, ackMessage.getId());
+		assertEquals(0, ackMessage.getReceivedBits());
 
 		// DiffMessage
 		DiffMessage diffMessage = new DiffMessage();
+		diffMessage.set((short) 5, new byte[] { (byte) 13 },
+				new int[] { 3, 6, 88 });
+		assertEquals("DiffMessage { id: 5, flags: [13], data: [3, 6, 88]}",
+				diffMessage.toString());
+
+		// Only the data of the set flags
 		diffMessage.set((short) 5, new byte[] { (byte) 12 },
 				new int[] { 3, 6, 88 });
-		assertEquals("DiffMessage { id: 5, flags: [12], data: [3, 6, 88]}",
+		assertEquals("DiffMessage { id: 5, flags: [12], data: [3, 6]}",
 				diffMessage.toString());
 
 		// PayloadMessage
@@ -31,4 +50,164 @@ public class MessagesTests {
 				labeledMessage.toString());
 	}
 
+	@Test
+	public void testPreEncoding() {
+		Kryo kryo = new Kryo();
+		DiffClassRegistration.registerClasses(kryo);
+
+		// DiffMessage
+		DiffMessage diffMessage = new DiffMessage();
+		diffMessage.set((short) 5, new byte[] { (byte) 13 },
+				new int[] { 3, 6, 88 });
+		byte[] expected = serialize(kryo,
+				new PayloadMessage().set((short) 7, diffMessage));
+
+		Output output = new Output(64);
+		DiffMessageSerializer.writeFlagsAndData(output, diffMessage);
+		diffMessage.setEncodedFlagsAndData(output.getBuffer(),
+				output.position());
+		byte[] actual = serialize(kryo,
+				new PayloadMessage().set((short) 7, diffMessage));
+
+		assertArrayEquals(expected, actual);
+
+		PayloadMessage read = (PayloadMessage) kryo
+				.readClassAndObject(new Input(actual));
+		assertEquals(7, read.getId());
+		assertEquals(
+				"DiffMessage { id: 5, flags: [13], data: [3, 6, 88]}",
+				read.getPayloadMessage().toString());
+
+		// Full message
+		expected = serialize(kryo,
+				new PayloadMessage().set((short) 8, "testabc"));
+
+		byte[] payload = serialize(kryo, "testabc");
+		actual = serialize(kryo, new PayloadMessage().set((short) 8, "testabc")
+				.setEncodedPayload(payload, payload.length));
+
+		assertArrayEquals(expected, actual);
+	}
+
+	/**
+	 * The data array of read delta messages is taken from the pool and may
+	 * therefore be longer than needed.
+	 */
+	@Test
+	public void testPooledRead() {
+		Kryo kryo = new Kryo();
+		DiffClassRegistration.registerClasses(kryo);
+
+		byte[] bytes = serialize(kryo, new PayloadMessage().set((short) 7,
+				new DiffMessage().set((short) 5, new byte[] { 13, 1 },
+						new int[] { 3, 6, 88, 4 })));
+
+		DiffMessage read = (DiffMessage) ((PayloadMessage) kryo
+				.readClassAndObject(new Input(bytes))).getPayloadMessage();
+		assertEquals(2, read.getFlags().length);
+		assertTrue(read.getData().length >= 4);
+		assertArrayEquals(new int[] { 3, 6, 88, 4 },
+				Arrays.copyOf(read.getData(), 4));
+	}
+
+	/**
+	 * The regions of a message are acknowledged by a bitmask of one bit per
+	 * region.
+	 */
+	@Test
+	public void testRegionAck() {
+		Kryo kryo = new Kryo();
+		DiffClassRegistration.registerClasses(kryo);
+
+		byte[] bytes = serialize(kryo, new RegionAckMessage().set((short) 9,
+				10, new byte[] { (byte) 0b11110111, 0b10, 0 }));
+		// Only the bytes of the bitmask that are needed are written
+		assertEquals(bytes.length, serialize(kryo, new RegionAckMessage()
+				.set((short) 9, 16, new byte[2])).length);
+		assertEquals(bytes.length + 1, serialize(kryo, new RegionAckMessage()
+				.set((short) 9, 17, new byte[3])).length);
+
+		RegionAckMessage read = (RegionAckMessage) kryo
+				.readClassAndObject(new Input(bytes));
+		assertEquals("RegionAckMessage { id: 9, regions: 1110111101}",
+				read.toString());
+		assertFalse(read.isComplete());
+		assertTrue(read.isReceived(9));
+
+		read.getReceivedRegions()[0] = (byte) 0xFF;
+		read.getReceivedRegions()[1] = 0b11;
+		assertTrue(read.isComplete());
+	}
+
+	/**
+	 * Sparse flags are written as indices or runs, whichever is smaller than
+	 * the bitmap.
+	 */
+	@Test
+	public void testFlagEncodings() {
+		Kryo kryo = new Kryo();
+		DiffClassRegistration.registerClasses(kryo);
+
+		// A single scattered block
+		byte[] flags = new byte[128];
+		flags[100] = 0b100;
+		assertFlagEncoding(kryo, flags, DiffMessageSerializer.BLOCK_INDICES);
+
+		// Scattered blocks
+		flags[3] = 0b1;
+		flags[50] = (byte) 0b10000001;
+		assertFlagEncoding(kryo, flags, DiffMessageSerializer.BLOCK_INDICES);
+
+		// Long runs
+		Arrays.fill(flags, 10, 30, (byte) 0xFF);
+		Arrays.fill(flags, 60, 90, (byte) 0xFF);
+		assertFlagEncoding(kryo, flags, DiffMessageSerializer.BLOCK_RUNS);
+
+		// Dense changes
+		for (int i = 0; i < flags.length; i++) {
+			flags[i] = (byte) 0b01010101;
+		}
+		assertFlagEncoding(kryo, flags, DiffMessageSerializer.BLOCKS);
+
+		// No changes
+		assertFlagEncoding(kryo, new byte[128],
+				DiffMessageSerializer.BLOCK_INDICES);
+	}
+
+	private static void assertFlagEncoding(Kryo kryo, byte[] flags,
+			int expectedEncoding) {
+		int changedBlocks = 0;
+		for (byte flag : flags) {
+			changedBlocks += Integer.bitCount(flag & 0xFF);
+		}
+		int[] data = new int[changedBlocks];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = i * 7;
+		}
+
+		DiffMessage diffMessage = new DiffMessage().set((short) 5, flags,
+				data);
+		Output output = new Output(64, -1);
+		DiffMessageSerializer.writeFlagsAndData(output, diffMessage);
+		assertEquals(expectedEncoding, output.getBuffer()[0] & 0x0F);
+		assertTrue(output.position() <= DiffMessageSerializer
+				.getMaxFlagsAndDataLength(diffMessage));
+		assertEquals(output.position(),
+				DiffMessageSerializer.getFlagsAndDataLength(diffMessage));
+
+		DiffMessage read = (DiffMessage) ((PayloadMessage) kryo
+				.readClassAndObject(new Input(serialize(kryo,
+						new PayloadMessage().set((short) 7, diffMessage)))))
+								.getPayloadMessage();
+		assertArrayEquals(flags, read.getFlags());
+		assertArrayEquals(data, Arrays.copyOf(read.getData(), data.length));
+	}
+
+	private static byte[] serialize(Kryo kryo, Object obj) {
+		Output output = new Output(64, -1);
+		kryo.writeClassAndObject(output, obj);
+
+		return output.toBytes();
+	}
+
 }
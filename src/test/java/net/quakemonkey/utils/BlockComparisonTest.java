@@ -0,0 +1,156 @@
+package net.quakemonkey.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BlockComparisonTest {
+
+	@Test
+	public void testIdenticalResults() {
+		Random random = new Random(123);
+
+		for (int size : new int[] { 4, 12, 100, 1021, 8192 }) {
+			for (float changeRatio : new float[] { 0f, 0.01f, 0.3f, 1f }) {
+				for (int sizeDifference : new int[] { -5, 0, 7 }) {
+					byte[] previous = new byte[size];
+					random.nextBytes(previous);
+					byte[] current = Arrays.copyOf(previous,
+							Math.max(1, size + sizeDifference));
+					for (int i = 0; i < current.length; i++) {
+						if (random.nextFloat() < changeRatio)
+							current[i]++;
+					}
+
+					assertSameResult(ByteBuffer.wrap(current),
+							ByteBuffer.wrap(previous),
+							(Math.max(current.length, previous.length) + 3)
+									/ 4 * 4);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testDirectBuffers() {
+		ByteBuffer current = ByteBuffer.allocateDirect(16);
+		ByteBuffer previous = ByteBuffer.allocateDirect(16);
+		current.putInt(8, 5);
+
+		byte[] flags = new byte[1];
+		IntBuffer diffInts = IntBuffer.allocate(4);
+
+		assertEquals(1, BlockComparison.compare(current, previous, 16, flags,
+				diffInts));
+		assertEquals(0b100, flags[0]);
+		assertEquals(5, diffInts.get(0));
+	}
+
+	@Test
+	public void testBlockSizes() {
+		Random random = new Random(321);
+
+		for (int blockSize : BlockComparison.BLOCK_SIZES) {
+			for (int size : new int[] { 3, 100, 1021 }) {
+				for (int sizeDifference : new int[] { -5, 0, 7 }) {
+					byte[] previous = new byte[size];
+					random.nextBytes(previous);
+					byte[] current = Arrays.copyOf(previous,
+							Math.max(1, size + sizeDifference));
+					for (int i = 0; i < current.length; i++) {
+						if (random.nextFloat() < 0.05f)
+							current[i]++;
+					}
+
+					assertBlocks(current, previous, blockSize);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testEstimateBlockSize() {
+		byte[] previous = new byte[4096];
+		byte[] current = previous.clone();
+
+		// Every third byte, so nearly every block of two or more bytes changes
+		for (int i = 0; i < current.length; i += 3) {
+			current[i] = 1;
+		}
+		assertEquals(1, BlockComparison.estimateBlockSize(
+				ByteBuffer.wrap(current), ByteBuffer.wrap(previous),
+				current.length));
+
+		// Everything changed
+		Arrays.fill(current, (byte) 1);
+		assertEquals(16, BlockComparison.estimateBlockSize(
+				ByteBuffer.wrap(current), ByteBuffer.wrap(previous),
+				current.length));
+
+		// Nothing changed; the largest blocks need the fewest flags
+		assertEquals(16,
+				BlockComparison.estimateBlockSize(ByteBuffer.wrap(previous),
+						ByteBuffer.wrap(previous), previous.length));
+	}
+
+	/**
+	 * Compares the result for any block size with the bytes of the arrays.
+	 */
+	private static void assertBlocks(byte[] current, byte[] previous,
+			int blockSize) {
+		int length = (Math.max(current.length, previous.length) + blockSize
+				- 1) / blockSize * blockSize;
+		byte[] flags = new byte[(length / blockSize + 7) / 8];
+		byte[] diffBytes = new byte[length];
+
+		int count = BlockComparison.compare(ByteBuffer.wrap(current),
+				ByteBuffer.wrap(previous), length, blockSize, flags,
+				diffBytes);
+
+		byte[] paddedCurrent = Arrays.copyOf(current, length);
+		byte[] paddedPrevious = Arrays.copyOf(previous, length);
+		int expectedCount = 0;
+		for (int block = 0; block < length / blockSize; block++) {
+			int from = block * blockSize;
+			boolean changed = !Arrays.equals(paddedCurrent, from,
+					from + blockSize, paddedPrevious, from, from + blockSize);
+
+			assertEquals(changed, (flags[block >>> 3] & 1 << (block & 7)) != 0);
+			if (changed) {
+				assertArrayEquals(
+						Arrays.copyOfRange(paddedCurrent, from,
+								from + blockSize),
+						Arrays.copyOfRange(diffBytes,
+								expectedCount * blockSize,
+								(expectedCount + 1) * blockSize));
+				expectedCount++;
+			}
+		}
+		assertEquals(expectedCount, count);
+	}
+
+	private static void assertSameResult(ByteBuffer current,
+			ByteBuffer previous, int length) {
+		byte[] expectedFlags = new byte[(length / 4 + 7) / 8];
+		IntBuffer expectedInts = IntBuffer.allocate(length / 4);
+		int expectedCount = BlockComparison.compareSequentially(current,
+				previous, length, expectedFlags, expectedInts);
+
+		byte[] flags = new byte[expectedFlags.length];
+		IntBuffer ints = IntBuffer.allocate(length / 4);
+		int count = BlockComparison.compare(current, previous, length, flags,
+				ints);
+
+		assertEquals(expectedCount, count);
+		assertEquals(expectedInts.position(), ints.position());
+		assertArrayEquals(expectedFlags, flags);
+		assertArrayEquals(expectedInts.array(), ints.array());
+	}
+
+}
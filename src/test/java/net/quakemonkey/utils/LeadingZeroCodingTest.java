@@ -0,0 +1,50 @@
+package net.quakemonkey.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+public class LeadingZeroCodingTest {
+
+	@Test
+	public void testRoundTrip() {
+		Random random = new Random(42);
+		int[] values = new int[103];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = random.nextInt() >>> random.nextInt(32);
+		}
+		values[0] = 0;
+		values[1] = -1;
+		values[2] = 0xFF;
+		values[3] = 0x100;
+
+		for (int count : new int[] { 0, 1, 4, 5, values.length }) {
+			Output output = new Output(16, -1);
+			LeadingZeroCoding.write(output, values, count);
+			assertEquals(LeadingZeroCoding.getLength(values, count),
+					output.position());
+
+			int[] read = new int[count];
+			LeadingZeroCoding.read(new Input(output.toBytes()), read, count);
+			assertArrayEquals(Arrays.copyOf(values, count), read);
+		}
+	}
+
+	@Test
+	public void testLength() {
+		// control byte and one byte each
+		assertEquals(5, LeadingZeroCoding.getLength(new int[] { 0, 1, 2, 3 },
+				4));
+		// control byte, two and four bytes
+		assertEquals(7, LeadingZeroCoding
+				.getLength(new int[] { 0x1234, Integer.MIN_VALUE }, 2));
+	}
+
+}
@@ -0,0 +1,102 @@
+package net.quakemonkey.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+public class RollingHashDeltaTest {
+
+	private static byte[] roundTrip(byte[] message, byte[] previousMessage,
+			Output output) {
+		output.reset();
+		RollingHashDelta.encode(message, message.length, previousMessage,
+				previousMessage.length, output);
+
+		Input input = new Input(output.getBuffer(), 0, output.position());
+		int size = RollingHashDelta.readSize(input);
+		byte[] result = new byte[size];
+		RollingHashDelta.apply(input, previousMessage, previousMessage.length,
+				result, size);
+
+		assertEquals(output.position(), input.position());
+		return result;
+	}
+
+	@Test
+	public void testShift() {
+		Random random = new Random(42);
+		byte[] previousMessage = new byte[1000];
+		random.nextBytes(previousMessage);
+
+		// Insert a byte at the front and change one in the middle
+		byte[] message = new byte[1001];
+		message[0] = 17;
+		System.arraycopy(previousMessage, 0, message, 1, 1000);
+		message[500]++;
+
+		Output output = new Output(64, -1);
+		assertArrayEquals(message, roundTrip(message, previousMessage, output));
+		assertTrue(output.position() < 20);
+	}
+
+	@Test
+	public void testIdentical() {
+		byte[] message = new byte[256];
+		Arrays.fill(message, (byte) 3);
+
+		Output output = new Output(64, -1);
+		assertArrayEquals(message, roundTrip(message, message.clone(), output));
+		// size, copy header and offset
+		assertEquals(5, output.position());
+	}
+
+	@Test
+	public void testSmallMessages() {
+		Output output = new Output(64, -1);
+
+		assertArrayEquals(new byte[0],
+				roundTrip(new byte[0], new byte[] { 1, 2 }, output));
+		assertArrayEquals(new byte[] { 1, 2, 3 },
+				roundTrip(new byte[] { 1, 2, 3 }, new byte[0], output));
+	}
+
+	@Test
+	public void testRandomChanges() {
+		Random random = new Random(7);
+		Output output = new Output(64, -1);
+
+		for (int i = 0; i < 100; i++) {
+			byte[] previousMessage = new byte[random.nextInt(2000)];
+			random.nextBytes(previousMessage);
+
+			// Remove, insert and change a few ranges
+			byte[] message = previousMessage.clone();
+			for (int j = 0; j < 4; j++) {
+				int pos = random.nextInt(message.length + 1);
+				int length = random.nextInt(16);
+				byte[] changed = new byte[message.length + length];
+				System.arraycopy(message, 0, changed, 0, pos);
+				for (int k = 0; k < length; k++) {
+					changed[pos + k] = (byte) random.nextInt();
+				}
+				System.arraycopy(message, pos, changed, pos + length,
+						message.length - pos);
+				message = Arrays.copyOfRange(changed,
+						Math.min(changed.length, random.nextInt(4)),
+						changed.length);
+			}
+
+			assertArrayEquals(message,
+					roundTrip(message, previousMessage, output));
+		}
+	}
+
+}
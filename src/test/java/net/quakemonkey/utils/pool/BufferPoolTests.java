@@ -2,8 +2,11 @@ package net.quakemonkey.utils.pool;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.nio.ByteBuffer;
+
 import org.junit.Test;
 
 import net.quakemonkey.utils.pool.BufferPool;
@@ -68,6 +71,37 @@ public class BufferPoolTests {
 		assertEquals(6, BufferPool.DEFAULT.obtainIntArray(5).length);
 	}
 
+	@Test
+	public void testStatistics() {
+		BufferPool pool = new BufferPool();
+
+		ByteBuffer buffer = pool.obtainByteBuffer(1000);
+		int[] array = pool.obtainIntArray(10);
+		assertEquals(1040, pool.getOutstandingBytes());
+		assertEquals(1040, pool.getPeakBytes());
+		assertEquals(2, pool.getMisses());
+
+		pool.freeByteBuffer(buffer);
+		pool.freeIntArray(array);
+		assertEquals(0, pool.getOutstandingBytes());
+
+		assertSame(buffer, pool.obtainByteBuffer(1000));
+		assertEquals(1, pool.getHits());
+		assertEquals(1040, pool.getPeakBytes());
+	}
+
+	@Test
+	public void testLeakDetection() {
+		BufferPool pool = new BufferPool();
+		pool.setLeakDetection(true);
+
+		byte[] freed = pool.obtainByteArray(10);
+		pool.obtainByteArray(20);
+		pool.freeByteArray(freed);
+
+		assertEquals(1, pool.reportLeaks());
+	}
+
 	@Test
 	public void testFreeIntBuffer() {
 		// Freeing null should do nothing
@@ -0,0 +1,51 @@
+package net.quakemonkey.utils.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import com.esotericsoftware.kryo.Kryo;
+
+import net.quakemonkey.DiffClassRegistration;
+
+public class KryoPoolTest {
+
+	private static Kryo createKryo() {
+		Kryo kryo = new Kryo();
+		DiffClassRegistration.registerClasses(kryo);
+		return kryo;
+	}
+
+	@Test
+	public void testReuse() {
+		KryoPool pool = new KryoPool(KryoPoolTest::createKryo, 2);
+
+		Kryo first = pool.obtain();
+		Kryo second = pool.obtain();
+		assertNotSame(first, second);
+
+		pool.free(first);
+		assertSame(first, pool.obtain());
+		assertEquals(2, pool.getCreatedInstances());
+	}
+
+	@Test
+	public void testCheckRegistrations() {
+		KryoPool pool = new KryoPool(KryoPoolTest::createKryo);
+
+		pool.checkRegistrations(createKryo());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCheckDifferentRegistrations() {
+		KryoPool pool = new KryoPool(KryoPoolTest::createKryo);
+		Kryo kryo = new Kryo();
+		kryo.register(String[].class);
+		DiffClassRegistration.registerClasses(kryo);
+
+		pool.checkRegistrations(kryo);
+	}
+
+}
@@ -0,0 +1,37 @@
+package net.quakemonkey.utils.pool;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import net.quakemonkey.utils.pool.Pool.ObjectSupplier;
+
+public class PoolTest {
+
+	@Test
+	public void testBounded() {
+		Pool<Object> pool = new Pool<>(new ObjectSupplier<Object>() {
+			@Override
+			public Object newInstance() {
+				return new Object();
+			}
+
+			@Override
+			public void onFree(Object obj) {
+				// nothing to reset
+			}
+		}, 2);
+
+		for (int i = 0; i < 3; i++) {
+			pool.free(new Object());
+		}
+		assertEquals(1, pool.getDropped());
+
+		for (int i = 0; i < 3; i++) {
+			pool.obtain();
+		}
+		assertEquals(2, pool.getHits());
+		assertEquals(1, pool.getMisses());
+	}
+
+}
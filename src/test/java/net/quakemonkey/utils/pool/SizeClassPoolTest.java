@@ -0,0 +1,196 @@
+package net.quakemonkey.utils.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+public class SizeClassPoolTest {
+
+	private static SizeClassPool<byte[]> createPool() {
+		return new SizeClassPool<>(byte[]::new, array -> array.length, 1,
+				BufferPool.DEFAULT_MAX_POOLED_BYTES_PER_CLASS,
+				new PoolStatistics());
+	}
+
+	@Test
+	public void testSizeClass() {
+		assertEquals(0, SizeClassPool.getSizeClass(0));
+		assertEquals(0, SizeClassPool.getSizeClass(1));
+		assertEquals(1, SizeClassPool.getSizeClass(3));
+		assertEquals(2, SizeClassPool.getSizeClass(4));
+		assertEquals(14, SizeClassPool.getSizeClass(Short.MAX_VALUE));
+	}
+
+	@Test
+	public void testSizes() {
+		SizeClassPool<byte[]> pool = createPool();
+
+		byte[] small = new byte[9];
+		byte[] big = new byte[16];
+		pool.free(small);
+		pool.free(big);
+
+		// Only the next size class is guaranteed to be big enough
+		assertSame(big, pool.obtain(10, false));
+		assertSame(small, pool.obtain(8, false));
+
+		// Exact size
+		pool.free(small);
+		assertNotSame(small, pool.obtain(10, true));
+		assertSame(small, pool.obtain(9, true));
+		assertEquals(0, pool.obtain(0, true).length);
+
+		// Empty objects share the first size class
+		pool.free(new byte[0]);
+		assertEquals(1, pool.obtain(1, false).length);
+	}
+
+	/**
+	 * Objects that do not fit into the magazine of a thread are moved to the
+	 * depot, where other threads can obtain them.
+	 */
+	@Test
+	public void testDepot() throws InterruptedException {
+		SizeClassPool<byte[]> pool = createPool();
+		Set<byte[]> freed = new HashSet<>();
+		CountDownLatch filled = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(1);
+
+		Thread thread = new Thread(() -> {
+			for (int i = 0; i < SizeClassPool.MAGAZINE_SIZE * 2; i++) {
+				byte[] array = new byte[100 + i % 2];
+				freed.add(array);
+				pool.free(array);
+			}
+			filled.countDown();
+			Uninterruptibles.awaitUninterruptibly(done);
+		});
+		thread.start();
+		filled.await();
+
+		// Half of the magazine was moved to the depot whenever it was full; the
+		// rest stays in the magazine of the other thread
+		for (int i = 0; i < SizeClassPool.MAGAZINE_SIZE; i++) {
+			assertEquals(true, freed.remove(pool.obtain(100, false)));
+		}
+		assertEquals(false, freed.contains(pool.obtain(100, false)));
+		assertEquals(SizeClassPool.MAGAZINE_SIZE, freed.size());
+
+		done.countDown();
+		thread.join();
+	}
+
+	/**
+	 * The magazine of a thread that terminated is moved to the depot once
+	 * another thread starts using the pool.
+	 */
+	@Test
+	public void testTerminatedThread() throws InterruptedException {
+		PoolStatistics statistics = new PoolStatistics();
+		SizeClassPool<byte[]> pool = new SizeClassPool<>(byte[]::new,
+				array -> array.length, 1,
+				BufferPool.DEFAULT_MAX_POOLED_BYTES_PER_CLASS, statistics);
+		Set<byte[]> freed = new HashSet<>();
+
+		Thread thread = new Thread(() -> {
+			for (int i = 0; i < SizeClassPool.MAGAZINE_SIZE; i++) {
+				byte[] array = new byte[100];
+				freed.add(array);
+				pool.free(array);
+			}
+		});
+		thread.start();
+		thread.join();
+
+		Thread next = new Thread(() -> {
+			for (int i = 0; i < SizeClassPool.MAGAZINE_SIZE; i++) {
+				freed.remove(pool.obtain(100, false));
+			}
+		});
+		next.start();
+		next.join();
+
+		assertEquals(0, freed.size());
+		assertEquals(SizeClassPool.MAGAZINE_SIZE, statistics.getHits());
+		assertEquals(0, statistics.getDroppedBytes());
+	}
+
+	@Test
+	public void testBoundedDepot() {
+		PoolStatistics statistics = new PoolStatistics();
+		// The depot of the size class 8 can hold 20 arrays, the magazine 2
+		SizeClassPool<byte[]> pool = new SizeClassPool<>(byte[]::new,
+				array -> array.length, 1, 256 * 20, statistics);
+
+		for (int i = 0; i < 64; i++) {
+			pool.free(new byte[256]);
+		}
+
+		// 62 arrays were moved to the depot, 42 of them had to be dropped
+		assertEquals(42 * 256, statistics.getDroppedBytes());
+	}
+
+	/**
+	 * A thread caches at most an eighth of the limit per size class, so the
+	 * large size classes are only pooled in the depot.
+	 */
+	@Test
+	public void testBoundedMagazine() {
+		PoolStatistics statistics = new PoolStatistics();
+		SizeClassPool<byte[]> pool = new SizeClassPool<>(byte[]::new,
+				array -> array.length, 1,
+				BufferPool.DEFAULT_MAX_POOLED_BYTES_PER_CLASS, statistics);
+
+		for (int i = 0; i < 16; i++) {
+			pool.free(new byte[1024 * 1024]);
+		}
+
+		// Only 4 MiB are kept
+		assertEquals(12 * 1024 * 1024, statistics.getDroppedBytes());
+	}
+
+	/**
+	 * Trimming drops the objects that were not needed since the last trim.
+	 */
+	@Test
+	public void testTrim() {
+		PoolStatistics statistics = new PoolStatistics();
+		SizeClassPool<byte[]> pool = new SizeClassPool<>(byte[]::new,
+				array -> array.length, 1,
+				BufferPool.DEFAULT_MAX_POOLED_BYTES_PER_CLASS, statistics);
+
+		// 16 arrays in the magazine, 16 in the depot; trimming moves the
+		// magazine to the depot as well
+		for (int i = 0; i < 32; i++) {
+			pool.free(new byte[64]);
+		}
+		pool.trim();
+		assertEquals(0, statistics.getDroppedBytes());
+
+		// Take 20 arrays from the depot
+		for (int i = 0; i < 20; i++) {
+			pool.obtain(64, false);
+		}
+		pool.trim();
+		assertEquals(12 * 64, statistics.getDroppedBytes());
+		assertEquals(20, statistics.getHits());
+
+		// Arrays in the magazine are dropped by the second trim
+		for (int i = 0; i < 4; i++) {
+			pool.free(new byte[64]);
+		}
+		pool.trim();
+		assertEquals(12 * 64, statistics.getDroppedBytes());
+		pool.trim();
+		assertEquals(16 * 64, statistics.getDroppedBytes());
+	}
+
+}